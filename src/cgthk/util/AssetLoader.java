@@ -0,0 +1,376 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import cgthk.BVH_simple.BVH;
+import cgthk.math.Mat4;
+
+
+
+/**
+ * Loads assets in two stages: everything that doesn't need OpenGL (file IO, OBJ/MTL parsing,
+ * image decoding, BVH construction) runs on background worker threads, the finished CPU data is
+ * queued and turned into OpenGL objects on the render thread by processUploads(), which Main
+ * calls once per frame with a time budget. This way the first frames are shown while assets stream in.<br>
+ * <br>
+ * The returned futures complete on the render thread, so callbacks attached with thenAccept()
+ * may use OpenGL, e.g. AssetLoader.loadMeshes( "Meshes/monkey.obj" ).thenAccept( meshes -> scene.addMesh(meshes.get(0)) ).
+ * Failed loads print an error and complete the future exceptionally.
+ */
+public final class AssetLoader
+{
+	/** default time per frame spent on uploads, roughly a quarter of a 60Hz frame */
+	public static final long DEFAULT_FRAME_BUDGET_NANOS = 4000000L;
+
+	private static final ConcurrentLinkedQueue<Runnable> s_Uploads  = new ConcurrentLinkedQueue<Runnable>();
+	private static final AtomicInteger                   s_Pending  = new AtomicInteger();
+	private static final HashMap<String, Texture>        s_Requests = new HashMap<String, Texture>(); // render thread only
+
+	private static ExecutorService s_Workers;
+
+
+
+	private AssetLoader()
+	{
+	}
+
+
+	/**
+	 * Runs backgroundTask on a worker thread and afterwards upload with its result on the render thread.
+	 * @param backgroundTask Must not use OpenGL
+	 * @param upload Creates the OpenGL objects, runs inside processUploads()
+	 */
+	public static <T, R> CompletableFuture<R> load( Supplier<T> backgroundTask, Function<T, R> upload )
+	{
+		CompletableFuture<R> future = new CompletableFuture<R>();
+
+		s_Pending.incrementAndGet();
+
+		workers().execute( () ->
+		{
+			try
+			{
+				T data = backgroundTask.get();
+
+				s_Uploads.add( () -> AssetLoader.complete(future, () -> upload.apply(data)) );
+			}
+			catch( Throwable e )
+			{
+				AssetLoader.fail( future, e );
+			}
+		} );
+
+		return future;
+	}
+
+
+	/**
+	 * Parses the OBJ file (through OBJCache) on a worker thread. Doesn't create any OpenGL objects,
+	 * so the future completes on the worker thread.
+	 */
+	public static CompletableFuture<OBJContainer> loadOBJ( String filename )
+	{
+		return CompletableFuture.supplyAsync( () -> OBJCache.loadFile(filename), workers() );
+	}
+
+
+	/**
+	 * Loads every group of the OBJ file as GL_STATIC_DRAW mesh with positions at attribute location 0,
+	 * normals at 1 and texture coordinates (if any) at 2, the diffuse color is taken from the material.
+	 * Parsing and the BVHs are built on a worker thread, each mesh is uploaded separately.
+	 */
+	public static CompletableFuture<ArrayList<Mesh>> loadMeshes( String filename )
+	{
+		return loadMeshes( filename, false );
+	}
+
+
+	/**
+	 * @param packed Store the vertices interleaved in VertexFormat.packed() (2_10_10_10 normals, half float texture
+	 * coordinates) instead of one float buffer per attribute
+	 */
+	public static CompletableFuture<ArrayList<Mesh>> loadMeshes( String filename, boolean packed )
+	{
+		CompletableFuture<ArrayList<Mesh>> future = new CompletableFuture<ArrayList<Mesh>>();
+
+		s_Pending.incrementAndGet();
+
+		workers().execute( () ->
+		{
+			ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+
+			try
+			{
+				ArrayList<OBJGroup> groups = OBJCache.loadFile( filename ).getGroups();
+				AtomicInteger       left   = new AtomicInteger( groups.size() );
+
+				if( groups.isEmpty() )
+					s_Uploads.add( () -> AssetLoader.complete(future, () -> meshes) );
+
+				// filled before the first upload is queued, the render thread only sets elements
+				for( int i = 0; i < groups.size(); ++i )
+					meshes.add( null );
+
+				for( int i = 0; i < groups.size(); ++i )
+				{
+					OBJGroup group = groups.get( i );
+					BVH      bvh   = Mesh.buildBVH( group.getPositions(), group.getIndices() );
+					int      index = i;
+
+					s_Uploads.add( () ->
+					{
+						// another group failed, the meshes created so far have been freed
+						if( future.isDone() )
+							return;
+
+						try
+						{
+							meshes.set( index, createMesh(group, bvh, packed) );
+						}
+						catch( Throwable e )
+						{
+							AssetLoader.fail( future, e );
+							AssetLoader.freeMeshes( meshes );
+							return;
+						}
+
+						if( left.decrementAndGet() == 0 )
+							AssetLoader.complete( future, () -> meshes );
+					} );
+				}
+			}
+			catch( Throwable e )
+			{
+				AssetLoader.fail( future, e );
+
+				// uploads queued before the failure may already have created meshes, freed after them
+				s_Uploads.add( () -> AssetLoader.freeMeshes(meshes) );
+			}
+		} );
+
+		return future;
+	}
+
+
+	/**
+	 * Decodes the image on a worker thread and uploads it on the render thread.
+	 * Textures that are already loaded complete immediately.
+	 * @param filename Path relative to the resources folder, see Texture( filename )
+	 */
+	public static CompletableFuture<Texture> loadTexture( String filename )
+	{
+		if( Texture.isLoaded(filename) )
+			return CompletableFuture.completedFuture( new Texture(filename) );
+
+		return AssetLoader.load( () -> Texture.decodeImage(filename), image ->
+		{
+			// the same file may have been requested twice before the first upload
+			if( !Texture.isLoaded(filename) )
+				Texture.uploadImage( filename, image );
+			else if( image != null )
+				image.free();
+
+			return new Texture( filename );
+		} );
+	}
+
+
+	/**
+	 * Returns a texture immediately, showing a placeholder until the image is decoded on a worker thread and
+	 * uploaded by processUploads(), then the same object shows the real texture (see Texture.isResident()).
+	 * A texture that can't be loaded keeps the placeholder. Has to be called on the render thread.
+	 * @param filename Path relative to the resources folder, see Texture( filename )
+	 */
+	public static Texture requestTexture( String filename )
+	{
+		if( Texture.isLoaded(filename) )
+			return new Texture( filename );
+
+		Texture texture = s_Requests.get( filename );
+
+		if( texture != null )
+			return texture;
+
+		Texture placeholder = new Texture( Texture.getPlaceholderID() );
+		s_Requests.put( filename, placeholder );
+
+		// a failed decode completes on the worker thread, so the bookkeeping always goes through the upload queue
+		AssetLoader.loadTexture( filename ).whenComplete( (loaded, e) -> s_Uploads.add( () ->
+		{
+			s_Requests.remove( filename );
+
+			if( loaded != null && loaded.getID() != 0 )
+				placeholder.setID( loaded.getID() );
+		} ) );
+
+		return placeholder;
+	}
+
+
+	/**
+	 * requestTexture() for a set of textures, every image is a separate job, so they are decoded in parallel
+	 * on all workers
+	 */
+	public static Texture[] requestTextures( String... filenames )
+	{
+		Texture[] textures = new Texture[filenames.length];
+
+		for( int i = 0; i < filenames.length; ++i )
+			textures[i] = requestTexture( filenames[i] );
+
+		return textures;
+	}
+
+
+	/**
+	 * Runs queued uploads until the queue is empty or budgetNanos have passed. At least one upload
+	 * is processed per call, so a single large asset can't stall loading. Has to be called on the
+	 * thread that owns the OpenGL context.
+	 * @return the number of processed uploads
+	 */
+	public static int processUploads( long budgetNanos )
+	{
+		long     start = System.nanoTime();
+		int      count = 0;
+		Runnable upload;
+
+		while( (upload = s_Uploads.poll()) != null )
+		{
+			upload.run();
+			count++;
+
+			if( System.nanoTime() - start >= budgetNanos )
+				break;
+		}
+
+		return count;
+	}
+
+
+	/**
+	 * @return the number of requested assets whose futures have not completed yet
+	 */
+	public static int getPendingCount()
+	{
+		return s_Pending.get();
+	}
+
+
+	/**
+	 * Stops the worker threads, queued but not yet uploaded assets are discarded
+	 */
+	public static synchronized void shutdown()
+	{
+		if( s_Workers != null )
+			s_Workers.shutdownNow();
+
+		s_Workers = null;
+		s_Uploads.clear();
+		s_Requests.clear();
+	}
+
+
+	private static Mesh createMesh( OBJGroup group, BVH bvh, boolean packed )
+	{
+		Mesh    mesh      = new Mesh( bvh, GL_STATIC_DRAW );
+		boolean texCoords = group.getTexCoords().length > 0;
+
+		if( packed && texCoords )
+			mesh.setVertices( VertexFormat.packed(true), group.getPositions(), group.getNormals(), group.getTexCoords() );
+		else if( packed )
+			mesh.setVertices( VertexFormat.packed(false), group.getPositions(), group.getNormals() );
+		else
+		{
+			mesh.setAttribute( 0, group.getPositions(), 3 );
+			mesh.setAttribute( 1, group.getNormals(),   3 );
+
+			if( texCoords )
+				mesh.setAttribute( 2, group.getTexCoords(), 2 );
+		}
+
+		mesh.setIndices( group.getIndices() );
+		mesh.setModelMatrix( new Mat4() );
+
+		if( group.getMaterial() != null )
+			mesh.setDiffuseColor( group.getMaterial().getDiffuseColor() );
+
+		return mesh;
+	}
+
+
+	/**
+	 * Frees the meshes of a failed loadMeshes(), they are never handed out
+	 */
+	private static void freeMeshes( ArrayList<Mesh> meshes )
+	{
+		for( int i = 0; i < meshes.size(); ++i )
+		{
+			if( meshes.get(i) != null )
+				meshes.get( i ).freeGLResources();
+
+			meshes.set( i, null );
+		}
+	}
+
+
+	private static <R> void complete( CompletableFuture<R> future, Supplier<R> upload )
+	{
+		try
+		{
+			R result = upload.get();
+
+			s_Pending.decrementAndGet();
+			future.complete( result );
+		}
+		catch( Throwable e )
+		{
+			AssetLoader.fail( future, e );
+		}
+	}
+
+
+	private static void fail( CompletableFuture<?> future, Throwable e )
+	{
+		if( future.isDone() )
+			return;
+
+		System.err.println( "*Error* AssetLoader: Loading failed" );
+		e.printStackTrace();
+
+		s_Pending.decrementAndGet();
+		future.completeExceptionally( e );
+	}
+
+
+	/**
+	 * Worker pool shared with background jobs of other classes, e.g. Mesh.buildBVHAsync(). One thread per core:
+	 * while assets stream in the render thread mostly waits for vsync, and uploads are bounded by the frame budget.
+	 */
+	static synchronized ExecutorService workers()
+	{
+		if( s_Workers == null )
+		{
+			AtomicInteger threadCount = new AtomicInteger();
+
+			s_Workers = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), runnable ->
+			{
+				Thread thread = new Thread( runnable, "AssetLoader-" + threadCount.incrementAndGet() );
+				thread.setDaemon( true );
+
+				return thread;
+			} );
+		}
+
+		return s_Workers;
+	}
+}
@@ -35,12 +35,24 @@ public class DefaultGUI {
     public String fpsString = "0.0";
     public boolean vsync = true;
     
+    // Number of meshes skipped by the frustum culling
+    public String cullingString = "Culled: 0";
+    
+    // Shader variant cache statistics
+    public String shaderString = "";
+    
     // Help Button
     public boolean showHelp = false;
     
     // Grid Toggle
     public ByteBuffer grid = BufferUtils.createByteBuffer(1).put(0, (byte) 1);
     
+    // BVH Toggle, draws the BVH of the selected object
+    public ByteBuffer bvh = BufferUtils.createByteBuffer(1).put(0, (byte) 0);
+    
+    // Lighting Toggle, switches to the LIGHTING shader variant
+    public ByteBuffer lighting = BufferUtils.createByteBuffer(1).put(0, (byte) 0);
+    
     // Color Picker
     private NkColorf colorPickerColor = NkColorf.create();
     
@@ -66,6 +78,10 @@ public class DefaultGUI {
             	String syncstring = vsync ? "ON" : "OFF";
             	nk_label( ctx, "V-SYNC: " + syncstring, NK_LEFT );
             	
+            	nk_layout_row_dynamic(ctx, 20, 1);
+            	nk_label(ctx, cullingString, NK_LEFT);
+            	nk_label(ctx, shaderString, NK_LEFT);
+            	
                 nk_layout_row_static(ctx, 30, 100, 2);
                 if (nk_button_label(ctx, "Screenshot")) {
                     nCb.takeScreenshot();
@@ -76,6 +92,8 @@ public class DefaultGUI {
                 
                 nk_layout_row_dynamic(ctx, 30, 1);
                 nk_checkbox_label(ctx, "Draw Floor Grid", grid );   
+                nk_checkbox_label(ctx, "Draw BVH", bvh );
+                nk_checkbox_label(ctx, "Lighting", lighting );
                 
                 
                 nk_layout_row_dynamic(ctx, 20, 1);
@@ -42,7 +42,7 @@ public class FloatArrayList
 	
 	public void addAll( float[] values )
 	{
-		this.ensureCapacity( m_iSize + values.length );
+		this.grow( m_iSize + values.length );
 		
 		System.arraycopy( values, 0, m_fValues, m_iSize, values.length );
 		
@@ -52,7 +52,7 @@ public class FloatArrayList
 	
 	public void addAll( FloatArrayList floatArrayList )
 	{
-		this.ensureCapacity( m_iSize + floatArrayList.size() );
+		this.grow( m_iSize + floatArrayList.size() );
 		
 		System.arraycopy( floatArrayList.toArray(), 0, m_fValues, m_iSize, floatArrayList.size() );
 		
@@ -85,6 +85,16 @@ public class FloatArrayList
 	}
 	
 	
+	/**
+	 * Like ensureCapacity(), but grows by at least GROWTH_FACTOR, so appending many small chunks stays linear
+	 */
+	private void grow( int minCapacity )
+	{
+		if( m_fValues.length < minCapacity )
+			this.ensureCapacity( Math.max(minCapacity, (int) (m_fValues.length * GROWTH_FACTOR)) );
+	}
+	
+	
 	public int indexOf( float value )
 	{
 		for( int i = 0; i < m_iSize; ++i )
@@ -0,0 +1,237 @@
+package cgthk.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import cgthk.math.Mat4;
+import cgthk.math.Vec3;
+
+
+
+/**
+ * View frustum culling of meshes against their world space bounding boxes.<br>
+ * The six planes are extracted from projection * view (Gribb/Hartmann), the local bounds of every mesh are
+ * transformed by its model matrix into a world space AABB (Arvo) and stored as structure of arrays, so the plane
+ * tests run over six flat float arrays. Large scenes are tested in chunks on a ForkJoinPool.
+ */
+public class FrustumCuller
+{
+	/** scenes with fewer objects are tested on the calling thread */
+	public static final int PARALLEL_THRESHOLD = 4096;
+	/** objects per parallel task */
+	public static final int CHUNK_SIZE         = 1024;
+
+	// a, b, c, d per plane: left, right, bottom, top, near, far
+	private float[]   m_fPlanes  = new float[24];
+
+	private float[]   m_fMinX    = new float[0];
+	private float[]   m_fMinY    = new float[0];
+	private float[]   m_fMinZ    = new float[0];
+	private float[]   m_fMaxX    = new float[0];
+	private float[]   m_fMaxY    = new float[0];
+	private float[]   m_fMaxZ    = new float[0];
+	private boolean[] m_bVisible = new boolean[0];
+
+	private int          m_iCulledCount;
+	private ForkJoinPool m_Pool = ForkJoinPool.commonPool();
+
+	private ArrayList<ForkJoinTask<?>> m_Tasks = new ArrayList<ForkJoinTask<?>>();
+	private Mat4                       m_Model = new Mat4();
+
+
+
+	/**
+	 * Extracts the frustum planes, has to be called whenever the camera changed
+	 */
+	public void setFrustum( Mat4 viewMatrix, Mat4 projMatrix )
+	{
+		Mat4 m = Mat4.mul( projMatrix, viewMatrix );
+
+		this.setPlane( 0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03 );
+		this.setPlane( 1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03 );
+		this.setPlane( 2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13 );
+		this.setPlane( 3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13 );
+		this.setPlane( 4, m.m30 + m.m20, m.m31 + m.m21, m.m32 + m.m22, m.m33 + m.m23 );
+		this.setPlane( 5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23 );
+	}
+
+
+	/**
+	 * Adds all meshes whose bounds intersect the frustum to visible (in the original order).
+	 * Meshes without bounds are always visible.
+	 * @param visible Cleared before it's filled, may be reused across frames
+	 * @return the number of culled meshes
+	 */
+	public int cull( ArrayList<Mesh> meshes, ArrayList<Mesh> visible )
+	{
+		int count = meshes.size();
+
+		this.resize( count );
+
+		for( int i = 0; i < count; ++i )
+		{
+			Mesh mesh = meshes.get( i );
+			Vec3 min  = mesh.getLocalMin();
+			Vec3 max  = mesh.getLocalMax();
+
+			if( min == null || max == null )
+				this.setUnbounded( i );
+			else
+				this.setBounds( i, min.x, min.y, min.z, max.x, max.y, max.z, mesh.getModelMatrix(m_Model) );
+		}
+
+		this.test( count );
+
+		visible.clear();
+		visible.ensureCapacity( count );
+
+		for( int i = 0; i < count; ++i )
+		{
+			if( m_bVisible[i] )
+				visible.add( meshes.get(i) );
+		}
+
+		m_iCulledCount = count - visible.size();
+
+		return m_iCulledCount;
+	}
+
+
+	/**
+	 * @return the number of meshes culled by the last cull() call
+	 */
+	public int getCulledCount()
+	{
+		return m_iCulledCount;
+	}
+
+
+	public void setPool( ForkJoinPool pool )
+	{
+		m_Pool = pool;
+	}
+
+
+	/**
+	 * Tests the first count bounds, in parallel for large scenes
+	 */
+	private void test( int count )
+	{
+		if( count < PARALLEL_THRESHOLD )
+		{
+			this.testRange( 0, count );
+			return;
+		}
+
+		m_Tasks.clear();
+
+		// every task writes a disjoint range of m_bVisible
+		for( int start = 0; start < count; start += CHUNK_SIZE )
+		{
+			int begin = start;
+			int end   = Math.min( count, start + CHUNK_SIZE );
+
+			m_Tasks.add( m_Pool.submit(() -> this.testRange(begin, end)) );
+		}
+
+		for( ForkJoinTask<?> task : m_Tasks )
+			task.join();
+	}
+
+
+	/**
+	 * An AABB is outside if its corner furthest along the plane normal is behind one plane
+	 */
+	private void testRange( int begin, int end )
+	{
+		float[] planes = m_fPlanes;
+
+		for( int i = begin; i < end; ++i )
+		{
+			boolean visible = true;
+
+			for( int p = 0; p < 24 && visible; p += 4 )
+			{
+				float a = planes[p], b = planes[p + 1], c = planes[p + 2];
+
+				float x = a >= 0.0f ? m_fMaxX[i] : m_fMinX[i];
+				float y = b >= 0.0f ? m_fMaxY[i] : m_fMinY[i];
+				float z = c >= 0.0f ? m_fMaxZ[i] : m_fMinZ[i];
+
+				visible = a * x + b * y + c * z + planes[p + 3] >= 0.0f;
+			}
+
+			m_bVisible[i] = visible;
+		}
+	}
+
+
+	/**
+	 * Stores the world space AABB of the local bounds transformed by transform
+	 */
+	private void setBounds( int object, float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Mat4 transform )
+	{
+		float cx = (minX + maxX) * 0.5f, ex = (maxX - minX) * 0.5f;
+		float cy = (minY + maxY) * 0.5f, ey = (maxY - minY) * 0.5f;
+		float cz = (minZ + maxZ) * 0.5f, ez = (maxZ - minZ) * 0.5f;
+
+		float worldX = transform.m00 * cx + transform.m01 * cy + transform.m02 * cz + transform.m03;
+		float worldY = transform.m10 * cx + transform.m11 * cy + transform.m12 * cz + transform.m13;
+		float worldZ = transform.m20 * cx + transform.m21 * cy + transform.m22 * cz + transform.m23;
+
+		float extentX = Math.abs( transform.m00 ) * ex + Math.abs( transform.m01 ) * ey + Math.abs( transform.m02 ) * ez;
+		float extentY = Math.abs( transform.m10 ) * ex + Math.abs( transform.m11 ) * ey + Math.abs( transform.m12 ) * ez;
+		float extentZ = Math.abs( transform.m20 ) * ex + Math.abs( transform.m21 ) * ey + Math.abs( transform.m22 ) * ez;
+
+		m_fMinX[object] = worldX - extentX;
+		m_fMinY[object] = worldY - extentY;
+		m_fMinZ[object] = worldZ - extentZ;
+		m_fMaxX[object] = worldX + extentX;
+		m_fMaxY[object] = worldY + extentY;
+		m_fMaxZ[object] = worldZ + extentZ;
+	}
+
+
+	/**
+	 * A box that is in front of every plane, the plane distances can't become NaN
+	 */
+	private void setUnbounded( int object )
+	{
+		m_fMinX[object] = -Float.MAX_VALUE;
+		m_fMinY[object] = -Float.MAX_VALUE;
+		m_fMinZ[object] = -Float.MAX_VALUE;
+		m_fMaxX[object] = Float.MAX_VALUE;
+		m_fMaxY[object] = Float.MAX_VALUE;
+		m_fMaxZ[object] = Float.MAX_VALUE;
+	}
+
+
+	private void setPlane( int plane, float a, float b, float c, float d )
+	{
+		float length = (float) Math.sqrt( a * a + b * b + c * c );
+		int   offset = plane * 4;
+
+		m_fPlanes[offset]     = a / length;
+		m_fPlanes[offset + 1] = b / length;
+		m_fPlanes[offset + 2] = c / length;
+		m_fPlanes[offset + 3] = d / length;
+	}
+
+
+	private void resize( int count )
+	{
+		if( m_bVisible.length >= count )
+			return;
+
+		int capacity = Math.max( count, m_bVisible.length * 2 );
+
+		m_fMinX    = new float[capacity];
+		m_fMinY    = new float[capacity];
+		m_fMinZ    = new float[capacity];
+		m_fMaxX    = new float[capacity];
+		m_fMaxY    = new float[capacity];
+		m_fMaxZ    = new float[capacity];
+		m_bVisible = new boolean[capacity];
+	}
+}
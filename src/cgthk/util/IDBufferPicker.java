@@ -0,0 +1,357 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import org.lwjgl.BufferUtils;
+
+import cgthk.math.Mat4;
+
+
+
+/**
+ * GPU picking: renders the object IDs of all scene objects into an integer render target, limited by a scissor
+ * to the requested pixel region, and reads the region back asynchronously through a pixel buffer object.<br>
+ * request() only queues the GPU commands, update() has to be called once per frame and completes the requests
+ * whose fence has been signaled, usually one or two frames later. The cost depends on the number of draw calls and
+ * the region size, not on the triangle count. Objects are numbered like in SceneBVH: all objects of the first list,
+ * then the second list and so on.
+ */
+public class IDBufferPicker
+{
+	private static final String VERTEX_SHADER =
+		"#version 330 core\n" +
+		"layout(location=0) in vec3 aPosition;\n" +
+		"uniform mat4 uModel;\n" +
+		"uniform mat4 uView;\n" +
+		"uniform mat4 uProjection;\n" +
+		"void main(){\n" +
+		"   gl_Position = uProjection * uView * uModel * vec4(aPosition, 1.0);\n" +
+		"}\n";
+
+	private static final String FRAGMENT_SHADER =
+		"#version 330 core\n" +
+		"uniform uint uObjectID;\n" +
+		"layout(location=0) out uint fragObjectID;\n" +
+		"void main(){\n" +
+		"   fragObjectID = uObjectID;\n" +
+		"}\n";
+
+	/** a request in flight, the PBO holds the read back IDs once the fence is signaled */
+	private static final class Request
+	{
+		int                     pixelBuffer;
+		long                    fence;
+		int                     pixelCount;
+		CompletableFuture<int[]> future;
+	}
+
+	private int m_iFramebuffer;
+	private int m_iIDBuffer;
+	private int m_iDepthBuffer;
+	private int m_iWidth;
+	private int m_iHeight;
+
+	private int m_iProgram;
+	private int m_iModelLocation;
+	private int m_iViewLocation;
+	private int m_iProjectionLocation;
+	private int m_iObjectIDLocation;
+
+	private FloatBuffer        m_MatrixBuffer = BufferUtils.createFloatBuffer( 16 );
+	private Mat4               m_Model        = new Mat4();
+	private IntBuffer          m_StateBuffer  = BufferUtils.createIntBuffer( 4 );
+	private ArrayList<Request> m_Pending      = new ArrayList<Request>();
+	private IntArrayList       m_FreeBuffers  = new IntArrayList();
+
+
+
+	/**
+	 * Renders the IDs of all objects into the region [x0, x1] x [y0, y1] (pixels, origin bottom left, inclusive)
+	 * and starts the asynchronous read back.
+	 * @param width Size of the viewport the region refers to, usually the camera size
+	 * @return future of the sorted indices of all objects visible in the region, completes inside update()
+	 */
+	@SafeVarargs
+	public final CompletableFuture<int[]> request( Mat4 viewMatrix, Mat4 projMatrix, int width, int height,
+												   int x0, int y0, int x1, int y1, ArrayList<Mesh>... lists )
+	{
+		CompletableFuture<int[]> future = new CompletableFuture<int[]>();
+
+		int minX = Math.max( 0, Math.min(x0, x1) );
+		int minY = Math.max( 0, Math.min(y0, y1) );
+		int maxX = Math.min( width  - 1, Math.max(x0, x1) );
+		int maxY = Math.min( height - 1, Math.max(y0, y1) );
+
+		if( minX > maxX || minY > maxY )
+		{
+			future.complete( new int[0] );
+			return future;
+		}
+
+		this.init( width, height );
+
+		// =================================
+		// save the state the pass changes
+		// =================================
+
+		OpenGLState state = new OpenGLState();
+
+		glGetIntegerv( GL_DRAW_FRAMEBUFFER_BINDING, m_StateBuffer );
+		int drawFramebuffer = m_StateBuffer.get( 0 );
+		glGetIntegerv( GL_READ_FRAMEBUFFER_BINDING, m_StateBuffer );
+		int readFramebuffer = m_StateBuffer.get( 0 );
+		boolean depthTest = glIsEnabled( GL_DEPTH_TEST );
+		glGetIntegerv( GL_VIEWPORT, m_StateBuffer );
+
+		// =================================
+		// render the IDs, 0 is background
+		// =================================
+
+		int regionWidth  = maxX - minX + 1;
+		int regionHeight = maxY - minY + 1;
+
+		glBindFramebuffer( GL_FRAMEBUFFER, m_iFramebuffer );
+		glViewport( 0, 0, width, height );
+		glEnable( GL_SCISSOR_TEST );
+		glScissor( minX, minY, regionWidth, regionHeight );
+		glEnable( GL_DEPTH_TEST );
+		glDisable( GL_BLEND );
+
+		glClearBufferuiv( GL_COLOR, 0, new int[] { 0, 0, 0, 0 } );
+		glClearBufferfv( GL_DEPTH, 0, new float[] { 1.0f } );
+
+		glUseProgram( m_iProgram );
+		glUniformMatrix4fv( m_iViewLocation,       false, viewMatrix.toFloatBuffer(m_MatrixBuffer) );
+		glUniformMatrix4fv( m_iProjectionLocation, false, projMatrix.toFloatBuffer(m_MatrixBuffer) );
+
+		int objectID = 0;
+
+		for( ArrayList<Mesh> list : lists )
+		{
+			for( Mesh mesh : list )
+			{
+				objectID++;
+
+				glUniformMatrix4fv( m_iModelLocation, false, mesh.getModelMatrix(m_Model).toFloatBuffer(m_MatrixBuffer) );
+				glUniform1ui( m_iObjectIDLocation, objectID );
+				mesh.draw();
+			}
+		}
+
+		// =================================
+		// asynchronous read back
+		// =================================
+
+		Request request = new Request();
+		request.pixelCount  = regionWidth * regionHeight;
+		request.pixelBuffer = m_FreeBuffers.size() > 0 ? m_FreeBuffers.removeAt( m_FreeBuffers.size() - 1 ) : glGenBuffers();
+		request.future      = future;
+
+		glBindBuffer( GL_PIXEL_PACK_BUFFER, request.pixelBuffer );
+		glBufferData( GL_PIXEL_PACK_BUFFER, 4L * request.pixelCount, GL_STREAM_READ );
+		glReadBuffer( GL_COLOR_ATTACHMENT0 );
+		glReadPixels( minX, minY, regionWidth, regionHeight, GL_RED_INTEGER, GL_UNSIGNED_INT, 0L );
+		glBindBuffer( GL_PIXEL_PACK_BUFFER, 0 );
+
+		request.fence = glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+		m_Pending.add( request );
+
+		// =================================
+		// restore
+		// =================================
+
+		glBindFramebuffer( GL_DRAW_FRAMEBUFFER, drawFramebuffer );
+		glBindFramebuffer( GL_READ_FRAMEBUFFER, readFramebuffer );
+		glViewport( m_StateBuffer.get(0), m_StateBuffer.get(1), m_StateBuffer.get(2), m_StateBuffer.get(3) );
+
+		if( !depthTest )
+			glDisable( GL_DEPTH_TEST );
+
+		state.restoreState();
+
+		return future;
+	}
+
+
+	/**
+	 * Completes all requests whose read back has finished, never waits for the GPU.
+	 * Has to be called once per frame on the OpenGL thread.
+	 */
+	public void update()
+	{
+		while( !m_Pending.isEmpty() )
+		{
+			Request request = m_Pending.get( 0 );
+			int     status  = glClientWaitSync( request.fence, 0, 0 );
+
+			if( status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED )
+				break;
+
+			m_Pending.remove( 0 );
+			glDeleteSync( request.fence );
+
+			glBindBuffer( GL_PIXEL_PACK_BUFFER, request.pixelBuffer );
+			ByteBuffer data = glMapBufferRange( GL_PIXEL_PACK_BUFFER, 0, 4L * request.pixelCount, GL_MAP_READ_BIT );
+			int[]      ids  = data == null ? new int[0] : collectIDs( data.asIntBuffer(), request.pixelCount );
+			glUnmapBuffer( GL_PIXEL_PACK_BUFFER );
+			glBindBuffer( GL_PIXEL_PACK_BUFFER, 0 );
+
+			m_FreeBuffers.add( request.pixelBuffer );
+			request.future.complete( ids );
+		}
+	}
+
+
+	/**
+	 * @return true if requests are still waiting for the GPU
+	 */
+	public boolean isPending()
+	{
+		return !m_Pending.isEmpty();
+	}
+
+
+	public void freeGLResources()
+	{
+		for( Request request : m_Pending )
+		{
+			glDeleteSync( request.fence );
+			glDeleteBuffers( request.pixelBuffer );
+			request.future.cancel( false );
+		}
+
+		for( int i = 0; i < m_FreeBuffers.size(); ++i )
+			glDeleteBuffers( m_FreeBuffers.get(i) );
+
+		m_Pending.clear();
+		m_FreeBuffers.clear();
+
+		if( m_iFramebuffer != 0 )
+		{
+			glDeleteFramebuffers( m_iFramebuffer );
+			glDeleteRenderbuffers( m_iIDBuffer );
+			glDeleteRenderbuffers( m_iDepthBuffer );
+			glDeleteProgram( m_iProgram );
+		}
+
+		m_iFramebuffer = 0;
+		m_iWidth       = 0;
+		m_iHeight      = 0;
+	}
+
+
+	/**
+	 * Object indices (ID - 1) of the non-background pixels, sorted and without duplicates
+	 */
+	private static int[] collectIDs( IntBuffer pixels, int pixelCount )
+	{
+		int[] ids   = new int[pixelCount];
+		int   count = 0;
+
+		for( int i = 0; i < pixelCount; ++i )
+		{
+			int id = pixels.get( i );
+
+			if( id != 0 )
+				ids[count++] = id - 1;
+		}
+
+		Arrays.sort( ids, 0, count );
+
+		int unique = 0;
+
+		for( int i = 0; i < count; ++i )
+		{
+			if( unique == 0 || ids[unique - 1] != ids[i] )
+				ids[unique++] = ids[i];
+		}
+
+		return Arrays.copyOf( ids, unique );
+	}
+
+
+	/**
+	 * Creates the program on first use and (re)allocates the render target when the size changed
+	 */
+	private void init( int width, int height )
+	{
+		if( m_iProgram == 0 )
+		{
+			m_iProgram = glCreateProgram();
+
+			int vertexShader   = compileShader( VERTEX_SHADER,   GL_VERTEX_SHADER );
+			int fragmentShader = compileShader( FRAGMENT_SHADER, GL_FRAGMENT_SHADER );
+
+			glAttachShader( m_iProgram, vertexShader );
+			glAttachShader( m_iProgram, fragmentShader );
+			glLinkProgram(  m_iProgram );
+			glDeleteShader( vertexShader );
+			glDeleteShader( fragmentShader );
+
+			if( glGetProgrami(m_iProgram, GL_LINK_STATUS) == GL_FALSE )
+				System.err.println( "*ERROR* IDBufferPicker: Can't link the ID program:\n" + glGetProgramInfoLog(m_iProgram) );
+
+			m_iModelLocation      = glGetUniformLocation( m_iProgram, "uModel" );
+			m_iViewLocation       = glGetUniformLocation( m_iProgram, "uView" );
+			m_iProjectionLocation = glGetUniformLocation( m_iProgram, "uProjection" );
+			m_iObjectIDLocation   = glGetUniformLocation( m_iProgram, "uObjectID" );
+		}
+
+		if( m_iFramebuffer != 0 && m_iWidth == width && m_iHeight == height )
+			return;
+
+		if( m_iFramebuffer == 0 )
+		{
+			m_iFramebuffer = glGenFramebuffers();
+			m_iIDBuffer    = glGenRenderbuffers();
+			m_iDepthBuffer = glGenRenderbuffers();
+		}
+
+		m_iWidth  = width;
+		m_iHeight = height;
+
+		glBindRenderbuffer( GL_RENDERBUFFER, m_iIDBuffer );
+		glRenderbufferStorage( GL_RENDERBUFFER, GL_R32UI, width, height );
+		glBindRenderbuffer( GL_RENDERBUFFER, m_iDepthBuffer );
+		glRenderbufferStorage( GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height );
+		glBindRenderbuffer( GL_RENDERBUFFER, 0 );
+
+		glGetIntegerv( GL_FRAMEBUFFER_BINDING, m_StateBuffer );
+		int previousFramebuffer = m_StateBuffer.get( 0 );
+
+		glBindFramebuffer( GL_FRAMEBUFFER, m_iFramebuffer );
+		glFramebufferRenderbuffer( GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, m_iIDBuffer );
+		glFramebufferRenderbuffer( GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT,  GL_RENDERBUFFER, m_iDepthBuffer );
+
+		if( glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE )
+			System.err.println( "*ERROR* IDBufferPicker: ID framebuffer is incomplete" );
+
+		glBindFramebuffer( GL_FRAMEBUFFER, previousFramebuffer );
+	}
+
+
+	private static int compileShader( String source, int type )
+	{
+		int shader = glCreateShader( type );
+
+		glShaderSource( shader, source );
+		glCompileShader( shader );
+
+		if( glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE )
+			System.err.println( "*ERROR* IDBufferPicker: Can't compile the ID shader:\n" + glGetShaderInfoLog(shader) );
+
+		return shader;
+	}
+}
@@ -17,12 +17,14 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import org.lwjgl.BufferUtils;
 
@@ -59,6 +61,32 @@ public final class IOUtils
 		return "resources/" + filename;
 	}
 	
+	
+	/**
+	 * Memory-maps a file read only, so its bytes can be parsed without copying them onto the heap.<br>
+	 * Resources that are not a readable file (e.g. inside a jar on the class path) are read with
+	 * ioResourceToByteBuffer() instead. The mapping stays valid until the returned buffer is garbage collected.
+	 *
+	 * @throws IOException if the resource can't be read or the file is larger than 2GB
+	 */
+	public static ByteBuffer mapResource( String resource ) throws IOException
+	{
+		Path path = Paths.get( resource );
+		
+		if( !Files.isReadable(path) )
+			return ioResourceToByteBuffer( resource, 64 * 1024 );
+		
+		try( FileChannel channel = FileChannel.open(path, StandardOpenOption.READ) )
+		{
+			long size = channel.size();
+			
+			if( size > Integer.MAX_VALUE )
+				throw new IOException( "File is too large to be mapped: " + resource + " (" + size + " bytes)" );
+			
+			return channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+		}
+	}
+	
 	/*
 	 * LWJGLs helper functions
 	 */
@@ -52,7 +52,7 @@ public class IntArrayList
 	
 	public void addAll( int[] values )
 	{
-		this.ensureCapacity( m_iSize + values.length );
+		this.grow( m_iSize + values.length );
 		
 		System.arraycopy( values, 0, m_iValues, m_iSize, values.length );
 		
@@ -60,9 +60,19 @@ public class IntArrayList
 	}
 	
 	
+	public void addAll( int[] values, int offset, int length )
+	{
+		this.grow( m_iSize + length );
+		
+		System.arraycopy( values, offset, m_iValues, m_iSize, length );
+		
+		m_iSize += length;
+	}
+	
+	
 	public void addAll( IntArrayList intArrayList )
 	{
-		this.ensureCapacity( m_iSize + intArrayList.size() );
+		this.grow( m_iSize + intArrayList.size() );
 		
 		System.arraycopy( intArrayList.toArray(), 0, m_iValues, m_iSize, intArrayList.size() );
 		
@@ -95,6 +105,16 @@ public class IntArrayList
 	}
 	
 	
+	/**
+	 * Like ensureCapacity(), but grows by at least c_fGrowthFactor, so appending many small chunks stays linear
+	 */
+	private void grow( int minCapacity )
+	{
+		if( m_iValues.length < minCapacity )
+			this.ensureCapacity( Math.max(minCapacity, (int) (m_iValues.length * c_fGrowthFactor)) );
+	}
+	
+	
 	public int indexOf( int value )
 	{
 		for( int i = 0; i < m_iSize; ++i )
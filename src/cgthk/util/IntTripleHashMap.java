@@ -0,0 +1,144 @@
+package cgthk.util;
+
+import java.util.Arrays;
+
+
+
+/**
+ * Open addressing hash map from three int keys to a non-negative int value.<br>
+ * Keys and values are stored in plain int arrays (linear probing), so lookups and inserts
+ * neither box nor allocate unless the table has to grow.
+ */
+public class IntTripleHashMap
+{
+	private static final float MAX_LOAD_FACTOR = 0.5f;
+	private static final int   EMPTY           = -1;
+
+	private int[] m_iKeys;
+	private int[] m_iValues;
+	private int   m_iMask;
+	private int   m_iSize;
+	private int   m_iResizeThreshold;
+
+
+
+	public IntTripleHashMap()
+	{
+		this( 16 );
+	}
+
+
+	/**
+	 * @param expectedSize Number of entries the map can hold before it has to grow
+	 */
+	public IntTripleHashMap( int expectedSize )
+	{
+		int capacity = Integer.highestOneBit( Math.max(2, (int) (expectedSize / MAX_LOAD_FACTOR)) - 1 ) << 1;
+
+		this.allocate( capacity );
+	}
+
+
+	/**
+	 * @return the value stored for the key or -1 if there is none
+	 */
+	public int get( int key0, int key1, int key2 )
+	{
+		int slot = hash( key0, key1, key2 ) & m_iMask;
+
+		while( m_iValues[slot] != EMPTY )
+		{
+			if( m_iKeys[slot * 3] == key0 && m_iKeys[slot * 3 + 1] == key1 && m_iKeys[slot * 3 + 2] == key2 )
+				return m_iValues[slot];
+
+			slot = (slot + 1) & m_iMask;
+		}
+
+		return EMPTY;
+	}
+
+
+	/**
+	 * Stores value for the key unless the key is already present.
+	 * @param value Has to be >= 0
+	 * @return the value that was already stored for the key or -1 if value has been inserted
+	 */
+	public int putIfAbsent( int key0, int key1, int key2, int value )
+	{
+		assert value >= 0 : "IntTripleHashMap only stores non-negative values, got " + value;
+
+		int slot = hash( key0, key1, key2 ) & m_iMask;
+
+		while( m_iValues[slot] != EMPTY )
+		{
+			if( m_iKeys[slot * 3] == key0 && m_iKeys[slot * 3 + 1] == key1 && m_iKeys[slot * 3 + 2] == key2 )
+				return m_iValues[slot];
+
+			slot = (slot + 1) & m_iMask;
+		}
+
+		m_iKeys[slot * 3]     = key0;
+		m_iKeys[slot * 3 + 1] = key1;
+		m_iKeys[slot * 3 + 2] = key2;
+		m_iValues[slot]       = value;
+
+		if( ++m_iSize > m_iResizeThreshold )
+			this.rehash( m_iValues.length << 1 );
+
+		return EMPTY;
+	}
+
+
+	public int size()
+	{
+		return m_iSize;
+	}
+
+
+	public boolean isEmpty()
+	{
+		return m_iSize == 0;
+	}
+
+
+	public void clear()
+	{
+		Arrays.fill( m_iValues, EMPTY );
+		m_iSize = 0;
+	}
+
+
+	private void allocate( int capacity )
+	{
+		m_iKeys            = new int[capacity * 3];
+		m_iValues          = new int[capacity];
+		m_iMask            = capacity - 1;
+		m_iSize            = 0;
+		m_iResizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+
+		Arrays.fill( m_iValues, EMPTY );
+	}
+
+
+	private void rehash( int capacity )
+	{
+		int[] oldKeys   = m_iKeys;
+		int[] oldValues = m_iValues;
+
+		this.allocate( capacity );
+
+		for( int i = 0; i < oldValues.length; ++i )
+		{
+			if( oldValues[i] != EMPTY )
+				this.putIfAbsent( oldKeys[i * 3], oldKeys[i * 3 + 1], oldKeys[i * 3 + 2], oldValues[i] );
+		}
+	}
+
+
+	private static int hash( int key0, int key1, int key2 )
+	{
+		int hash = key0 * 0x9E3779B1 + key1 * 0x85EBCA77 + key2 * 0xC2B2AE3D;
+
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -178,6 +178,9 @@ public class Main {
 //	            sb.setWindowSize(display_width, display_height);
 	        }
 			
+			// Create the OpenGL objects for assets that finished loading in the background
+			AssetLoader.processUploads(AssetLoader.DEFAULT_FRAME_BUDGET_NANOS);
+			
 			// Update the scene
 			m_sb.update(deltaTime);
 			
@@ -196,12 +199,18 @@ public class Main {
 					windowProperties.m_framebufferWidth, windowProperties.m_framebufferHeight, 
 					windowProperties.m_windowWidth, windowProperties.m_windowHeight);
 			
+			// Fence the streamed geometry of this frame
+			StreamBuffer.endSharedFrame();
+			
 			// Swap the color buffers to display current frame
 			glfwSwapBuffers(s_window); 
 		}
 		
 		// Let Nuklear do some cleanup when program is finished
 		m_nuklearHelper.shutdown();
+		
+		// Stop the asset loader threads
+		AssetLoader.shutdown();
 	}
 	
 	
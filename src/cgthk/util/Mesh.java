@@ -12,11 +12,15 @@ import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL33.*;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 import org.lwjgl.BufferUtils;
 
@@ -29,31 +33,88 @@ import cgthk.math.Vec4;
 
 public class Mesh
 {
+	/** the BVH pads its bounds by this much, the linear bounds pass does the same */
+	private static final float BOUNDS_EPSILON = 0.01f;
+	
+	/** shared staging memory for uploads, only used on the OpenGL thread */
+	private static ByteBuffer s_Staging = BufferUtils.createByteBuffer( 64 * 1024 );
+	
+	/** first of the four locations of the per instance model matrix, one column each */
+	public static final int INSTANCE_MODEL_LOCATION = 3;
+	/** per instance RGBA color */
+	public static final int INSTANCE_COLOR_LOCATION = 7;
+	/** floats per instance in the instance buffer: column major model matrix, then RGBA color */
+	public static final int INSTANCE_FLOATS         = 20;
+	
 	private Mat4                     m_ModelMatrix;
 	private Vec4                     m_DiffuseColor;
 	private HashMap<String, Texture> m_Textures;
+	private ArrayList<String>        m_TextureNames;
+	private ArrayList<Texture>       m_TextureList;
 	
 	private int m_iUsage;
 	private int m_iVAOid;
 	private int m_iIndexBufferID;
 	private int m_iNumIndices;
+	private int m_iIndexBufferSize;
+	private int m_iTransformVersion;
+	private int m_iLayoutVersion;
 	public BVH  m_bvh;
 	
+	private float[]                m_BVHPositions;
+	private int[]                  m_BVHIndices;
+	private CompletableFuture<BVH> m_BVHFuture;
+	private Vec3                   m_Min;
+	private Vec3                   m_Max;
+	private Vec3                   m_BVHMin;
+	private Vec3                   m_BVHMax;
+	
+	private VertexFormat m_VertexFormat;
+	private int          m_iVertexBufferID;
+	private int          m_iVertexBufferSize;
+	
+	private Mesh        m_Geometry;
+	private int         m_iInstanceBufferID;
+	private int         m_iInstanceCount;
+	private FloatBuffer m_InstanceData;
+	
 	IntArrayList m_AttribBuffers;
 	IntArrayList m_AttribComponents;
 	IntArrayList m_AttribLocations;
+	IntArrayList m_AttribSizes;
 	
 	
 	/**
+	 * The BVH is built lazily on the first getBVH() call (or in the background after buildBVHAsync()),
+	 * until then positions and indices are kept by reference, not copied. The bounds are computed right away.
 	 * @param usage Specifies the expected usage pattern of the data store. 
 	 * The symbolic constant must be GL_STREAM_DRAW, GL_STREAM_READ, GL_STREAM_COPY, 
 	 * GL_STATIC_DRAW, GL_STATIC_READ, GL_STATIC_COPY, GL_DYNAMIC_DRAW, GL_DYNAMIC_READ, or GL_DYNAMIC_COPY.
 	 */
 	public Mesh( float[] positions, int[] indices, int usage )
+	{
+		this( (BVH) null, usage );
+		
+		m_BVHPositions = positions;
+		m_BVHIndices   = indices;
+		
+		this.computeBounds( positions, indices );
+	}
+	
+	
+	/**
+	 * @param bvh Prebuilt hierarchy for the mesh, see buildBVH()
+	 * @param usage Specifies the expected usage pattern of the data store. 
+	 * The symbolic constant must be GL_STREAM_DRAW, GL_STREAM_READ, GL_STREAM_COPY, 
+	 * GL_STATIC_DRAW, GL_STATIC_READ, GL_STATIC_COPY, GL_DYNAMIC_DRAW, GL_DYNAMIC_READ, or GL_DYNAMIC_COPY.
+	 */
+	public Mesh( BVH bvh, int usage )
 	{
 		m_ModelMatrix    = new Mat4();
 		m_DiffuseColor   = new Vec4(1.0f);
 		m_Textures       = new HashMap<String, Texture>();         
+		m_TextureNames   = new ArrayList<String>();
+		m_TextureList    = new ArrayList<Texture>();
 		
 		m_iUsage         = usage;
 		m_iVAOid         = 0;
@@ -63,15 +124,119 @@ public class Mesh
 		m_AttribBuffers    = new IntArrayList( 1 );
 		m_AttribComponents = new IntArrayList( 1 );
 		m_AttribLocations  = new IntArrayList( 1 );
+		m_AttribSizes      = new IntArrayList( 1 );
 		
-		m_bvh = new BVH( positions, positions, positions, indices.length / 3, 10.0f, 0.01f );
-		m_bvh.addFaces( indices, 0, indices.length / 3 );
-		m_bvh.update( positions, positions, positions );
+		m_bvh      = bvh;
+		m_Geometry = this;
 		
 		this.rebuildVAO();
 	}
 	
 	
+	/**
+	 * Creates a copy that shares the vertex and index buffers and the BVH of geometry, but has its own VAO,
+	 * model matrix, color and textures. Copies of the same geometry can be drawn as one instanced batch
+	 * (see Scene.groupInstances()). Copies must not change the vertex data, but they follow later changes of
+	 * geometry: the index count is read from geometry and the VAO is rebuilt when geometry's layout changed.
+	 */
+	public Mesh( Mesh geometry )
+	{
+		m_ModelMatrix    = new Mat4( geometry.m_ModelMatrix );
+		m_DiffuseColor   = new Vec4( geometry.m_DiffuseColor );
+		m_Textures       = new HashMap<String, Texture>( geometry.m_Textures );
+		m_TextureNames   = new ArrayList<String>( geometry.m_TextureNames );
+		m_TextureList    = new ArrayList<Texture>( geometry.m_TextureList );
+		
+		m_iUsage         = geometry.m_iUsage;
+		m_iVAOid         = 0;
+		
+		m_AttribBuffers    = new IntArrayList( 1 );
+		m_AttribComponents = new IntArrayList( 1 );
+		m_AttribLocations  = new IntArrayList( 1 );
+		m_AttribSizes      = new IntArrayList( 1 );
+		
+		m_Min      = geometry.m_Min;
+		m_Max      = geometry.m_Max;
+		m_Geometry = geometry.m_Geometry;
+		
+		this.rebuildVAO();
+	}
+	
+	
+	/**
+	 * Returns the bounding volume hierarchy of the mesh and builds it if this hasn't happened yet.
+	 * Waits for the background build if buildBVHAsync() has been called.
+	 * @return null if the mesh has neither a BVH nor triangle data to build one from
+	 */
+	public BVH getBVH()
+	{
+		if( m_Geometry != this )
+			return m_Geometry.getBVH();
+		
+		if( m_bvh == null && m_BVHFuture != null )
+			m_bvh = m_BVHFuture.join();
+		else if( m_bvh == null && m_BVHPositions != null )
+			m_bvh = buildBVH( m_BVHPositions, m_BVHIndices );
+		
+		if( m_bvh != null )
+		{
+			m_BVHFuture    = null;
+			m_BVHPositions = null;
+			m_BVHIndices   = null;
+		}
+		
+		return m_bvh;
+	}
+	
+	
+	/**
+	 * Starts building the BVH on an AssetLoader worker thread, so a later getBVH() doesn't have to wait.
+	 * Does nothing if the BVH already exists or is being built.
+	 */
+	public void buildBVHAsync()
+	{
+		if( m_Geometry != this )
+		{
+			m_Geometry.buildBVHAsync();
+			return;
+		}
+		
+		if( m_bvh != null || m_BVHFuture != null || m_BVHPositions == null )
+			return;
+		
+		float[] positions = m_BVHPositions;
+		int[]   indices   = m_BVHIndices;
+		
+		m_BVHFuture = CompletableFuture.supplyAsync( () -> buildBVH(positions, indices), AssetLoader.workers() );
+	}
+	
+	
+	/**
+	 * @return true if getBVH() would return without building or waiting
+	 */
+	public boolean isBVHReady()
+	{
+		if( m_Geometry != this )
+			return m_Geometry.isBVHReady();
+		
+		return m_bvh != null || (m_BVHFuture != null && m_BVHFuture.isDone());
+	}
+	
+	
+	/**
+	 * Builds the bounding volume hierarchy used for picking and bounds.<br>
+	 * Doesn't need an OpenGL context, so it can run on a loader thread (see AssetLoader).
+	 */
+	public static BVH buildBVH( float[] positions, int[] indices )
+	{
+		BVH bvh = new BVH( positions, positions, positions, indices.length / 3, 10.0f, BOUNDS_EPSILON );
+		bvh.addFaces( indices, 0, indices.length / 3 );
+		bvh.update( positions, positions, positions );
+		
+		return bvh;
+	}
+	
+	
 	/**
 	 * @param usage Specifies the expected usage pattern of the data store. 
 	 * The symbolic constant must be GL_STREAM_DRAW, GL_STREAM_READ, GL_STREAM_COPY, 
@@ -81,6 +246,10 @@ public class Mesh
 	{
 		m_ModelMatrix    = new Mat4();
 		m_DiffuseColor   = new Vec4(1.0f);
+		m_Textures       = new HashMap<String, Texture>();
+		m_TextureNames   = new ArrayList<String>();
+		m_TextureList    = new ArrayList<Texture>();
+		m_Geometry       = this;
 		
 		m_iUsage         = usage;
 		m_iVAOid         = 0;
@@ -90,20 +259,25 @@ public class Mesh
 		m_AttribBuffers    = new IntArrayList( 1 );
 		m_AttribComponents = new IntArrayList( 1 );
 		m_AttribLocations  = new IntArrayList( 1 );
+		m_AttribSizes      = new IntArrayList( 1 );
 		
 		this.rebuildVAO();
 	}
 	
 	
 	/**
+	 * Uploads through a reused staging buffer. If the size didn't change the old storage is orphaned and
+	 * refilled, the VAO is only rebuilt when the attribute is new or its component count changed.
 	 * @param attribLocation The attribute location to set
 	 * @param values
 	 * @param componentsPerAttrib Specifies the number of components per generic vertex attribute. Must be either 1, 2, 3 or 4.
 	 */
 	public void setAttribute( int attribLocation, float[] values, int componentsPerAttrib )
 	{
-		int index    = m_AttribLocations.indexOf( attribLocation );
-		int bufferID = 0;
+		int     index         = m_AttribLocations.indexOf( attribLocation );
+		int     bufferID      = 0;
+		boolean layoutChanged = true;
+		int     previousSize  = -1;
 		
 		if( index < 0 )
 		{
@@ -111,41 +285,177 @@ public class Mesh
 			m_AttribBuffers.add(    bufferID );
 			m_AttribLocations.add(  attribLocation );
 			m_AttribComponents.add( componentsPerAttrib );
+			m_AttribSizes.add(      values.length );
 		}
 		else
 		{
-			bufferID = m_AttribBuffers.get( index );
-			m_AttribLocations.set(  index, attribLocation );
+			bufferID      = m_AttribBuffers.get( index );
+			layoutChanged = m_AttribComponents.get( index ) != componentsPerAttrib;
+			previousSize  = m_AttribSizes.get( index );
+			
 			m_AttribComponents.set( index, componentsPerAttrib );
+			m_AttribSizes.set(      index, values.length );
 		}
 		
-		FloatBuffer attribData = BufferUtils.createFloatBuffer( values.length );
-		attribData.put( values, 0, values.length );
-		attribData.flip();
-		
 		glBindBuffer( GL_ARRAY_BUFFER, bufferID );
-		glBufferData( GL_ARRAY_BUFFER, 0,          m_iUsage );
-		glBufferData( GL_ARRAY_BUFFER, attribData, m_iUsage );
+		upload( GL_ARRAY_BUFFER, stageFloats(values, 0, values.length), previousSize == values.length, m_iUsage );
 		glBindBuffer( GL_ARRAY_BUFFER, 0 );
 		
-		this.rebuildVAO();
+		if( layoutChanged )
+			this.rebuildVAO();
 	}
 	
 	
+	/**
+	 * Overwrites count floats of an existing attribute starting at float offset with glBufferSubData,
+	 * the buffer keeps its size and the VAO is not touched.
+	 * @param values Source, starts at values[0]
+	 */
+	public void updateAttribute( int attribLocation, float[] values, int offset, int count )
+	{
+		int index = m_AttribLocations.indexOf( attribLocation );
+		
+		if( index < 0 || offset < 0 || offset + count > m_AttribSizes.get(index) )
+		{
+			System.err.println( "*Error* Mesh.updateAttribute(): No attribute at location " + attribLocation + " or range out of bounds" );
+			return;
+		}
+		
+		glBindBuffer( GL_ARRAY_BUFFER, m_AttribBuffers.get(index) );
+		glBufferSubData( GL_ARRAY_BUFFER, 4L * offset, stageFloats(values, 0, count) );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+	}
+	
+	
+	/**
+	 * Stores all attributes interleaved in a single vertex buffer, converted to the types of format
+	 * (e.g. VertexFormat.packed()). Attributes set with setAttribute() at the same locations are removed.
+	 * Packs through the shared staging buffer, orphans the storage if the size didn't change and only rebuilds
+	 * the VAO if the layout changed.
+	 * @param attributes One array per element of format, in the same order
+	 */
+	public void setVertices( VertexFormat format, float[]... attributes )
+	{
+		int        size          = format.getPackedSize( attributes );
+		ByteBuffer vertexData    = format.pack( stage(size), attributes );
+		boolean    layoutChanged = !format.hasSameLayout( m_VertexFormat );
+		boolean    sameSize      = m_iVertexBufferSize == size && size > 0;
+		
+		for( VertexFormat.Element element : format.getElements() )
+		{
+			int index = m_AttribLocations.indexOf( element.location );
+			
+			if( index >= 0 )
+			{
+				glDeleteBuffers( m_AttribBuffers.removeAt(index) );
+				m_AttribLocations.removeAt( index );
+				m_AttribComponents.removeAt( index );
+				m_AttribSizes.removeAt( index );
+				layoutChanged = true;
+			}
+		}
+		
+		if( m_iVertexBufferID == 0 )
+		{
+			m_iVertexBufferID = glGenBuffers();
+			layoutChanged     = true;
+		}
+		
+		glBindBuffer( GL_ARRAY_BUFFER, m_iVertexBufferID );
+		upload( GL_ARRAY_BUFFER, vertexData, sameSize, m_iUsage );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+		
+		m_VertexFormat      = format;
+		m_iVertexBufferSize = size;
+		
+		if( layoutChanged )
+			this.rebuildVAO();
+	}
+	
+	
+	/**
+	 * The index buffer is part of the VAO since construction, so only its content is replaced
+	 * (orphaned if the size didn't change).
+	 */
 	public void setIndices( int[] indices )
 	{
-		m_iNumIndices = indices.length;
+		boolean sameSize = m_iIndexBufferSize == indices.length && m_iIndexBufferSize > 0;
+		
+		m_iNumIndices      = indices.length;
+		m_iIndexBufferSize = indices.length;
 		
-		IntBuffer indexBuffer = BufferUtils.createIntBuffer( indices.length );
-		indexBuffer.put( indices, 0, indices.length );
-		indexBuffer.flip();
+		IntBuffer indexData = stage( 4 * indices.length ).asIntBuffer();
+		indexData.put( indices, 0, indices.length );
+		indexData.flip();
 		
+		// binding the element buffer outside of a VAO would change the bound VAO's binding
+		glBindVertexArray( 0 );
 		glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, m_iIndexBufferID );
-		glBufferData( GL_ELEMENT_ARRAY_BUFFER, 0,           m_iUsage );
-		glBufferData( GL_ELEMENT_ARRAY_BUFFER, indexBuffer, m_iUsage );
+		upload( GL_ELEMENT_ARRAY_BUFFER, indexData, sameSize, m_iUsage );
 		glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, 0 );
+	}
+	
+	
+	/**
+	 * Orphans the storage and refills it if the size is the same, otherwise reallocates it
+	 */
+	private static void upload( int target, FloatBuffer data, boolean sameSize, int usage )
+	{
+		if( sameSize )
+		{
+			glBufferData( target, 4L * data.remaining(), usage );
+			glBufferSubData( target, 0, data );
+		}
+		else
+			glBufferData( target, data, usage );
+	}
+	
+	
+	private static void upload( int target, ByteBuffer data, boolean sameSize, int usage )
+	{
+		if( sameSize )
+		{
+			glBufferData( target, data.remaining(), usage );
+			glBufferSubData( target, 0, data );
+		}
+		else
+			glBufferData( target, data, usage );
+	}
+	
+	
+	private static void upload( int target, IntBuffer data, boolean sameSize, int usage )
+	{
+		if( sameSize )
+		{
+			glBufferData( target, 4L * data.remaining(), usage );
+			glBufferSubData( target, 0, data );
+		}
+		else
+			glBufferData( target, data, usage );
+	}
+	
+	
+	private static FloatBuffer stageFloats( float[] values, int offset, int count )
+	{
+		FloatBuffer data = stage( 4 * count ).asFloatBuffer();
+		data.put( values, offset, count );
+		data.flip();
 		
-		this.rebuildVAO();
+		return data;
+	}
+	
+	
+	/**
+	 * The shared staging buffer with at least bytes capacity, position 0
+	 */
+	private static ByteBuffer stage( int bytes )
+	{
+		if( s_Staging.capacity() < bytes )
+			s_Staging = BufferUtils.createByteBuffer( Math.max(bytes, s_Staging.capacity() * 2) );
+		
+		s_Staging.clear();
+		
+		return s_Staging;
 	}
 	
 	
@@ -155,21 +465,105 @@ public class Mesh
 	}
 	
 	
+	/**
+	 * Copies the model matrix into result instead of allocating a new matrix
+	 * @return result
+	 */
+	public Mat4 getModelMatrix( Mat4 result )
+	{
+		return result.set( m_ModelMatrix );
+	}
+	
+	
+	/**
+	 * @return null if the mesh has neither a BVH nor computed bounds (built with setAttribute())
+	 */
 	public Vec3 getMin()
 	{
-		return new Vec3( m_bvh.getMin() );
+		Vec3 min = this.getLocalMin();
+		
+		return min != null ? new Vec3( min ) : null;
 	}
 	
 	
+	/**
+	 * See getMin()
+	 */
 	public Vec3 getMax()
 	{
-		return new Vec3( m_bvh.getMax() );
+		Vec3 max = this.getLocalMax();
+		
+		return max != null ? new Vec3( max ) : null;
+	}
+	
+	
+	/**
+	 * Local bounds without copying for per frame code (culling, sorting), must not be changed.
+	 * Null for an unbounded mesh, see getMin(). Only computed bounds are kept, BVH bounds are read
+	 * on every call because the BVH can be refit (e.g. a cloth).
+	 */
+	Vec3 getLocalMin()
+	{
+		if( m_Min != null )
+			return m_Min;
+		
+		if( m_BVHMin == null )
+			m_BVHMin = new Vec3();
+		
+		return this.getRootBounds( m_BVHMin, 0 );
+	}
+	
+	
+	/**
+	 * See getLocalMin()
+	 */
+	Vec3 getLocalMax()
+	{
+		if( m_Max != null )
+			return m_Max;
+		
+		if( m_BVHMax == null )
+			m_BVHMax = new Vec3();
+		
+		return this.getRootBounds( m_BVHMax, 3 );
+	}
+	
+	
+	/**
+	 * Copies the root node min (offset 0) or max (offset 3) into result, BVH.getMin() would allocate
+	 * @return null if there is no BVH
+	 */
+	private Vec3 getRootBounds( Vec3 result, int offset )
+	{
+		BVH bvh = this.getBVH();
+		
+		if( bvh == null )
+			return null;
+		
+		float[] extrema = bvh.getNodeExtrema().data();
+		int     index   = bvh.getRootNodeID() * 6 + offset;
+		
+		result.x = extrema[index];
+		result.y = extrema[index + 1];
+		result.z = extrema[index + 2];
+		
+		return result;
 	}
 	
 	
 	public void setModelMatrix( Mat4 modelMatrix )
 	{
 		m_ModelMatrix = new Mat4(modelMatrix);
+		m_iTransformVersion++;
+	}
+	
+	
+	/**
+	 * Incremented by every setModelMatrix() call, lets Scene detect moved meshes without comparing matrices
+	 */
+	int getTransformVersion()
+	{
+		return m_iTransformVersion;
 	}
 	
 	
@@ -197,6 +591,16 @@ public class Mesh
 	 */
 	public void setTexture( String name, Texture texture )
 	{
+		int index = m_TextureNames.indexOf( name );
+		
+		if( index < 0 )
+		{
+			m_TextureNames.add( name );
+			m_TextureList.add( texture );
+		}
+		else
+			m_TextureList.set( index, texture );
+		
 		m_Textures.put( name, texture );
 	}
 	
@@ -207,21 +611,148 @@ public class Mesh
 	}
 	
 	
+	/**
+	 * All textures by name, not a copy
+	 */
+	HashMap<String, Texture> getTextures()
+	{
+		return m_Textures;
+	}
+	
+	
+	/**
+	 * Textures in the order they were first set, indexed access doesn't allocate an iterator (see RenderQueue)
+	 */
+	int getTextureCount()
+	{
+		return m_TextureList.size();
+	}
+	
+	
+	String getTextureName( int index )
+	{
+		return m_TextureNames.get( index );
+	}
+	
+	
+	Texture getTextureAt( int index )
+	{
+		return m_TextureList.get( index );
+	}
+	
+	
+	/**
+	 * The VAO to draw with, a copy rebuilds its VAO first if the layout of its geometry changed
+	 */
+	int getVAO()
+	{
+		if( m_Geometry != this && m_iLayoutVersion != m_Geometry.m_iLayoutVersion )
+			this.rebuildVAO();
+		
+		return m_iVAOid;
+	}
+	
+	
+	/**
+	 * The mesh that owns the vertex buffers, this unless the mesh was created as copy
+	 */
+	public Mesh getGeometry()
+	{
+		return m_Geometry;
+	}
+	
+	
+	/**
+	 * Sets the per instance data for drawInstanced(), INSTANCE_FLOATS floats per instance (see putInstance()).
+	 * The instance buffer is created on the first call and orphaned on every update.
+	 */
+	public void setInstanceData( float[] data, int instanceCount )
+	{
+		int length = instanceCount * INSTANCE_FLOATS;
+		
+		if( m_InstanceData == null || m_InstanceData.capacity() < length )
+			m_InstanceData = BufferUtils.createFloatBuffer( Math.max(length, m_InstanceData == null ? 0 : m_InstanceData.capacity() * 2) );
+		
+		m_InstanceData.clear();
+		m_InstanceData.put( data, 0, length );
+		m_InstanceData.flip();
+		
+		boolean created = m_iInstanceBufferID == 0;
+		
+		if( created )
+			m_iInstanceBufferID = glGenBuffers();
+		
+		glBindBuffer( GL_ARRAY_BUFFER, m_iInstanceBufferID );
+		glBufferData( GL_ARRAY_BUFFER, (long) m_InstanceData.capacity() * 4, GL_STREAM_DRAW );
+		glBufferSubData( GL_ARRAY_BUFFER, 0, m_InstanceData );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+		
+		m_iInstanceCount = instanceCount;
+		
+		if( created )
+			this.rebuildVAO();
+	}
+	
+	
+	/**
+	 * Writes the model matrix and color of one instance into an instance data array
+	 */
+	public static void putInstance( float[] data, int instance, Mat4 model, Vec4 color )
+	{
+		int offset = instance * INSTANCE_FLOATS;
+		
+		data[offset]      = model.m00; data[offset + 1]  = model.m10; data[offset + 2]  = model.m20; data[offset + 3]  = model.m30;
+		data[offset + 4]  = model.m01; data[offset + 5]  = model.m11; data[offset + 6]  = model.m21; data[offset + 7]  = model.m31;
+		data[offset + 8]  = model.m02; data[offset + 9]  = model.m12; data[offset + 10] = model.m22; data[offset + 11] = model.m32;
+		data[offset + 12] = model.m03; data[offset + 13] = model.m13; data[offset + 14] = model.m23; data[offset + 15] = model.m33;
+		
+		data[offset + 16] = color.x;
+		data[offset + 17] = color.y;
+		data[offset + 18] = color.z;
+		data[offset + 19] = color.w;
+	}
+	
+	
+	public int getInstanceCount()
+	{
+		return m_iInstanceCount;
+	}
+	
+	
 	/**
 	 * Deletes all internally created OpenGL Resources (vertex and index buffers).<br>
 	 * Externally created buffers set via setVertexBuffer() will not be deleted and are expected to be freed elsewhere.
 	 */
 	public void freeGLResources()
 	{
+		if( m_iInstanceBufferID != 0 )
+			glDeleteBuffers( m_iInstanceBufferID );
+		
+		m_iInstanceBufferID = 0;
+		m_iInstanceCount    = 0;
+		
+		glDeleteVertexArrays( m_iVAOid );
+		
+		// the buffers of copies belong to the geometry
+		if( m_Geometry != this )
+			return;
+		
 		for( int i = 0; i < m_AttribBuffers.size(); ++i )
 			glDeleteBuffers( m_AttribBuffers.get(i) );
 		
 		m_AttribBuffers.clear();
 		m_AttribLocations.clear();
 		m_AttribComponents.clear();
+		m_AttribSizes.clear();
+		
+		if( m_iVertexBufferID != 0 )
+			glDeleteBuffers( m_iVertexBufferID );
+		
+		m_iVertexBufferID   = 0;
+		m_iVertexBufferSize = 0;
+		m_VertexFormat      = null;
 		
 		glDeleteBuffers( m_iIndexBufferID );
-		glDeleteVertexArrays( m_iVAOid );
 	}
 	
 	
@@ -230,8 +761,20 @@ public class Mesh
 	 */
 	public void draw()
 	{
-		glBindVertexArray( m_iVAOid );
-		glDrawElements( GL_TRIANGLES, m_iNumIndices, GL_UNSIGNED_INT, 0 );
+		glBindVertexArray( this.getVAO() );
+		glDrawElements( GL_TRIANGLES, m_Geometry.m_iNumIndices, GL_UNSIGNED_INT, 0 );
+		glBindVertexArray( 0 );
+	}
+	
+	
+	/**
+	 * Draws getInstanceCount() instances with one call, the shader reads the model matrix and color from
+	 * INSTANCE_MODEL_LOCATION and INSTANCE_COLOR_LOCATION instead of uniforms.
+	 */
+	public void drawInstanced()
+	{
+		glBindVertexArray( this.getVAO() );
+		glDrawElementsInstanced( GL_TRIANGLES, m_Geometry.m_iNumIndices, GL_UNSIGNED_INT, 0, m_iInstanceCount );
 		glBindVertexArray( 0 );
 	}
 	
@@ -244,12 +787,21 @@ public class Mesh
 	 */
 	public void draw( int mode )
 	{
-		glBindVertexArray( m_iVAOid );
-		glDrawElements( mode, m_iNumIndices, GL_UNSIGNED_INT, 0 );
+		glBindVertexArray( this.getVAO() );
+		glDrawElements( mode, m_Geometry.m_iNumIndices, GL_UNSIGNED_INT, 0 );
 		glBindVertexArray( 0 );
 	}
 	
 	
+	/**
+	 * Draws the indexed triangles without binding the VAO, the caller has to bind getVAO() (see RenderQueue)
+	 */
+	void drawBound()
+	{
+		glDrawElements( GL_TRIANGLES, m_Geometry.m_iNumIndices, GL_UNSIGNED_INT, 0 );
+	}
+	
+	
 	/**
 	 * Draws a specific range of indices using the given mode;
 	 * @param mode GL_POINTS, GL_LINE_STRIP, GL_LINE_LOOP, GL_LINES, GL_LINE_STRIP_ADJACENCY, 
@@ -261,27 +813,95 @@ public class Mesh
 	public void drawRange( int mode, int indexOffset, int indexCount )
 	{
 		long byteOffset = (long) indexOffset * 4;
-		glBindVertexArray( m_iVAOid );
+		glBindVertexArray( this.getVAO() );
 		glDrawElements( mode, indexCount, GL_UNSIGNED_INT, byteOffset );
 		glBindVertexArray( 0 );
 	}
 	
 	
+	/**
+	 * Bounds of all indexed positions, padded like the BVH bounds so both give the same result
+	 */
+	private void computeBounds( float[] positions, int[] indices )
+	{
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		
+		for( int i = 0; i < indices.length; ++i )
+		{
+			int   vertex = indices[i] * 3;
+			float x      = positions[vertex];
+			float y      = positions[vertex + 1];
+			float z      = positions[vertex + 2];
+			
+			minX = Math.min( minX, x );
+			minY = Math.min( minY, y );
+			minZ = Math.min( minZ, z );
+			maxX = Math.max( maxX, x );
+			maxY = Math.max( maxY, y );
+			maxZ = Math.max( maxZ, z );
+		}
+		
+		m_Min = new Vec3( minX - BOUNDS_EPSILON, minY - BOUNDS_EPSILON, minZ - BOUNDS_EPSILON );
+		m_Max = new Vec3( maxX + BOUNDS_EPSILON, maxY + BOUNDS_EPSILON, maxZ + BOUNDS_EPSILON );
+	}
+	
+	
+	/**
+	 * Recreates the VAO from the buffers of the geometry (this mesh unless it's a copy) and the own instance buffer
+	 */
 	private void rebuildVAO()
 	{
+		Mesh geometry = m_Geometry;
+		
 		if( m_iVAOid != 0 )
 			glDeleteVertexArrays( m_iVAOid );
 		
 		m_iVAOid = glGenVertexArrays();
 		
+		if( geometry == this )
+			m_iLayoutVersion++;
+		else
+			m_iLayoutVersion = geometry.m_iLayoutVersion;
+		
 		glBindVertexArray( m_iVAOid );
-		glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, m_iIndexBufferID );
+		glBindBuffer( GL_ELEMENT_ARRAY_BUFFER, geometry.m_iIndexBufferID );
 		
-		for( int i = 0; i < m_AttribBuffers.size(); ++i )
+		for( int i = 0; i < geometry.m_AttribBuffers.size(); ++i )
+		{
+			glBindBuffer( GL_ARRAY_BUFFER, geometry.m_AttribBuffers.get(i) );
+			glEnableVertexAttribArray( geometry.m_AttribLocations.get(i) );
+			glVertexAttribPointer( geometry.m_AttribLocations.get(i), geometry.m_AttribComponents.get(i), GL_FLOAT, false, 0, 0 );
+		}
+		
+		if( geometry.m_VertexFormat != null )
+		{
+			glBindBuffer( GL_ARRAY_BUFFER, geometry.m_iVertexBufferID );
+			
+			for( VertexFormat.Element element : geometry.m_VertexFormat.getElements() )
+			{
+				glEnableVertexAttribArray( element.location );
+				glVertexAttribPointer( element.location, element.getPointerComponents(), element.type, element.normalized,
+									   geometry.m_VertexFormat.getStride(), element.offset );
+			}
+		}
+		
+		if( m_iInstanceBufferID != 0 )
 		{
-			glBindBuffer( GL_ARRAY_BUFFER, m_AttribBuffers.get(i) );
-			glEnableVertexAttribArray( m_AttribLocations.get(i) );
-			glVertexAttribPointer( m_AttribLocations.get(i), m_AttribComponents.get(i), GL_FLOAT, false, 0, 0 );
+			int stride = INSTANCE_FLOATS * 4;
+			
+			glBindBuffer( GL_ARRAY_BUFFER, m_iInstanceBufferID );
+			
+			for( int column = 0; column < 4; ++column )
+			{
+				glEnableVertexAttribArray( INSTANCE_MODEL_LOCATION + column );
+				glVertexAttribPointer( INSTANCE_MODEL_LOCATION + column, 4, GL_FLOAT, false, stride, column * 16L );
+				glVertexAttribDivisor( INSTANCE_MODEL_LOCATION + column, 1 );
+			}
+			
+			glEnableVertexAttribArray( INSTANCE_COLOR_LOCATION );
+			glVertexAttribPointer( INSTANCE_COLOR_LOCATION, 4, GL_FLOAT, false, stride, 64L );
+			glVertexAttribDivisor( INSTANCE_COLOR_LOCATION, 1 );
 		}
 
 		glBindVertexArray( 0 );
@@ -12,6 +12,7 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
 import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER;
 import static org.lwjgl.opengl.GL30.glBindFramebuffer;
 import static org.lwjgl.stb.STBTruetype.*;
@@ -68,7 +69,8 @@ public class NuklearHelper {
 	        .flip();
 	    }
 		
-		private int vbo, vao, ebo;
+		private int vao;
+	    private int attrib_pos, attrib_uv, attrib_col;
 	    private int prog;
 	    private int vert_shdr;
 	    private int frag_shdr;
@@ -249,27 +251,19 @@ public class NuklearHelper {
 
 	        uniform_tex = glGetUniformLocation(prog, "Texture");
 	        uniform_proj = glGetUniformLocation(prog, "ProjMtx");
-	        int attrib_pos = glGetAttribLocation(prog, "Position");
-	        int attrib_uv  = glGetAttribLocation(prog, "TexCoord");
-	        int attrib_col = glGetAttribLocation(prog, "Color");
+	        attrib_pos = glGetAttribLocation(prog, "Position");
+	        attrib_uv  = glGetAttribLocation(prog, "TexCoord");
+	        attrib_col = glGetAttribLocation(prog, "Color");
 
 	        {
-	            // buffer setup
-	            vbo = glGenBuffers();
-	            ebo = glGenBuffers();
+	            // buffer setup, the vertices are streamed through StreamBuffer.shared() (see render())
 	            vao = glGenVertexArrays();
 
 	            glBindVertexArray(vao);
-	            glBindBuffer(GL_ARRAY_BUFFER, vbo);
-	            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
 
 	            glEnableVertexAttribArray(attrib_pos);
 	            glEnableVertexAttribArray(attrib_uv);
 	            glEnableVertexAttribArray(attrib_col);
-
-	            glVertexAttribPointer(attrib_pos, 2, GL_FLOAT, false, 20, 0);
-	            glVertexAttribPointer(attrib_uv, 2, GL_FLOAT, false, 20, 8);
-	            glVertexAttribPointer(attrib_col, 4, GL_UNSIGNED_BYTE, true, 20, 16);
 	        }
 
 	        {
@@ -419,17 +413,13 @@ public class NuklearHelper {
 	        {
 	            // convert from command queue into draw list and draw to screen
 
-	            // allocate vertex and element buffer
-	            glBindVertexArray(vao);
-	            glBindBuffer(GL_ARRAY_BUFFER, vbo);
-	            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ebo);
-
-	            glBufferData(GL_ARRAY_BUFFER, max_vertex_buffer, GL_STREAM_DRAW);
-	            glBufferData(GL_ELEMENT_ARRAY_BUFFER, max_element_buffer, GL_STREAM_DRAW);
+	            // reserve vertex and element memory in the ring buffer of this frame
+	            StreamBuffer stream  = StreamBuffer.shared();
+	            ByteBuffer   mapping = stream.map(max_vertex_buffer + max_element_buffer, 4);
 
-	            // load draw vertices & elements directly into vertex + element buffer
-	            ByteBuffer vertices = glMapBuffer(GL_ARRAY_BUFFER, GL_WRITE_ONLY, max_vertex_buffer, null);
-	            ByteBuffer elements = glMapBuffer(GL_ELEMENT_ARRAY_BUFFER, GL_WRITE_ONLY, max_element_buffer, null);
+	            // load draw vertices & elements directly into the mapped memory
+	            ByteBuffer vertices = mapping.slice(0, max_vertex_buffer);
+	            ByteBuffer elements = mapping.slice(max_vertex_buffer, max_element_buffer);
 	            try (MemoryStack stack = stackPush()) {
 	                // fill convert configuration
 	                NkConvertConfig config = NkConvertConfig.callocStack(stack)
@@ -454,14 +444,21 @@ public class NuklearHelper {
 	                nk_buffer_init_fixed(ebuf, elements/*, max_element_buffer*/);
 	                nk_convert(ctx, cmds, vbuf, ebuf, config);
 	            }
-	            glUnmapBuffer(GL_ELEMENT_ARRAY_BUFFER);
-	            glUnmapBuffer(GL_ARRAY_BUFFER);
+	            long base = stream.commit();
+
+	            glBindVertexArray(vao);
+	            glBindBuffer(GL_ARRAY_BUFFER, stream.getBufferID());
+	            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, stream.getBufferID());
+
+	            glVertexAttribPointer(attrib_pos, 2, GL_FLOAT, false, 20, base);
+	            glVertexAttribPointer(attrib_uv, 2, GL_FLOAT, false, 20, base + 8);
+	            glVertexAttribPointer(attrib_col, 4, GL_UNSIGNED_BYTE, true, 20, base + 16);
 	            
 	            // iterate over and execute each draw command
 	            float fb_scale_x = (float)display_width / (float)width;
 	            float fb_scale_y = (float)display_height / (float)height;
 	            
-	            long offset = NULL;
+	            long offset = base + max_vertex_buffer;
 	            for (NkDrawCommand cmd = nk__draw_begin(ctx, cmds); cmd != null; cmd = nk__draw_next(cmd, cmds, ctx)) {
 	                if (cmd.elem_count() == 0) {
 	                    continue;
@@ -491,8 +488,7 @@ public class NuklearHelper {
 	        glDeleteProgram(prog);
 	        glDeleteTextures(default_font.texture().id());
 	        glDeleteTextures(null_texture.texture().id());
-	        glDeleteBuffers(vbo);
-	        glDeleteBuffers(ebo);
+	        glDeleteVertexArrays(vao);
 	        nk_buffer_free(cmds);
 	    }
 
@@ -0,0 +1,205 @@
+package cgthk.util;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cgthk.math.Vec3;
+
+
+
+/**
+ * Compares the byte based OBJ parser of OBJContainer.loadFile() with the old
+ * BufferedReader/String.split() parser on all meshes in resources/Meshes.
+ * The parallel column uses LoadOptions.setParallel( true ) with PARALLEL_CHUNK_SIZE, the cached column
+ * reads the binary OBJCache file (written to a temporary directory before the first run). A generated file with
+ * MATERIAL_SWITCHES usemtl statements checks that stitching the faces of one group stays linear.<br>
+ * Does not need an OpenGL context, run it from the project root: java cgthk.util.OBJBenchmark [iterations]
+ */
+public class OBJBenchmark
+{
+	private static final int WARMUP_ITERATIONS   = 20;
+	private static final int DEFAULT_ITERATIONS  = 20;
+	private static final int PARALLEL_CHUNK_SIZE = 256 * 1024;
+	private static final int MATERIAL_SWITCHES   = 200000;
+
+
+	public static void main( String[] args ) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_ITERATIONS;
+
+		File[] files = new File( IOUtils.pathOf("Meshes") ).listFiles( (dir, name) -> name.toLowerCase().endsWith(".obj") );
+
+		if( files == null || files.length == 0 )
+		{
+			System.err.println( "*ERROR* OBJBenchmark: No OBJ files found in " + IOUtils.pathOf("Meshes") );
+			return;
+		}
+
+		Arrays.sort( files );
+
+		System.out.println( "OBJ parser benchmark, " + iterations + " iterations per file (times in ms, allocations in KB per load)" );
+		System.out.println();
+		System.out.println( String.format("%-16s %10s %10s %10s %10s %10s %10s %8s  %s", "file", "legacy", "bytes", "parallel", "cached", "legacy KB", "bytes KB", "speedup", "output") );
+
+		OBJContainer.LoadOptions parallelOptions = new OBJContainer.LoadOptions().setParallel( true ).setChunkSize( PARALLEL_CHUNK_SIZE );
+		OBJContainer.LoadOptions defaultOptions  = new OBJContainer.LoadOptions();
+		Path                     cacheDirectory  = Files.createTempDirectory( "objcache" );
+
+		for( File file : files )
+		{
+			String filename = "Meshes/" + file.getName();
+
+			OBJContainer reference = OBJContainer.loadFileLegacy( filename, new Vec3(0.0f), new Vec3(1.0f) );
+			boolean      identical = compare( reference, OBJContainer.loadFile(filename) ) &&
+									 compare( reference, OBJContainer.loadFile(filename, parallelOptions) ) &&
+									 compare( reference, OBJCache.loadFile(filename, defaultOptions, cacheDirectory) ) &&
+									 compare( reference, OBJCache.loadFile(filename, defaultOptions, cacheDirectory) );
+
+			for( int i = 0; i < WARMUP_ITERATIONS; ++i )
+			{
+				OBJContainer.loadFileLegacy( filename, new Vec3(0.0f), new Vec3(1.0f) );
+				OBJContainer.loadFile( filename );
+				OBJContainer.loadFile( filename, parallelOptions );
+				OBJCache.loadFile( filename, defaultOptions, cacheDirectory );
+			}
+
+			long legacyAllocated = allocatedBytes();
+			long legacyTime      = System.nanoTime();
+
+			for( int i = 0; i < iterations; ++i )
+				OBJContainer.loadFileLegacy( filename, new Vec3(0.0f), new Vec3(1.0f) );
+
+			legacyTime      = System.nanoTime() - legacyTime;
+			legacyAllocated = allocatedBytes() - legacyAllocated;
+
+			long bytesAllocated = allocatedBytes();
+			long bytesTime      = System.nanoTime();
+
+			for( int i = 0; i < iterations; ++i )
+				OBJContainer.loadFile( filename );
+
+			bytesTime      = System.nanoTime() - bytesTime;
+			bytesAllocated = allocatedBytes() - bytesAllocated;
+
+			long parallelTime = System.nanoTime();
+
+			for( int i = 0; i < iterations; ++i )
+				OBJContainer.loadFile( filename, parallelOptions );
+
+			parallelTime = System.nanoTime() - parallelTime;
+
+			long cachedTime = System.nanoTime();
+
+			for( int i = 0; i < iterations; ++i )
+				OBJCache.loadFile( filename, defaultOptions, cacheDirectory );
+
+			cachedTime = System.nanoTime() - cachedTime;
+
+			System.out.println( String.format("%-16s %10.3f %10.3f %10.3f %10.3f %10d %10d %7.2fx  %s",
+											  file.getName(),
+											  legacyTime   * 1e-6 / iterations,
+											  bytesTime    * 1e-6 / iterations,
+											  parallelTime * 1e-6 / iterations,
+											  cachedTime   * 1e-6 / iterations,
+											  legacyAllocated / 1024 / iterations,
+											  bytesAllocated  / 1024 / iterations,
+											  (double) legacyTime / bytesTime,
+											  identical ? "identical" : "DIFFERENT") );
+		}
+
+		benchmarkMaterialSwitches( parallelOptions );
+	}
+
+
+	/**
+	 * One group with a usemtl line before every face: the faces are stitched in one small chunk per statement,
+	 * which has to stay linear in the number of faces. Timed once, the legacy loader takes seconds.
+	 */
+	private static void benchmarkMaterialSwitches( OBJContainer.LoadOptions parallelOptions ) throws Exception
+	{
+		Path          file = Files.createTempFile( "usemtl", ".obj" );
+		StringBuilder obj  = new StringBuilder( MATERIAL_SWITCHES * 24 );
+
+		obj.append( "v 0 0 0\nv 1 0 0\nv 0 1 0\nvn 0 0 1\n" );
+
+		for( int i = 0; i < MATERIAL_SWITCHES; ++i )
+			obj.append( "usemtl m" ).append( i & 1 ).append( "\nf 1//1 2//1 3//1\n" );
+
+		Files.write( file, obj.toString().getBytes(StandardCharsets.US_ASCII) );
+		file.toFile().deleteOnExit();
+
+		// loadFile() resolves filenames relative to the resources folder
+		String filename = Paths.get( IOUtils.pathOf("") ).toAbsolutePath().relativize( file.toAbsolutePath() ).toString();
+
+		long legacyTime = System.nanoTime();
+		OBJContainer reference = OBJContainer.loadFileLegacy( filename, new Vec3(0.0f), new Vec3(1.0f) );
+		legacyTime = System.nanoTime() - legacyTime;
+
+		long bytesTime = System.nanoTime();
+		OBJContainer bytes = OBJContainer.loadFile( filename );
+		bytesTime = System.nanoTime() - bytesTime;
+
+		long parallelTime = System.nanoTime();
+		OBJContainer parallel = OBJContainer.loadFile( filename, parallelOptions );
+		parallelTime = System.nanoTime() - parallelTime;
+
+		System.out.println();
+		System.out.println( String.format("%d usemtl switches: legacy %.1f ms, bytes %.1f ms, parallel %.1f ms  %s",
+										  MATERIAL_SWITCHES,
+										  legacyTime   * 1e-6,
+										  bytesTime    * 1e-6,
+										  parallelTime * 1e-6,
+										  compare(reference, bytes) && compare(reference, parallel) ? "identical" : "DIFFERENT") );
+	}
+
+
+	private static boolean compare( OBJContainer expected, OBJContainer actual )
+	{
+		ArrayList<OBJGroup> expectedGroups = expected.getGroups();
+		ArrayList<OBJGroup> actualGroups   = actual.getGroups();
+
+		if( expectedGroups.size() != actualGroups.size() )
+			return false;
+
+		for( int i = 0; i < expectedGroups.size(); ++i )
+		{
+			OBJGroup left  = expectedGroups.get( i );
+			OBJGroup right = actualGroups.get( i );
+
+			if( !Arrays.equals(left.getPositions(), right.getPositions()) ||
+				!Arrays.equals(left.getNormals(),   right.getNormals())   ||
+				!Arrays.equals(left.getTexCoords(), right.getTexCoords()) ||
+				!Arrays.equals(left.getIndices(),   right.getIndices()) )
+				return false;
+
+			if( (left.getMaterial() == null) != (right.getMaterial() == null) )
+				return false;
+
+			if( left.getMaterial() != null && !left.getMaterial().getDiffuseColor().equals(right.getMaterial().getDiffuseColor()) )
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Bytes allocated by the current thread so far, or 0 if the JVM can't measure it
+	 */
+	private static long allocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if( bean instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+
+		return 0;
+	}
+}
@@ -0,0 +1,438 @@
+package cgthk.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32;
+
+import cgthk.math.Vec3;
+
+
+
+/**
+ * Binary cache for the finished OBJGroups of an OBJ file.<br>
+ * OBJCache.loadFile() maps the cache file and copies the vertex and index arrays out of it with bulk reads,
+ * so no text parsing or vertex deduplication is needed. A cache file is only used if the OBJ file and all of
+ * its MTL files still have the same size and either the same modification time or the same content hash (CRC32)
+ * as when the cache was written, and if it was written with the same translation and scale. A MTL file that was
+ * missing when the cache was written (stored with size -1) has to be still missing. Otherwise the OBJ
+ * file is parsed with OBJContainer.loadFile() and the cache is rewritten, unless the OBJ file couldn't be read.
+ *
+ * <pre>
+ * int    magic, version
+ * float  translation.xyz, scale.xyz
+ * int    dependency count  { string path, long size (-1 if missing), long modified, long crc }
+ * int    material count    { float ambient.xyz, diffuse.xyz, specular.xyz, specular, string diffuse, specular, bump texture }
+ * int    group count       { int material index (-1 for none), float[] positions, normals, texCoords, int[] indices }
+ *
+ * arrays are stored as int length followed by the values, strings as int length (-1 for null) followed by UTF-8 bytes,
+ * everything is little endian
+ * </pre>
+ */
+public final class OBJCache
+{
+	public static final String DEFAULT_DIRECTORY = "cache";
+
+	private static final int MAGIC   = 0x4A424F43; // "COBJ"
+	private static final int VERSION = 2;
+
+	/** dependency size of a source file that didn't exist when the cache was written */
+	private static final long MISSING = -1;
+
+
+
+	public static OBJContainer loadFile( String filepath )
+	{
+		return OBJCache.loadFile( filepath, new OBJContainer.LoadOptions() );
+	}
+
+
+	/**
+	 * @param filepath Path relative to the resources folder, e.g. "Meshes/bench.obj"
+	 * @param options Used to parse the OBJ file if the cache is missing or outdated
+	 */
+	public static OBJContainer loadFile( String filepath, OBJContainer.LoadOptions options )
+	{
+		return OBJCache.loadFile( filepath, options, Paths.get(DEFAULT_DIRECTORY) );
+	}
+
+
+	public static OBJContainer loadFile( String filepath, OBJContainer.LoadOptions options, Path cacheDirectory )
+	{
+		Path cacheFile = cacheDirectory.resolve( filepath + ".bin" );
+
+		if( Files.isReadable(cacheFile) )
+		{
+			try
+			{
+				OBJContainer container = OBJCache.read( cacheFile, options.getTranslation(), options.getScale() );
+
+				if( container != null )
+					return container;
+			}
+			catch( Exception e )
+			{
+				System.err.println( "*Error* Can't read OBJ cache file, reloading: " + cacheFile );
+				e.printStackTrace();
+			}
+		}
+
+		OBJContainer container = OBJContainer.loadFile( filepath, options );
+
+		if( container.isFailed() )
+			return container;
+
+		ArrayList<String> dependencies = new ArrayList<String>();
+		dependencies.add( IOUtils.pathOf(filepath) );
+		dependencies.addAll( container.getMaterialLibraries() );
+
+		try
+		{
+			OBJCache.write( cacheFile, container, dependencies, options.getTranslation(), options.getScale() );
+		}
+		catch( Exception e )
+		{
+			System.err.println( "*Error* Can't write OBJ cache file: " + cacheFile );
+			e.printStackTrace();
+		}
+
+		return container;
+	}
+
+
+	/**
+	 * Writes the groups of the container into cacheFile. The file is written to a unique temporary file
+	 * next to the target first and then moved, so readers never see a partially written cache and
+	 * concurrent writers of the same cache don't write into each other's file.
+	 *
+	 * @param dependencies Source files (OBJ and MTL) the cache is validated against
+	 */
+	public static void write( Path cacheFile, OBJContainer container, ArrayList<String> dependencies, Vec3 translation, Vec3 scale ) throws IOException
+	{
+		ArrayList<OBJGroup>                   groups          = container.getGroups();
+		ArrayList<OBJMaterial>                materials       = new ArrayList<OBJMaterial>();
+		IdentityHashMap<OBJMaterial, Integer> materialIndices = new IdentityHashMap<OBJMaterial, Integer>();
+
+		for( OBJGroup group : groups )
+		{
+			OBJMaterial material = group.getMaterial();
+
+			if( material != null && !materialIndices.containsKey(material) )
+			{
+				materialIndices.put( material, materials.size() );
+				materials.add( material );
+			}
+		}
+
+		// =================================
+		// compute the size of the file first
+		// =================================
+
+		byte[][] dependencyPaths = new byte[dependencies.size()][];
+		long     size            = 4 + 4 + 6 * 4 + 4;
+
+		for( int i = 0; i < dependencies.size(); ++i )
+		{
+			dependencyPaths[i] = dependencies.get( i ).getBytes( StandardCharsets.UTF_8 );
+			size += 4 + dependencyPaths[i].length + 3 * 8;
+		}
+
+		size += 4;
+
+		for( OBJMaterial material : materials )
+		{
+			size += 10 * 4;
+			size += stringSize( material.getDiffuseTextureName() );
+			size += stringSize( material.getSpecularTextureName() );
+			size += stringSize( material.getBumpTextureName() );
+		}
+
+		size += 4;
+
+		for( OBJGroup group : groups )
+		{
+			size += 4;
+			size += 4 + 4L * group.getPositions().length;
+			size += 4 + 4L * group.getNormals().length;
+			size += 4 + 4L * group.getTexCoords().length;
+			size += 4 + 4L * group.getIndices().length;
+		}
+
+		if( size > Integer.MAX_VALUE )
+			throw new IOException( "OBJ cache would be larger than 2GB" );
+
+		ByteBuffer buffer = ByteBuffer.allocate( (int) size ).order( ByteOrder.LITTLE_ENDIAN );
+
+		buffer.putInt( MAGIC );
+		buffer.putInt( VERSION );
+		putVec3( buffer, translation );
+		putVec3( buffer, scale );
+
+		buffer.putInt( dependencies.size() );
+
+		for( int i = 0; i < dependencies.size(); ++i )
+		{
+			Path dependency = Paths.get( dependencies.get(i) );
+
+			buffer.putInt( dependencyPaths[i].length );
+			buffer.put( dependencyPaths[i] );
+
+			// e.g. a mtllib that doesn't exist, the cache stays valid as long as the file doesn't appear
+			if( !Files.isReadable(dependency) )
+			{
+				buffer.putLong( MISSING );
+				buffer.putLong( 0 );
+				buffer.putLong( 0 );
+				continue;
+			}
+
+			buffer.putLong( Files.size(dependency) );
+			buffer.putLong( Files.getLastModifiedTime(dependency).toMillis() );
+			buffer.putLong( hash(dependency) );
+		}
+
+		buffer.putInt( materials.size() );
+
+		for( OBJMaterial material : materials )
+		{
+			putVec3( buffer, material.getAmbientColor() );
+			putVec3( buffer, material.getDiffuseColor() );
+			putVec3( buffer, material.getSpecularColor() );
+			buffer.putFloat( material.getSpecular() );
+			putString( buffer, material.getDiffuseTextureName() );
+			putString( buffer, material.getSpecularTextureName() );
+			putString( buffer, material.getBumpTextureName() );
+		}
+
+		buffer.putInt( groups.size() );
+
+		for( OBJGroup group : groups )
+		{
+			buffer.putInt( group.getMaterial() == null ? -1 : materialIndices.get(group.getMaterial()) );
+
+			putFloats( buffer, group.getPositions() );
+			putFloats( buffer, group.getNormals() );
+			putFloats( buffer, group.getTexCoords() );
+			putInts(   buffer, group.getIndices() );
+		}
+
+		buffer.flip();
+
+		Path directory = cacheFile.toAbsolutePath().getParent();
+
+		Files.createDirectories( directory );
+
+		Path temporaryFile = Files.createTempFile( directory, cacheFile.getFileName().toString(), ".tmp" );
+
+		try
+		{
+			try( FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) )
+			{
+				while( buffer.hasRemaining() )
+					channel.write( buffer );
+			}
+
+			Files.move( temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch( IOException e )
+		{
+			Files.deleteIfExists( temporaryFile );
+			throw e;
+		}
+	}
+
+
+	/**
+	 * Memory-maps cacheFile and reads the groups out of it.
+	 * @return null if the cache is from another version, was written with another translation or scale,
+	 * or one of its source files changed
+	 */
+	public static OBJContainer read( Path cacheFile, Vec3 translation, Vec3 scale ) throws IOException
+	{
+		try( FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ) )
+		{
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+
+			if( buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+				return null;
+
+			if( !getVec3(buffer).equals(translation) || !getVec3(buffer).equals(scale) )
+				return null;
+
+			int dependencyCount = buffer.getInt();
+
+			for( int i = 0; i < dependencyCount; ++i )
+			{
+				Path dependency = Paths.get( getString(buffer) );
+				long size       = buffer.getLong();
+				long modified   = buffer.getLong();
+				long crc        = buffer.getLong();
+
+				if( size == MISSING )
+				{
+					if( Files.exists(dependency) )
+						return null;
+
+					continue;
+				}
+
+				if( !Files.isReadable(dependency) || Files.size(dependency) != size )
+					return null;
+
+				// a touched but unchanged file (e.g. after a checkout) is still valid
+				if( Files.getLastModifiedTime(dependency).toMillis() != modified && hash(dependency) != crc )
+					return null;
+			}
+
+			int           materialCount = buffer.getInt();
+			OBJMaterial[] materials     = new OBJMaterial[materialCount];
+
+			for( int i = 0; i < materialCount; ++i )
+			{
+				Vec3  ambientColor  = getVec3( buffer );
+				Vec3  diffuseColor  = getVec3( buffer );
+				Vec3  specularColor = getVec3( buffer );
+				float specular      = buffer.getFloat();
+
+				materials[i] = new OBJMaterial( ambientColor,
+												diffuseColor,
+												specularColor,
+												specular,
+												getString(buffer),
+												getString(buffer),
+												getString(buffer) );
+			}
+
+			OBJContainer container  = new OBJContainer();
+			int          groupCount = buffer.getInt();
+
+			for( int i = 0; i < groupCount; ++i )
+			{
+				int     materialIndex = buffer.getInt();
+				float[] positions     = getFloats( buffer );
+				float[] normals       = getFloats( buffer );
+				float[] texCoords     = getFloats( buffer );
+				int[]   indices       = getInts( buffer );
+
+				container.getGroups().add( new OBJGroup(positions, normals, texCoords, indices, materialIndex < 0 ? null : materials[materialIndex]) );
+			}
+
+			return container;
+		}
+	}
+
+
+	/**
+	 * CRC32 of the memory-mapped file contents
+	 */
+	private static long hash( Path file ) throws IOException
+	{
+		try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) )
+		{
+			CRC32 crc = new CRC32();
+
+			if( channel.size() > 0 )
+				crc.update( channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) );
+
+			return crc.getValue();
+		}
+	}
+
+
+	private static int stringSize( String string )
+	{
+		return 4 + (string == null ? 0 : string.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+
+	private static void putString( ByteBuffer buffer, String string )
+	{
+		if( string == null )
+		{
+			buffer.putInt( -1 );
+			return;
+		}
+
+		byte[] bytes = string.getBytes( StandardCharsets.UTF_8 );
+
+		buffer.putInt( bytes.length );
+		buffer.put( bytes );
+	}
+
+
+	private static String getString( ByteBuffer buffer )
+	{
+		int length = buffer.getInt();
+
+		if( length < 0 )
+			return null;
+
+		byte[] bytes = new byte[length];
+		buffer.get( bytes );
+
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+
+	private static void putVec3( ByteBuffer buffer, Vec3 vec )
+	{
+		buffer.putFloat( vec.x );
+		buffer.putFloat( vec.y );
+		buffer.putFloat( vec.z );
+	}
+
+
+	private static Vec3 getVec3( ByteBuffer buffer )
+	{
+		return new Vec3( buffer.getFloat(), buffer.getFloat(), buffer.getFloat() );
+	}
+
+
+	private static void putFloats( ByteBuffer buffer, float[] values )
+	{
+		buffer.putInt( values.length );
+		buffer.asFloatBuffer().put( values );
+		buffer.position( buffer.position() + 4 * values.length );
+	}
+
+
+	private static float[] getFloats( ByteBuffer buffer )
+	{
+		float[] values = new float[buffer.getInt()];
+
+		buffer.asFloatBuffer().get( values );
+		buffer.position( buffer.position() + 4 * values.length );
+
+		return values;
+	}
+
+
+	private static void putInts( ByteBuffer buffer, int[] values )
+	{
+		buffer.putInt( values.length );
+		buffer.asIntBuffer().put( values );
+		buffer.position( buffer.position() + 4 * values.length );
+	}
+
+
+	private static int[] getInts( ByteBuffer buffer )
+	{
+		int[] values = new int[buffer.getInt()];
+
+		buffer.asIntBuffer().get( values );
+		buffer.position( buffer.position() + 4 * values.length );
+
+		return values;
+	}
+}
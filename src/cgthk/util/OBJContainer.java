@@ -3,9 +3,12 @@ import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import cgthk.math.Vec3;
 
@@ -17,12 +20,19 @@ public class OBJContainer
 	private static final int TEXCOORD = 1;
 	private static final int NORMAL = 2;
 	
+	private static final int COMMAND_MTLLIB = 0;
+	private static final int COMMAND_USEMTL = 1;
+	private static final int COMMAND_GROUP  = 2;
+	
 	private ArrayList<OBJGroup> facegroups;
+	private ArrayList<String>   materialLibraries;
+	private boolean             failed;
 	
 	
-	private OBJContainer()
+	OBJContainer()
 	{
-		facegroups = new ArrayList<OBJGroup>();
+		facegroups        = new ArrayList<OBJGroup>();
+		materialLibraries = new ArrayList<String>();
 	}
 	
 	
@@ -32,6 +42,24 @@ public class OBJContainer
 	}
 	
 	
+	/**
+	 * Paths of the MTL files referenced by mtllib statements, used by OBJCache to validate cached files
+	 */
+	ArrayList<String> getMaterialLibraries()
+	{
+		return materialLibraries;
+	}
+	
+	
+	/**
+	 * True if the OBJ file couldn't be read or parsed, the container is empty then and must not be cached
+	 */
+	boolean isFailed()
+	{
+		return failed;
+	}
+	
+	
 	public static OBJContainer loadFile( String filepath )
 	{
 		return OBJContainer.loadFile( filepath, new Vec3(0.0f), new Vec3(1.0f) );
@@ -39,6 +67,291 @@ public class OBJContainer
 	
 	
 	public static OBJContainer loadFile( String filepath, Vec3 translation, Vec3 scale )
+	{
+		return OBJContainer.loadFile( filepath, new LoadOptions().setTranslation(translation).setScale(scale) );
+	}
+	
+	
+	/**
+	 * The file is memory-mapped with IOUtils.mapResource() and parsed directly from its bytes.
+	 * With LoadOptions.setParallel( true ) the face groups are built on a ForkJoinPool and files larger than
+	 * two chunks are additionally parsed in line ranges. The resulting groups are the same, in the same order,
+	 * as with the sequential loader.
+	 */
+	public static OBJContainer loadFile( String filepath, LoadOptions options )
+	{
+		String path    = IOUtils.pathOf( filepath );
+		int    pathEnd = 1 + Math.max( path.lastIndexOf('\\'), path.lastIndexOf('/') );
+		String folder  = path.substring( 0, pathEnd );
+		
+		OBJContainer           container = new OBJContainer();
+		ArrayList<ParsedRange> ranges    = new ArrayList<ParsedRange>();
+		
+		try
+		{
+			ByteBuffer data = IOUtils.mapResource( path );
+			
+			ranges = parseRanges( data, options );
+		}
+		catch( Exception e )
+		{
+			System.err.println( "*Error* Can't read OBJ file: " + path );
+			e.printStackTrace();
+			
+			container.failed = true;
+		}
+		
+		
+		// ====================================================================
+		// stitch the ranges together in file order, OBJ indices are absolute, 
+		// so only the group and material commands have to be replayed
+		// ====================================================================
+		
+		FloatArrayList positions = ranges.size() == 1 ? ranges.get(0).positions : new FloatArrayList();
+		FloatArrayList normals   = ranges.size() == 1 ? ranges.get(0).normals   : new FloatArrayList();
+		FloatArrayList texCoords = ranges.size() == 1 ? ranges.get(0).texCoords : new FloatArrayList();
+		
+		HashMap<String, IntArrayList> faceGroups   = new HashMap<String, IntArrayList>();
+		IntArrayList                  currentGroup = new IntArrayList();
+		HashMap<String, OBJMaterial>  materials    = new HashMap<String, OBJMaterial>();
+		
+		OBJMaterial currentMaterial  = new OBJMaterial();
+		String      currentGroupName = "default";
+		
+		materials.put(  currentGroupName, currentMaterial );
+		faceGroups.put( currentGroupName, currentGroup );
+		
+		for( ParsedRange range : ranges )
+		{
+			if( ranges.size() > 1 )
+			{
+				positions.addAll( range.positions );
+				normals.addAll(   range.normals );
+				texCoords.addAll( range.texCoords );
+			}
+			
+			int faceOffset = 0;
+			
+			for( int i = 0; i < range.commandTypes.size(); ++i )
+			{
+				int    commandFaceOffset = range.commandFaceOffsets.get( i );
+				String argument          = range.commandArguments.get( i );
+				
+				currentGroup.addAll( range.faces.toArray(), faceOffset, commandFaceOffset - faceOffset );
+				faceOffset = commandFaceOffset;
+				
+				switch( range.commandTypes.get(i) )
+				{
+					case COMMAND_MTLLIB:
+					{
+						materials = OBJMaterial.parseMTL( folder, argument );
+						container.materialLibraries.add( folder + (argument.startsWith("./") ? argument.substring(2) : argument) );
+						break;
+					}
+					case COMMAND_USEMTL:
+					{
+						OBJMaterial tempMaterial = materials.get( argument );
+						
+						if( tempMaterial != null )
+							currentMaterial = tempMaterial;
+						
+						materials.put( currentGroupName, currentMaterial );
+						break;
+					}
+					case COMMAND_GROUP:
+					{
+						currentGroupName = argument;
+						currentGroup     = faceGroups.get( currentGroupName );
+						
+						if( currentGroup == null )
+						{
+							currentGroup = new IntArrayList();
+							faceGroups.put( currentGroupName, currentGroup );
+						}
+						break;
+					}
+				}
+			}
+			
+			currentGroup.addAll( range.faces.toArray(), faceOffset, range.faces.size() - faceOffset );
+		}
+		
+		
+		ArrayList<IntArrayList> groupFaces     = new ArrayList<IntArrayList>();
+		ArrayList<OBJMaterial>  groupMaterials = new ArrayList<OBJMaterial>();
+		
+		for( Entry<String, IntArrayList> entry : faceGroups.entrySet() )
+		{
+			IntArrayList faceGroup = entry.getValue();
+			String       groupName = entry.getKey();
+			OBJMaterial  material  = materials.get( groupName );
+			
+			// three indices per corner, at least three corners
+			if( faceGroup.size() < 9 )
+				continue;
+			
+			groupFaces.add( faceGroup );
+			groupMaterials.add( material );
+		}
+		
+		if( options.isParallel() && groupFaces.size() > 1 )
+		{
+			// every group only reads the shared attribute lists
+			ArrayList<ForkJoinTask<OBJGroup>> tasks = new ArrayList<ForkJoinTask<OBJGroup>>();
+			
+			for( int i = 0; i < groupFaces.size(); ++i )
+			{
+				IntArrayList faceGroup = groupFaces.get( i );
+				OBJMaterial  material  = groupMaterials.get( i );
+				
+				tasks.add( options.getPool().submit(() -> createOBJGroup(positions, texCoords, normals, faceGroup, material)) );
+			}
+			
+			// joining in submission order keeps the sequential group order
+			for( ForkJoinTask<OBJGroup> task : tasks )
+				container.facegroups.add( task.join() );
+		}
+		else
+		{
+			for( int i = 0; i < groupFaces.size(); ++i )
+				container.facegroups.add( createOBJGroup(positions, texCoords, normals, groupFaces.get(i), groupMaterials.get(i)) );
+		}
+		
+		return container;
+	}
+	
+	
+	/**
+	 * Parses the whole buffer as one range or, in parallel mode, splits it at line boundaries
+	 * into chunks that are parsed on the pool. The ranges are returned in file order.
+	 */
+	private static ArrayList<ParsedRange> parseRanges( ByteBuffer data, LoadOptions options )
+	{
+		ArrayList<ParsedRange> ranges    = new ArrayList<ParsedRange>();
+		int                    chunkSize = options.getChunkSize();
+		int                    start     = data.position();
+		int                    limit     = data.limit();
+		
+		if( !options.isParallel() || limit - start < 2 * chunkSize )
+		{
+			ranges.add( parseRange(data, options.getTranslation(), options.getScale()) );
+			return ranges;
+		}
+		
+		ArrayList<ForkJoinTask<ParsedRange>> tasks = new ArrayList<ForkJoinTask<ParsedRange>>();
+		
+		while( start < limit )
+		{
+			int end = Math.min( limit, start + chunkSize );
+			
+			while( end < limit && data.get(end - 1) != '\n' )
+				end++;
+			
+			ByteBuffer chunk = data.duplicate();
+			chunk.limit( end );
+			chunk.position( start );
+			
+			tasks.add( options.getPool().submit(() -> parseRange(chunk, options.getTranslation(), options.getScale())) );
+			
+			start = end;
+		}
+		
+		for( ForkJoinTask<ParsedRange> task : tasks )
+			ranges.add( task.join() );
+		
+		return ranges;
+	}
+	
+	
+	/**
+	 * Parses the attributes and faces of one line range. Group and material statements are only
+	 * recorded together with the face offset they occur at, they depend on the state of previous ranges.
+	 */
+	private static ParsedRange parseRange( ByteBuffer data, Vec3 translation, Vec3 scale )
+	{
+		ParsedRange  range     = new ParsedRange();
+		OBJTokenizer tokenizer = new OBJTokenizer( data );
+		
+		// p/t/n indices of up to four corners
+		int[] corners = new int[12];
+		
+		while( tokenizer.nextLine() )
+		{
+			if( !tokenizer.nextToken() )
+				continue;
+			
+			if( tokenizer.tokenEquals("v") )
+			{
+				range.positions.add( translation.x + scale.x * tokenizer.nextFloat(0.0f) );
+				range.positions.add( translation.y + scale.y * tokenizer.nextFloat(0.0f) );
+				range.positions.add( translation.z + scale.z * tokenizer.nextFloat(0.0f) );
+			}
+			else if( tokenizer.tokenEquals("vt") )
+			{
+				range.texCoords.add( tokenizer.nextFloat(0.0f) );
+				range.texCoords.add( tokenizer.nextFloat(0.0f) );
+				if( tokenizer.nextToken() )
+					range.texCoords.add( tokenizer.tokenToFloat(2.0f) );
+				else
+					range.texCoords.add( 0.0f );
+			}
+			else if( tokenizer.tokenEquals("vn") )
+			{
+				range.normals.add( tokenizer.nextFloat(0.0f) );
+				range.normals.add( tokenizer.nextFloat(1.0f) );
+				range.normals.add( tokenizer.nextFloat(0.0f) );
+			}
+			else if( tokenizer.tokenEquals("f") )
+			{
+				int cornerCount = 0;
+				
+				while( tokenizer.nextToken() )
+				{
+					if( cornerCount < 4 )
+						tokenizer.tokenToFaceCorner( corners, cornerCount * 3 );
+					
+					cornerCount++;
+				}
+				
+				if( cornerCount < 3 )
+					continue;
+				
+				addCorner( range.faces, corners, 0 );
+				addCorner( range.faces, corners, 1 );
+				addCorner( range.faces, corners, 2 );
+				
+				if( cornerCount == 4 ) // the face is a quad
+				{
+					addCorner( range.faces, corners, 0 );
+					addCorner( range.faces, corners, 2 );
+					addCorner( range.faces, corners, 3 );
+				}
+				else if( cornerCount > 4 )
+					System.err.println( "N-gons with more than 4 vertices are not supported!" );
+			}
+			else if( tokenizer.tokenEquals("mtllib") )
+			{
+				range.addCommand( COMMAND_MTLLIB, tokenizer );
+			}
+			else if( tokenizer.tokenEquals("usemtl") )
+			{
+				range.addCommand( COMMAND_USEMTL, tokenizer );
+			}
+			else if( tokenizer.tokenEquals("g") )
+			{
+				range.addCommand( COMMAND_GROUP, tokenizer );
+			}
+		}
+		
+		return range;
+	}
+	
+	
+	/**
+	 * Original BufferedReader and String.split() based parser.<br>
+	 * Produces the same groups as loadFile(), it is only kept as reference for the OBJBenchmark.
+	 */
+	static OBJContainer loadFileLegacy( String filepath, Vec3 translation, Vec3 scale )
 	{
 		String path    = IOUtils.pathOf( filepath );
 		int    pathEnd = 1 + Math.max( path.lastIndexOf('\\'), path.lastIndexOf('/') );
@@ -49,9 +362,9 @@ public class OBJContainer
 		FloatArrayList normals   = new FloatArrayList();
 		FloatArrayList texCoords = new FloatArrayList();
 		
-		HashMap<String, ArrayList<String>> faceGroups   = new HashMap<String, ArrayList<String>>();
-		ArrayList<String>                  currentGroup = new ArrayList<String>();
-		HashMap<String, OBJMaterial>       materials    = new HashMap<String, OBJMaterial>();
+		HashMap<String, IntArrayList> faceGroups   = new HashMap<String, IntArrayList>();
+		IntArrayList                  currentGroup = new IntArrayList();
+		HashMap<String, OBJMaterial>  materials    = new HashMap<String, OBJMaterial>();
 		
 		OBJMaterial currentMaterial  = new OBJMaterial();
 		String      currentGroupName = "default";
@@ -94,16 +407,10 @@ public class OBJContainer
 				}
 				else if( line_parts[0].equalsIgnoreCase("f") )
 				{
-					currentGroup.add( line_parts[1] );
-					currentGroup.add( line_parts[2] );
-					currentGroup.add( line_parts[3] );
+					addTriangle( currentGroup, line_parts[1], line_parts[2], line_parts[3] );
 					
 					if( line_parts.length == 5 ) // the face is a quad
-					{
-						currentGroup.add( line_parts[1] );
-						currentGroup.add( line_parts[3] );
-						currentGroup.add( line_parts[4] );
-					}
+						addTriangle( currentGroup, line_parts[1], line_parts[3], line_parts[4] );
 					else if( line_parts.length > 5 )
 						System.err.println( "N-gons with more than 4 vertices are not supported!" );
 				}
@@ -128,7 +435,7 @@ public class OBJContainer
 					
 					if( currentGroup == null )
 					{
-						currentGroup = new ArrayList<String>();
+						currentGroup = new IntArrayList();
 						faceGroups.put( line_parts[1], currentGroup );
 					}
 				}
@@ -143,16 +450,18 @@ public class OBJContainer
 		{
 			System.err.println( "*Error* Can't read OBJ file: " + path );
 			e.printStackTrace();
+			
+			container.failed = true;
 		}
 		
 	    
-		for( Entry<String, ArrayList<String>> entry : faceGroups.entrySet() )
+		for( Entry<String, IntArrayList> entry : faceGroups.entrySet() )
 		{
-			ArrayList<String> faceGroup = entry.getValue();
-			String            groupName = entry.getKey();
-			OBJMaterial       material  = materials.get( groupName );
+			IntArrayList faceGroup = entry.getValue();
+			String       groupName = entry.getKey();
+			OBJMaterial  material  = materials.get( groupName );
 	    	
-			if( faceGroup.size() < 3 )
+			if( faceGroup.size() < 9 )
 				continue;
 			
 			container.facegroups.add( createOBJGroup(positions, texCoords, normals, faceGroup, material) );
@@ -162,12 +471,6 @@ public class OBJContainer
 	}
 	
 		
-	private static String vertexToString( int positionIndex, int texCoordIndex, int normalIndex )
-	{
-		return "p" + positionIndex + "t" + texCoordIndex + "n" + normalIndex;
-	}
-	
-	
 	private static int toInt( String string, int defaultValue )
 	{
 		try
@@ -194,115 +497,103 @@ public class OBJContainer
 	}
 	
 	
-	private static OBJGroup createOBJGroup( FloatArrayList    positions, 
-											FloatArrayList    texCoords, 
-											FloatArrayList    normals, 
-											ArrayList<String> faceGroup, 
-											OBJMaterial       material )
+	/**
+	 * Converts three "p/t/n" face corners of the legacy parser into index triples
+	 */
+	private static void addTriangle( IntArrayList faceGroup, String corner0, String corner1, String corner2 )
+	{
+		// ===========================
+		// attributeIndices0: p0/t0/n0
+		// attributeIndices1: p1/t1/n1
+		// attributeIndices2: p2/t2/n2
+		// ===========================
+		
+		String[] attributeIndices0 = corner0.split( "/" );
+		String[] attributeIndices1 = corner1.split( "/" );
+		String[] attributeIndices2 = corner2.split( "/" );
+
+		
+		// =======================================================
+		// subtracting 1 since obj indices start at 1 instead of 0
+		// =======================================================
+		
+		int position0 = toInt( attributeIndices0[POSITION], 1 ) - 1;
+		int position1 = toInt( attributeIndices1[POSITION], 1 ) - 1;
+		int position2 = toInt( attributeIndices2[POSITION], 1 ) - 1;
+		
+		int texcoord0 = position0;
+		int texcoord1 = position1;
+		int texcoord2 = position2;
+
+		int normal0 = position0;
+		int normal1 = position1;
+		int normal2 = position2;
+		
+		if( attributeIndices0.length > 1 )
+		{
+			texcoord0 = toInt( attributeIndices0[TEXCOORD], 1 ) - 1;
+			texcoord1 = toInt( attributeIndices1[TEXCOORD], 1 ) - 1;
+			texcoord2 = toInt( attributeIndices2[TEXCOORD], 1 ) - 1;
+			
+			if( attributeIndices0.length > 2 )
+			{
+				normal0 = toInt( attributeIndices0[NORMAL], 1 ) - 1;
+				normal1 = toInt( attributeIndices1[NORMAL], 1 ) - 1;
+				normal2 = toInt( attributeIndices2[NORMAL], 1 ) - 1;
+			}
+		}
+		
+		faceGroup.add( position0 );
+		faceGroup.add( texcoord0 );
+		faceGroup.add( normal0 );
+		faceGroup.add( position1 );
+		faceGroup.add( texcoord1 );
+		faceGroup.add( normal1 );
+		faceGroup.add( position2 );
+		faceGroup.add( texcoord2 );
+		faceGroup.add( normal2 );
+	}
+	
+	
+	/**
+	 * @param faceGroup Zero based position/texcoord/normal index triples, three corners per triangle
+	 */
+	private static OBJGroup createOBJGroup( FloatArrayList positions, 
+											FloatArrayList texCoords, 
+											FloatArrayList normals, 
+											IntArrayList   faceGroup, 
+											OBJMaterial    material )
 	{
+		int cornerCount = faceGroup.size() / 3;
+		
 		FloatArrayList groupPositions = new FloatArrayList();
 		FloatArrayList groupTexCoords = new FloatArrayList();
 		FloatArrayList groupNormals   = new FloatArrayList(); 
-		IntArrayList   groupIndices   = new IntArrayList();
-				    
-	    HashMap<String, Integer> uniqueVertices = new HashMap<>();
-	    int                      nextVertexID   = 0;
+		IntArrayList   groupIndices   = new IntArrayList( cornerCount );
+		
+		// maps position/texcoord/normal index triples to the group local vertex index
+	    IntTripleHashMap uniqueVertices = new IntTripleHashMap( cornerCount / 2 );
+	    int              nextVertexID   = 0;
 	    
     	for( int index = 0; index < faceGroup.size(); index += 3 )
 	    {
-    		// ===========================
-    		// attributeIndices0: p0/t0/n0
-    		// attributeIndices1: p1/t1/n1
-    		// attributeIndices2: p2/t2/n2
-    		// ===========================
-    		
-	    	String[] attributeIndices0 = faceGroup.get( index     ).split( "/" );
-	    	String[] attributeIndices1 = faceGroup.get( index + 1 ).split( "/" );
-	    	String[] attributeIndices2 = faceGroup.get( index + 2 ).split( "/" );
-
-	    	
-	    	// =======================================================
-	    	// subtracting 1 since obj indices start at 1 instead of 0
-	    	// =======================================================
-	    	
-	    	int position0 = toInt( attributeIndices0[POSITION], 1 ) - 1;
-	    	int position1 = toInt( attributeIndices1[POSITION], 1 ) - 1;
-	    	int position2 = toInt( attributeIndices2[POSITION], 1 ) - 1;
-	    	
-	    	int texcoord0 = position0;
-	    	int texcoord1 = position1;
-	    	int texcoord2 = position2;
-
-	    	int normal0 = position0;
-	    	int normal1 = position1;
-	    	int normal2 = position2;
-	    	
-	    	if( attributeIndices0.length > 1 )
-	    	{
-		    	texcoord0 = toInt( attributeIndices0[TEXCOORD], 1 ) - 1;
-		    	texcoord1 = toInt( attributeIndices1[TEXCOORD], 1 ) - 1;
-		    	texcoord2 = toInt( attributeIndices2[TEXCOORD], 1 ) - 1;
-		    	
-		    	if( attributeIndices0.length > 2 )
-		    	{
-			    	normal0 = toInt( attributeIndices0[NORMAL], 1 ) - 1;
-			    	normal1 = toInt( attributeIndices1[NORMAL], 1 ) - 1;
-			    	normal2 = toInt( attributeIndices2[NORMAL], 1 ) - 1;
-		    	}
-	    	}
-	    	
-
-	    	// ==============================================================
-	    	// really ugly and most likely extremely slow to use strings here
-	    	// ==============================================================
-	    	
-	    	String v0String = vertexToString( position0, texcoord0, normal0 );
-	    	String v1String = vertexToString( position1, texcoord1, normal1 );
-	    	String v2String = vertexToString( position2, texcoord2, normal2 );
-
-	    	Integer index0 = uniqueVertices.get( v0String );
-	    	Integer index1 = uniqueVertices.get( v1String );
-	    	Integer index2 = uniqueVertices.get( v2String );
-	    	
-	    	if( index0 == null )
-	    	{
-	    		OBJContainer.addAttributeVec3( groupPositions, positions, position0 );
-	    		OBJContainer.addAttributeVec3( groupTexCoords, texCoords, texcoord0 );
-	    		OBJContainer.addAttributeVec3( groupNormals,   normals,   normal0 );
-		    	
-	    		index0 = nextVertexID;
-	    		uniqueVertices.put( v0String, index0 );
-	    		
-	    		nextVertexID++;
-	    	}
+	    	int position = faceGroup.get( index + POSITION );
+	    	int texcoord = faceGroup.get( index + TEXCOORD );
+	    	int normal   = faceGroup.get( index + NORMAL );
 	    	
-	    	if( index1 == null )
-	    	{
-	    		OBJContainer.addAttributeVec3( groupPositions, positions, position1 );
-	    		OBJContainer.addAttributeVec3( groupTexCoords, texCoords, texcoord1 );
-	    		OBJContainer.addAttributeVec3( groupNormals,   normals,   normal1 );
-		    	
-	    		index1 = nextVertexID;
-	    		uniqueVertices.put( v1String, index1 );
-	    		
-	    		nextVertexID++;
-	    	}
+	    	int vertexIndex = uniqueVertices.putIfAbsent( position, texcoord, normal, nextVertexID );
 	    	
-	    	if( index2 == null )
+	    	if( vertexIndex < 0 )
 	    	{
-	    		OBJContainer.addAttributeVec3( groupPositions, positions, position2 );
-	    		OBJContainer.addAttributeVec3( groupTexCoords, texCoords, texcoord2 );
-	    		OBJContainer.addAttributeVec3( groupNormals,   normals,   normal2 );
+	    		OBJContainer.addAttributeVec3( groupPositions, positions, position );
+	    		OBJContainer.addAttributeVec3( groupTexCoords, texCoords, texcoord );
+	    		OBJContainer.addAttributeVec3( groupNormals,   normals,   normal );
 		    	
-	    		index2 = nextVertexID;
-	    		uniqueVertices.put( v2String, index2 );
-	    		
+	    		vertexIndex = nextVertexID;
 	    		nextVertexID++;
 	    	}
 
-	    	groupIndices.add( index0 );
-	    	groupIndices.add( index1 );
-	    	groupIndices.add( index2 );
+	    	groupIndices.add( vertexIndex );
 	    }
     	
     	groupPositions.trimToSize();
@@ -318,6 +609,14 @@ public class OBJContainer
 	}
 	
 	
+	private static void addCorner( IntArrayList faceGroup, int[] corners, int corner )
+	{
+		faceGroup.add( corners[corner * 3 + POSITION] );
+		faceGroup.add( corners[corner * 3 + TEXCOORD] );
+		faceGroup.add( corners[corner * 3 + NORMAL] );
+	}
+	
+	
 	/**
 	 * Convenience function to reduce duplicate code
 	 */
@@ -336,4 +635,131 @@ public class OBJContainer
     		destination.add( 0.0f );
     	}
 	}
+	
+	
+	/**
+	 * Options for OBJContainer.loadFile( String, LoadOptions ), the setters can be chained.
+	 */
+	public static class LoadOptions
+	{
+		/** files need to be at least two chunks large to be parsed in parallel */
+		public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+		
+		private Vec3         translation;
+		private Vec3         scale;
+		private boolean      parallel;
+		private ForkJoinPool pool;
+		private int          chunkSize;
+		
+		
+		public LoadOptions()
+		{
+			this.translation = new Vec3( 0.0f );
+			this.scale       = new Vec3( 1.0f );
+			this.parallel    = false;
+			this.pool        = ForkJoinPool.commonPool();
+			this.chunkSize   = DEFAULT_CHUNK_SIZE;
+		}
+		
+		
+		public LoadOptions setTranslation( Vec3 translation )
+		{
+			this.translation = translation;
+			return this;
+		}
+		
+		
+		public LoadOptions setScale( Vec3 scale )
+		{
+			this.scale = scale;
+			return this;
+		}
+		
+		
+		public LoadOptions setParallel( boolean parallel )
+		{
+			this.parallel = parallel;
+			return this;
+		}
+		
+		
+		/**
+		 * The pool used in parallel mode, defaults to ForkJoinPool.commonPool()
+		 */
+		public LoadOptions setPool( ForkJoinPool pool )
+		{
+			this.pool = pool;
+			return this;
+		}
+		
+		
+		/**
+		 * @param chunkSize Size of the line ranges in bytes that are parsed in parallel
+		 */
+		public LoadOptions setChunkSize( int chunkSize )
+		{
+			this.chunkSize = Math.max( 1, chunkSize );
+			return this;
+		}
+		
+		
+		public Vec3 getTranslation()
+		{
+			return translation;
+		}
+		
+		
+		public Vec3 getScale()
+		{
+			return scale;
+		}
+		
+		
+		public boolean isParallel()
+		{
+			return parallel;
+		}
+		
+		
+		public ForkJoinPool getPool()
+		{
+			return pool;
+		}
+		
+		
+		public int getChunkSize()
+		{
+			return chunkSize;
+		}
+	}
+	
+	
+	/**
+	 * Attributes, faces and group/material statements of one parsed line range
+	 */
+	private static final class ParsedRange
+	{
+		final FloatArrayList positions = new FloatArrayList();
+		final FloatArrayList normals   = new FloatArrayList();
+		final FloatArrayList texCoords = new FloatArrayList();
+		final IntArrayList   faces     = new IntArrayList();
+		
+		final IntArrayList      commandTypes       = new IntArrayList();
+		final IntArrayList      commandFaceOffsets = new IntArrayList();
+		final ArrayList<String> commandArguments   = new ArrayList<String>();
+		
+		
+		/**
+		 * Records a statement with a name argument, statements without argument are ignored
+		 */
+		void addCommand( int type, OBJTokenizer tokenizer )
+		{
+			if( !tokenizer.nextToken() )
+				return;
+			
+			commandTypes.add( type );
+			commandFaceOffsets.add( faces.size() );
+			commandArguments.add( tokenizer.tokenToString() );
+		}
+	}
 }
@@ -1,9 +1,5 @@
 package cgthk.util;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
 import java.util.HashMap;
 
 import cgthk.math.Vec3;
@@ -99,6 +95,10 @@ public class OBJMaterial
 	}
 	
 	
+	/**
+	 * Parses all materials of a MTL file. The file is memory-mapped and tokenized directly
+	 * from its ASCII bytes (see IOUtils.mapResource()), missing or malformed values keep their defaults.
+	 */
 	public static HashMap<String, OBJMaterial> parseMTL( String folder, String filename )
 	{
 		if( filename.startsWith("./") )
@@ -109,61 +109,57 @@ public class OBJMaterial
 		
 		try
 		{
-		    FileInputStream fstream = new FileInputStream( fullPath );  
-		    DataInputStream in      = new DataInputStream( fstream );  
-		    BufferedReader  br      = new BufferedReader( new InputStreamReader(in) );
-		    
-		    String line = "";
-		    OBJMaterial currentMaterial = null;
-
-		    while( (line = br.readLine()) != null )
-		    {
-		    	String[] parts = line.split( "\\s+" );
+			OBJTokenizer tokenizer       = new OBJTokenizer( IOUtils.mapResource(fullPath) );
+			OBJMaterial  currentMaterial = null;
+			
+			while( tokenizer.nextLine() )
+			{
+				if( !tokenizer.nextToken() )
+					continue;
 				
-		    	if( parts[0].equalsIgnoreCase("newmtl") )
+				if( tokenizer.tokenEquals("newmtl") )
 				{
 					currentMaterial = new OBJMaterial();
-					materials.put( parts[1], currentMaterial );
+					
+					if( tokenizer.nextToken() )
+						materials.put( tokenizer.tokenToString(), currentMaterial );
+				}
+				else if( currentMaterial == null )
+				{
+					continue;
 				}
-				else if( parts[0].equalsIgnoreCase("Ka") )
+				else if( tokenizer.tokenEquals("Ka") )
 				{
-					currentMaterial.ambientColor.x = Float.parseFloat( parts[1] );
-					currentMaterial.ambientColor.y = Float.parseFloat( parts[2] );
-					currentMaterial.ambientColor.z = Float.parseFloat( parts[3] );
+					parseColor( tokenizer, currentMaterial.ambientColor );
 				}
-				else if( parts[0].equalsIgnoreCase("Kd") )
+				else if( tokenizer.tokenEquals("Kd") )
 				{
-					currentMaterial.diffuseColor.x = Float.parseFloat( parts[1] );
-					currentMaterial.diffuseColor.y = Float.parseFloat( parts[2] );
-					currentMaterial.diffuseColor.z = Float.parseFloat( parts[3] );
+					parseColor( tokenizer, currentMaterial.diffuseColor );
 				}
-				else if( parts[0].equalsIgnoreCase("Ks") )
+				else if( tokenizer.tokenEquals("Ks") )
 				{
-					currentMaterial.specularColor.x = Float.parseFloat( parts[1] );
-					currentMaterial.specularColor.y = Float.parseFloat( parts[2] );
-					currentMaterial.specularColor.z = Float.parseFloat( parts[3] );
+					parseColor( tokenizer, currentMaterial.specularColor );
 				}
-				else if( parts[0].equalsIgnoreCase("Ns") )
+				else if( tokenizer.tokenEquals("Ns") )
 				{
-					currentMaterial.specular = Float.parseFloat( parts[1] );
+					currentMaterial.specular = tokenizer.nextFloat( currentMaterial.specular );
 				}
-				else if( parts[0].equalsIgnoreCase("map_Kd") )
+				else if( tokenizer.tokenEquals("map_Kd") )
 				{
-					currentMaterial.diffuseTexture = parts[1];
+					if( tokenizer.nextToken() )
+						currentMaterial.diffuseTexture = tokenizer.tokenToString();
 				}
-				else if( parts[0].equalsIgnoreCase("map_Ns") )
+				else if( tokenizer.tokenEquals("map_Ns") )
 				{
-					currentMaterial.specularTexture = parts[1];
+					if( tokenizer.nextToken() )
+						currentMaterial.specularTexture = tokenizer.tokenToString();
 				}
-				else if( parts[0].equalsIgnoreCase("map_Bump") )
+				else if( tokenizer.tokenEquals("map_Bump") )
 				{
-					currentMaterial.bumpTexture = parts[1];
+					if( tokenizer.nextToken() )
+						currentMaterial.bumpTexture = tokenizer.tokenToString();
 				}
-		    }
-		    
-		    fstream.close();
-		    in.close();
-		    br.close();
+			}
 		} 
 		catch( Exception e ) 
 		{
@@ -173,4 +169,12 @@ public class OBJMaterial
 		
 		return materials;
 	}
+	
+	
+	private static void parseColor( OBJTokenizer tokenizer, Vec3 color )
+	{
+		color.x = tokenizer.nextFloat( color.x );
+		color.y = tokenizer.nextFloat( color.y );
+		color.z = tokenizer.nextFloat( color.z );
+	}
 }
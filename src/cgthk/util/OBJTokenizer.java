@@ -0,0 +1,443 @@
+package cgthk.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+
+/**
+ * Line/token cursor over the raw ASCII bytes of an OBJ or MTL file.<br>
+ * Tokens are only described by their start and end offsets, numbers are parsed
+ * directly from the bytes, so walking a file does not create any intermediate Strings.
+ * Splitting follows the rules of line.split( "\\s+" ) used by the old BufferedReader parser:
+ * a line that starts with whitespace has an empty first token.
+ */
+final class OBJTokenizer
+{
+	/** exact powers of ten, float can represent 10^0 to 10^10 without rounding */
+	private static final float[] POWERS_OF_TEN = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+	private final ByteBuffer m_Buffer;
+	private final int        m_iLimit;
+
+	private int     m_iPosition;
+	private int     m_iLineEnd;
+	private int     m_iTokenStart;
+	private int     m_iTokenEnd;
+	private int     m_iTokenIndex;
+	private boolean m_bInsideLine;
+
+
+
+	/**
+	 * @param buffer The file contents, the tokenizer reads from buffer.position() to buffer.limit()
+	 * without modifying the buffers position.
+	 */
+	OBJTokenizer( ByteBuffer buffer )
+	{
+		m_Buffer      = buffer;
+		m_iLimit      = buffer.limit();
+		m_iPosition   = buffer.position();
+		m_iLineEnd    = m_iPosition;
+		m_iTokenStart = m_iPosition;
+		m_iTokenEnd   = m_iPosition;
+		m_iTokenIndex = -1;
+		m_bInsideLine = false;
+	}
+
+
+	/**
+	 * Moves the cursor to the beginning of the next line.
+	 * @return false if the end of the buffer has been reached
+	 */
+	boolean nextLine()
+	{
+		if( m_bInsideLine )
+			m_iPosition = this.skipLineTerminator( m_iLineEnd );
+
+		if( m_iPosition >= m_iLimit )
+			return false;
+
+		int lineEnd = m_iPosition;
+
+		while( lineEnd < m_iLimit )
+		{
+			byte c = m_Buffer.get( lineEnd );
+
+			if( c == '\n' || c == '\r' )
+				break;
+
+			lineEnd++;
+		}
+
+		m_iLineEnd    = lineEnd;
+		m_iTokenStart = m_iPosition;
+		m_iTokenEnd   = m_iPosition;
+		m_iTokenIndex = -1;
+		m_bInsideLine = true;
+
+		return true;
+	}
+
+
+	/**
+	 * Advances to the next token of the current line.
+	 * @return false if the current line has no further tokens
+	 */
+	boolean nextToken()
+	{
+		int start = m_iTokenEnd;
+
+		// the first token starts directly at the line start, even if that is whitespace
+		if( m_iTokenIndex >= 0 )
+		{
+			while( start < m_iLineEnd && isWhitespace(m_Buffer.get(start)) )
+				start++;
+
+			if( start >= m_iLineEnd )
+				return false;
+		}
+
+		int end = start;
+
+		while( end < m_iLineEnd && !isWhitespace(m_Buffer.get(end)) )
+			end++;
+
+		m_iTokenStart = start;
+		m_iTokenEnd   = end;
+		m_iTokenIndex++;
+
+		return true;
+	}
+
+
+	int tokenStart()
+	{
+		return m_iTokenStart;
+	}
+
+
+	int tokenEnd()
+	{
+		return m_iTokenEnd;
+	}
+
+
+	/**
+	 * ASCII case insensitive comparison of the current token, equivalent to String.equalsIgnoreCase()
+	 */
+	boolean tokenEquals( String keyword )
+	{
+		int length = m_iTokenEnd - m_iTokenStart;
+
+		if( length != keyword.length() )
+			return false;
+
+		for( int i = 0; i < length; ++i )
+		{
+			int c = m_Buffer.get( m_iTokenStart + i );
+			int k = keyword.charAt( i );
+
+			if( c != k && toLowerCase(c) != toLowerCase(k) )
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Only used for names (groups, materials, files), never for numeric data
+	 */
+	String tokenToString()
+	{
+		return this.toString( m_iTokenStart, m_iTokenEnd );
+	}
+
+
+	float tokenToFloat( float defaultValue )
+	{
+		return this.parseFloat( m_iTokenStart, m_iTokenEnd, defaultValue );
+	}
+
+
+	/**
+	 * Parses the next token as float, returns defaultValue if the line has no further tokens
+	 * or the token is not a valid number.
+	 */
+	float nextFloat( float defaultValue )
+	{
+		if( !this.nextToken() )
+			return defaultValue;
+
+		return this.parseFloat( m_iTokenStart, m_iTokenEnd, defaultValue );
+	}
+
+
+	/**
+	 * Parses the current token as OBJ face corner (p, p/t, p//n or p/t/n) into three zero based indices.<br>
+	 * Behaves like the old corner.split( "/" ) + toInt( part, 1 ) - 1 code: empty components become index 0,
+	 * missing texcoord or normal components reuse the position index.
+	 */
+	void tokenToFaceCorner( int[] destination, int offset )
+	{
+		int start = m_iTokenStart;
+		int end   = m_iTokenEnd;
+
+		int positionEnd = this.indexOf( '/', start, end );
+		int texCoordEnd = this.indexOf( '/', positionEnd + 1, end );
+		int normalEnd   = this.indexOf( '/', texCoordEnd + 1, end );
+
+		// String.split() drops trailing empty components
+		int components = 1;
+
+		if( normalEnd > texCoordEnd + 1 )
+			components = 3;
+		else if( texCoordEnd > positionEnd + 1 )
+			components = 2;
+
+		int position = this.parseInt( start, positionEnd, 1 ) - 1;
+		int texCoord = position;
+		int normal   = position;
+
+		if( components > 1 )
+		{
+			texCoord = this.parseInt( positionEnd + 1, texCoordEnd, 1 ) - 1;
+
+			if( components > 2 )
+				normal = this.parseInt( texCoordEnd + 1, normalEnd, 1 ) - 1;
+		}
+
+		destination[offset + 0] = position;
+		destination[offset + 1] = texCoord;
+		destination[offset + 2] = normal;
+	}
+
+
+	/**
+	 * Parses a decimal integer the same way Integer.parseInt() does,
+	 * returns defaultValue for empty, malformed or overflowing input.
+	 */
+	int parseInt( int start, int end, int defaultValue )
+	{
+		if( start >= end )
+			return defaultValue;
+
+		boolean negative = false;
+		byte    first    = m_Buffer.get( start );
+
+		if( first == '-' || first == '+' )
+		{
+			negative = first == '-';
+			start++;
+
+			if( start >= end )
+				return defaultValue;
+		}
+
+		long value = 0;
+
+		for( int i = start; i < end; ++i )
+		{
+			int digit = m_Buffer.get( i ) - '0';
+
+			if( digit < 0 || digit > 9 )
+				return defaultValue;
+
+			value = value * 10 + digit;
+
+			if( value > (long) Integer.MAX_VALUE + 1 )
+				return defaultValue;
+		}
+
+		if( negative )
+			value = -value;
+
+		if( value > Integer.MAX_VALUE )
+			return defaultValue;
+
+		return (int) value;
+	}
+
+
+	/**
+	 * Parses a decimal float ([+-]digits[.digits][(e|E)[+-]digits]) directly from the bytes.<br>
+	 * Mantissas that fit into 24 bits with a small decimal exponent are computed with a single
+	 * correctly rounded float operation, which gives the exact same result as Float.parseFloat().
+	 * Everything else (long mantissas, large exponents, NaN, hex notation, ...) falls back to Float.parseFloat().
+	 */
+	float parseFloat( int start, int end, float defaultValue )
+	{
+		int i = start;
+
+		if( i >= end )
+			return defaultValue;
+
+		boolean negative = false;
+		byte    c        = m_Buffer.get( i );
+
+		if( c == '-' || c == '+' )
+		{
+			negative = c == '-';
+			i++;
+		}
+
+		long    mantissa       = 0;
+		int     exponent       = 0;
+		int     digits         = 0;
+		int     mantissaDigits = 0;
+		boolean seenPoint      = false;
+
+		for( ; i < end; ++i )
+		{
+			c = m_Buffer.get( i );
+
+			if( c >= '0' && c <= '9' )
+			{
+				digits++;
+
+				// leading zeros don't count towards the precision of the mantissa
+				if( mantissa == 0 && c == '0' )
+				{
+					if( seenPoint )
+						exponent--;
+
+					continue;
+				}
+
+				if( mantissaDigits >= 18 )
+					return this.parseFloatSlow( start, end, defaultValue );
+
+				mantissa = mantissa * 10 + (c - '0');
+				mantissaDigits++;
+
+				if( seenPoint )
+					exponent--;
+			}
+			else if( c == '.' && !seenPoint )
+			{
+				seenPoint = true;
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		if( digits == 0 )
+			return this.parseFloatSlow( start, end, defaultValue );
+
+		if( i < end )
+		{
+			if( c != 'e' && c != 'E' )
+				return this.parseFloatSlow( start, end, defaultValue );
+
+			i++;
+
+			boolean negativeExponent = false;
+
+			if( i < end && (m_Buffer.get(i) == '-' || m_Buffer.get(i) == '+') )
+			{
+				negativeExponent = m_Buffer.get( i ) == '-';
+				i++;
+			}
+
+			if( i >= end )
+				return this.parseFloatSlow( start, end, defaultValue );
+
+			int explicitExponent = 0;
+
+			for( ; i < end; ++i )
+			{
+				int digit = m_Buffer.get( i ) - '0';
+
+				if( digit < 0 || digit > 9 || explicitExponent > 10000 )
+					return this.parseFloatSlow( start, end, defaultValue );
+
+				explicitExponent = explicitExponent * 10 + digit;
+			}
+
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+
+		float value;
+
+		if( mantissa == 0 )
+			value = 0.0f;
+		else if( mantissa < (1 << 24) && exponent >= -10 && exponent <= 10 )
+			value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		else
+			return this.parseFloatSlow( start, end, defaultValue );
+
+		return negative ? -value : value;
+	}
+
+
+	/**
+	 * Rare path for numbers the fast path can't represent exactly
+	 */
+	private float parseFloatSlow( int start, int end, float defaultValue )
+	{
+		try
+		{
+			return Float.parseFloat( this.toString(start, end) );
+		}
+		catch( Exception e )
+		{
+			return defaultValue;
+		}
+	}
+
+
+	private String toString( int start, int end )
+	{
+		byte[] bytes = new byte[end - start];
+
+		for( int i = 0; i < bytes.length; ++i )
+			bytes[i] = m_Buffer.get( start + i );
+
+		return new String( bytes, StandardCharsets.ISO_8859_1 );
+	}
+
+
+	/**
+	 * @return the offset of the first occurrence of value in [start, end) or end if there is none
+	 */
+	private int indexOf( char value, int start, int end )
+	{
+		for( int i = start; i < end; ++i )
+		{
+			if( m_Buffer.get(i) == value )
+				return i;
+		}
+
+		return end;
+	}
+
+
+	private int skipLineTerminator( int position )
+	{
+		if( position < m_iLimit && m_Buffer.get(position) == '\r' )
+			position++;
+
+		if( position < m_iLimit && m_Buffer.get(position) == '\n' )
+			position++;
+
+		return position;
+	}
+
+
+	/**
+	 * Same character class as the regex \s
+	 */
+	private static boolean isWhitespace( byte c )
+	{
+		return c == ' ' || c == '\t' || c == 0x0B || c == '\f' || c == '\r' || c == '\n';
+	}
+
+
+	private static int toLowerCase( int c )
+	{
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+}
@@ -68,7 +68,7 @@ public class OpenGLState {
 		if( m_GL_BLEND == 1 )
 			glEnable(GL_BLEND);
 		else
-			glDisable(m_GL_BLEND);
+			glDisable(GL_BLEND);
 		
 		glBlendFunc(m_GL_BLEND_FUNC_SRC, m_GL_BLEND_FUNC_DST);
 		
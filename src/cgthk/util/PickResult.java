@@ -0,0 +1,70 @@
+package cgthk.util;
+
+import cgthk.math.Vec3;
+
+
+
+/**
+ * Result of Scene.pick(): the hit mesh, the world space hit and the hit triangle
+ */
+public class PickResult
+{
+	private Mesh  mesh;
+	private float distance;
+	private Vec3  position;
+	private int   triangleIndex;
+	private int[] vertexIndices;
+
+
+	public PickResult( Mesh mesh, float distance, Vec3 position, int triangleIndex, int[] vertexIndices )
+	{
+		this.mesh          = mesh;
+		this.distance      = distance;
+		this.position      = position;
+		this.triangleIndex = triangleIndex;
+		this.vertexIndices = vertexIndices;
+	}
+
+
+	public Mesh getMesh()
+	{
+		return mesh;
+	}
+
+
+	/**
+	 * World space distance between the camera and the hit position
+	 */
+	public float getDistance()
+	{
+		return distance;
+	}
+
+
+	/**
+	 * World space hit position
+	 */
+	public Vec3 getPosition()
+	{
+		return new Vec3( position );
+	}
+
+
+	/**
+	 * Index of the hit triangle in the index array of the mesh (the first index is at 3 * triangleIndex)
+	 * or -1 if the BVH of the mesh wasn't built from its index array in order
+	 */
+	public int getTriangleIndex()
+	{
+		return triangleIndex;
+	}
+
+
+	/**
+	 * The three vertex indices of the hit triangle
+	 */
+	public int[] getVertexIndices()
+	{
+		return vertexIndices.clone();
+	}
+}
@@ -1,244 +1,437 @@
 package cgthk.util;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
 
-import java.util.ArrayList;
+import java.nio.FloatBuffer;
 
+import org.lwjgl.BufferUtils;
+
+import cgthk.BVH_simple.BVH;
 import cgthk.math.Mat4;
 import cgthk.math.Vec3;
 
 
 
 
-public class Primitive 
+/**
+ * Immediate mode debug drawing. Lines and points are collected as interleaved position/color floats
+ * (FLOATS_PER_VERTEX per vertex) without any per vertex objects and drawn non indexed by drawBatches().
+ * The grid floor never changes, it is built once into a static buffer.<br>
+ * <br>
+ * Boxes are instances of a single unit cube line mesh: per box only the affine transform that maps [0,1]^3 onto
+ * the box and its color are stored (BOX_FLOATS instead of 24 line vertices), so tens of thousands of boxes,
+ * e.g. a whole BVH from drawBVH(), take one draw call.
+ */
+public class Primitive
 {
-	private static Mesh            lineBatch  = new Mesh( GL_DYNAMIC_DRAW );
-	private static Mesh            pointBatch = new Mesh( GL_DYNAMIC_DRAW );
-	private static ArrayList<Vec3> lines      = new ArrayList<Vec3>();
-	private static ArrayList<Vec3> points     = new ArrayList<Vec3>();
-	
-	
+	private static final int FLOATS_PER_VERTEX = 6;
+	/** per box: three rows of the 3x4 unit cube transform and the color */
+	private static final int BOX_FLOATS        = 15;
+
+	private static final String BOX_VERTEX_SHADER =
+		"#version 330 core\n" +
+		"layout(location=0) in vec3 aCorner;\n" +
+		"layout(location=1) in vec4 aRow0;\n" +
+		"layout(location=2) in vec4 aRow1;\n" +
+		"layout(location=3) in vec4 aRow2;\n" +
+		"layout(location=4) in vec3 aColor;\n" +
+		"uniform mat4 uView;\n" +
+		"uniform mat4 uProjection;\n" +
+		"out vec3 vColor;\n" +
+		"void main(){\n" +
+		"   vec4 corner = vec4(aCorner, 1.0);\n" +
+		"   vec3 world  = vec3(dot(aRow0, corner), dot(aRow1, corner), dot(aRow2, corner));\n" +
+		"   gl_Position = uProjection * uView * vec4(world, 1.0);\n" +
+		"   vColor      = aColor;\n" +
+		"}\n";
+
+	private static final String BOX_FRAGMENT_SHADER =
+		"#version 330 core\n" +
+		"in vec3 vColor;\n" +
+		"out vec4 fragColor;\n" +
+		"void main(){\n" +
+		"   fragColor = vec4(vColor, 1.0);\n" +
+		"}\n";
+
+	/** corners of a box are numbered by bits: x = bit 0, y = bit 1, z = bit 2, edges connect corners differing in one bit */
+	private static final int[] BOX_EDGES = { 0, 1,  2, 3,  4, 5,  6, 7,
+											 0, 2,  1, 3,  4, 6,  5, 7,
+											 0, 4,  1, 5,  2, 6,  3, 7 };
+
+	private static int            batchVAO   = glGenVertexArrays();
+	private static FloatArrayList lines      = new FloatArrayList( 1024 );
+	private static FloatArrayList points     = new FloatArrayList( 256 );
+	private static FloatArrayList boxes      = new FloatArrayList( 256 * BOX_FLOATS );
+
+	private static int            gridVAO;
+	private static int            gridBuffer;
+	private static int            gridVertexCount;
+	private static boolean        drawGrid;
+
+	private static int            boxVAO;
+	private static int            boxCubeBuffer;
+	private static int            boxProgram;
+	private static int            boxViewLocation;
+	private static int            boxProjectionLocation;
+	private static FloatBuffer    matrixBuffer = BufferUtils.createFloatBuffer( 16 );
+
+
 	public static void drawBox( Vec3 min, Vec3 max, Vec3 color, Mat4 transform )
 	{
-		Vec3 position0 = new Vec3( min.x, min.y, min.z ).transform( 1.0f, transform );
-		Vec3 position1 = new Vec3( min.x, min.y, max.z ).transform( 1.0f, transform );
-		Vec3 position2 = new Vec3( min.x, max.y, max.z ).transform( 1.0f, transform );
-		Vec3 position3 = new Vec3( max.x, max.y, max.z ).transform( 1.0f, transform );
-		Vec3 position4 = new Vec3( max.x, max.y, min.z ).transform( 1.0f, transform );
-		Vec3 position5 = new Vec3( max.x, min.y, min.z ).transform( 1.0f, transform );
-		Vec3 position6 = new Vec3( min.x, max.y, min.z ).transform( 1.0f, transform );
-		Vec3 position7 = new Vec3( max.x, min.y, max.z ).transform( 1.0f, transform );
-
-		lines.add( position0 );
-		lines.add( color );
-		lines.add( position5 );
-		lines.add( color );
-		lines.add( position0 );
-		lines.add( color );
-		lines.add( position6 );
-		lines.add( color );
-		lines.add( position0 );
-		lines.add( color );
-		lines.add( position1 );
-		lines.add( color );
-		lines.add( position7 );
-		lines.add( color );
-		lines.add( position3 );
-		lines.add( color );
-		lines.add( position7 );
-		lines.add( color );
-		lines.add( position5 );
-		lines.add( color );
-		lines.add( position7 );
-		lines.add( color );
-		lines.add( position1 );
-		lines.add( color );	
-		lines.add( position4 );
-		lines.add( color );
-		lines.add( position6 );
-		lines.add( color );
-		lines.add( position4 );
-		lines.add( color );
-		lines.add( position5 );
-		lines.add( color );
-		lines.add( position4 );
-		lines.add( color );
-		lines.add( position3 );
-		lines.add( color );
-		lines.add( position2 );
-		lines.add( color );
-		lines.add( position6 );
-		lines.add( color );
-		lines.add( position2 );
-		lines.add( color );
-		lines.add( position1 );
-		lines.add( color );
-		lines.add( position2 );
-		lines.add( color );
-		lines.add( position3 );
-		lines.add( color );
-	}
-	
-	
+		addBox( min.x, min.y, min.z, max.x, max.y, max.z, color, transform );
+	}
+
+
 	public static void drawBox( Vec3 min, Vec3 max, Vec3 color )
 	{
-		lines.add( new Vec3(min.x, min.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, min.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, min.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, max.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, max.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, max.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, max.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, min.y, min.z) );
-		lines.add( color );
-		
-		lines.add( new Vec3(min.x, min.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, min.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, min.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, max.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, max.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, max.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, max.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, min.y, max.z) );
-		lines.add( color );	
-
-		lines.add( new Vec3(min.x, min.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, min.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, min.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, min.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, max.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(max.x, max.y, max.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, max.y, min.z) );
-		lines.add( color );
-		lines.add( new Vec3(min.x, max.y, max.z) );
-		lines.add( color );
-	}
-	
-	
+		addBox( min.x, min.y, min.z, max.x, max.y, max.z, color, null );
+	}
+
+
+	/**
+	 * Draws the bounds of all BVH nodes down to maxDepth, the root has depth 0. The face level nodes of the
+	 * clusters continue below the cluster level, so a large maxDepth shows the whole hierarchy.
+	 * @param transform Model matrix of the mesh or null
+	 */
+	public static void drawBVH( BVH bvh, Mat4 transform, Vec3 color, int maxDepth )
+	{
+		if( bvh == null )
+			return;
+
+		addBVHNode( bvh, bvh.getNodeExtrema().data(), bvh.getNodeChildren(), bvh.getRootNodeID(), true, 0, maxDepth, color, transform );
+	}
+
+
 	public static void drawLine( Vec3 start, Vec3 end, Vec3 color )
 	{
-		lines.add( start );
-		lines.add( color );
-		lines.add( end   );
-		lines.add( color );
+		addVertex( lines, start.x, start.y, start.z, color );
+		addVertex( lines, end.x,   end.y,   end.z,   color );
 	}
-	
-	
+
+
 	public static void drawPoint( Vec3 point, Vec3 color )
 	{
-		points.add( point );
-		points.add( color );
+		addVertex( points, point.x, point.y, point.z, color );
 	}
-	
-	
+
+
+	/**
+	 * Draws the grid floor with the next drawBatches() call
+	 */
 	public static void drawGridFloor()
 	{
-		int resolution = 10;
-		
-		for( int z = -resolution; z <= resolution; ++z )
-			Primitive.drawLine( new Vec3(-resolution, 0.0f, z), new Vec3(resolution, 0.0f, z), new Vec3(0.8f) );
-		
-		for( int x = -resolution; x <= resolution; ++x )
-			Primitive.drawLine( new Vec3(x, 0.0f, -resolution), new Vec3(x, 0.0f, resolution), new Vec3(0.8f) );
-		
-		for( int z = -resolution * 2; z <= resolution * 2; ++z )
-			Primitive.drawLine( new Vec3(-resolution, 0.0f, 0.5f * z), new Vec3(resolution, 0.0f, 0.5f * z), new Vec3(0.4f) );
-		
-		for( int x = -resolution * 2; x <= resolution * 2; ++x )
-			Primitive.drawLine( new Vec3(0.5f * x, 0.0f, -resolution), new Vec3(0.5f * x, 0.0f, resolution), new Vec3(0.4f) );
-		
-		for( int z = -resolution * 10; z <= resolution * 10; ++z )
-			Primitive.drawLine( new Vec3(-resolution, 0.0f, 0.1f * z), new Vec3(resolution, 0.0f, 0.1f * z), new Vec3(0.2f) );
-		
-		for( int x = -resolution * 10; x <= resolution * 10; ++x )
-			Primitive.drawLine( new Vec3(0.1f * x, 0.0f, -resolution), new Vec3(0.1f * x, 0.0f, resolution), new Vec3(0.2f) );
-	}
-	
-	
+		drawGrid = true;
+	}
+
+
 	public static void drawBatches( Mat4 viewMatrix, Mat4 projMatrix )
 	{
 		glPointSize( 4.0f );
 		glLineWidth( 1.0f );
-		
-		drawLineBatch(  viewMatrix, projMatrix );
-		drawPointBatch( viewMatrix, projMatrix );
-	}
-	
-	
-	private static void drawLineBatch( Mat4 viewMatrix, Mat4 projMatrix )
-	{
-		float[] positions = new float[lines.size() / 2 * 3];
-		float[] colors    = new float[lines.size() / 2 * 3];
-		int[]   indices   = new int[lines.size() / 2];
-		
-		for( int i = 0; i < lines.size() / 2; ++i )
+
+		if( drawGrid )
+		{
+			if( gridVAO == 0 )
+				createGrid();
+
+			glBindVertexArray( gridVAO );
+			glDrawArrays( GL_LINES, 0, gridVertexCount );
+			glBindVertexArray( 0 );
+
+			drawGrid = false;
+		}
+
+		drawBatch( lines,  GL_LINES );
+		drawBatch( points, GL_POINTS );
+		drawBoxes( viewMatrix, projMatrix );
+	}
+
+
+	/**
+	 * Appends the transform of the unit cube onto [min, max] (then transform) and the color
+	 */
+	private static void addBox( float minX, float minY, float minZ, float maxX, float maxY, float maxZ, Vec3 color, Mat4 transform )
+	{
+		float sx = maxX - minX;
+		float sy = maxY - minY;
+		float sz = maxZ - minZ;
+
+		if( transform == null )
+		{
+			boxes.add( sx   ); boxes.add( 0.0f ); boxes.add( 0.0f ); boxes.add( minX );
+			boxes.add( 0.0f ); boxes.add( sy   ); boxes.add( 0.0f ); boxes.add( minY );
+			boxes.add( 0.0f ); boxes.add( 0.0f ); boxes.add( sz   ); boxes.add( minZ );
+		}
+		else
+		{
+			addBoxRow( transform.m00, transform.m01, transform.m02, transform.m03, minX, minY, minZ, sx, sy, sz );
+			addBoxRow( transform.m10, transform.m11, transform.m12, transform.m13, minX, minY, minZ, sx, sy, sz );
+			addBoxRow( transform.m20, transform.m21, transform.m22, transform.m23, minX, minY, minZ, sx, sy, sz );
+		}
+
+		boxes.add( color.x );
+		boxes.add( color.y );
+		boxes.add( color.z );
+	}
+
+
+	/**
+	 * One row of transform * translate(min) * scale(size)
+	 */
+	private static void addBoxRow( float r0, float r1, float r2, float r3, float minX, float minY, float minZ, float sx, float sy, float sz )
+	{
+		boxes.add( r0 * sx );
+		boxes.add( r1 * sy );
+		boxes.add( r2 * sz );
+		boxes.add( r0 * minX + r1 * minY + r2 * minZ + r3 );
+	}
+
+
+	/**
+	 * Node bounds are stored as min/max pairs, equal children mark a leaf: a cluster ID on the top level and a
+	 * face below the cluster roots
+	 */
+	private static void addBVHNode( BVH bvh, float[] extrema, int[] children, int node, boolean topLevel, int depth, int maxDepth, Vec3 color, Mat4 transform )
+	{
+		int min = node * 6;
+
+		addBox( extrema[min],     extrema[min + 1], extrema[min + 2],
+				extrema[min + 3], extrema[min + 4], extrema[min + 5], color, transform );
+
+		if( depth == maxDepth )
+			return;
+
+		int left  = children[node * 2];
+		int right = children[node * 2 + 1];
+
+		if( left != right )
+		{
+			addBVHNode( bvh, extrema, children, left,  topLevel, depth + 1, maxDepth, color, transform );
+			addBVHNode( bvh, extrema, children, right, topLevel, depth + 1, maxDepth, color, transform );
+		}
+		else if( topLevel && bvh.getClusters().containsKey(left) )
+		{
+			int clusterRoot = bvh.getClusters().get( left ).getRootNodeID();
+
+			// the cluster root has the bounds of this leaf, it isn't drawn twice
+			if( children[clusterRoot * 2] != children[clusterRoot * 2 + 1] )
+			{
+				addBVHNode( bvh, extrema, children, children[clusterRoot * 2],     false, depth + 1, maxDepth, color, transform );
+				addBVHNode( bvh, extrema, children, children[clusterRoot * 2 + 1], false, depth + 1, maxDepth, color, transform );
+			}
+		}
+	}
+
+
+	private static void addVertex( FloatArrayList vertices, float x, float y, float z, Vec3 color )
+	{
+		vertices.add( x );
+		vertices.add( y );
+		vertices.add( z );
+		vertices.add( color.x );
+		vertices.add( color.y );
+		vertices.add( color.z );
+	}
+
+
+	/**
+	 * Copies the vertices into the shared StreamBuffer and draws them without indices
+	 */
+	private static void drawBatch( FloatArrayList vertices, int mode )
+	{
+		int count = vertices.size() / FLOATS_PER_VERTEX;
+
+		if( count == 0 )
+			return;
+
+		StreamBuffer stream = StreamBuffer.shared();
+		stream.map( vertices.size() * 4, 4 ).asFloatBuffer().put( vertices.toArray(), 0, vertices.size() );
+
+		long offset = stream.commit();
+		vertices.clear();
+
+		glBindVertexArray( batchVAO );
+		glBindBuffer( GL_ARRAY_BUFFER, stream.getBufferID() );
+		setVertexPointers( offset );
+
+		glDrawArrays( mode, 0, count );
+
+		glBindVertexArray( 0 );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+	}
+
+
+	/**
+	 * Copies the box instances into the shared StreamBuffer and draws them with one instanced call of the
+	 * unit cube lines, the previously used program stays in use
+	 */
+	private static void drawBoxes( Mat4 viewMatrix, Mat4 projMatrix )
+	{
+		int count = boxes.size() / BOX_FLOATS;
+
+		if( count == 0 )
+			return;
+
+		if( boxVAO == 0 )
+			createBoxes();
+
+		StreamBuffer stream = StreamBuffer.shared();
+		stream.map( boxes.size() * 4, 4 ).asFloatBuffer().put( boxes.toArray(), 0, boxes.size() );
+
+		long offset = stream.commit();
+		boxes.clear();
+
+		int previousProgram = glGetInteger( GL_CURRENT_PROGRAM );
+
+		glUseProgram( boxProgram );
+		glUniformMatrix4fv( boxViewLocation,       false, viewMatrix.toFloatBuffer(matrixBuffer) );
+		glUniformMatrix4fv( boxProjectionLocation, false, projMatrix.toFloatBuffer(matrixBuffer) );
+
+		glBindVertexArray( boxVAO );
+		glBindBuffer( GL_ARRAY_BUFFER, stream.getBufferID() );
+
+		for( int row = 0; row < 3; ++row )
+			glVertexAttribPointer( 1 + row, 4, GL_FLOAT, false, BOX_FLOATS * 4, offset + row * 16 );
+
+		glVertexAttribPointer( 4, 3, GL_FLOAT, false, BOX_FLOATS * 4, offset + 48 );
+
+		glDrawArraysInstanced( GL_LINES, 0, BOX_EDGES.length, count );
+
+		glBindVertexArray( 0 );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+		glUseProgram( previousProgram );
+	}
+
+
+	/**
+	 * Builds the unit cube lines, the VAO with the per instance attributes and the program
+	 */
+	private static void createBoxes()
+	{
+		FloatBuffer cube = BufferUtils.createFloatBuffer( BOX_EDGES.length * 3 );
+
+		for( int i = 0; i < BOX_EDGES.length; ++i )
+		{
+			int corner = BOX_EDGES[i];
+
+			cube.put( corner & 1 ).put( (corner >> 1) & 1 ).put( (corner >> 2) & 1 );
+		}
+
+		cube.flip();
+
+		boxCubeBuffer = glGenBuffers();
+		boxVAO        = glGenVertexArrays();
+
+		glBindVertexArray( boxVAO );
+		glBindBuffer( GL_ARRAY_BUFFER, boxCubeBuffer );
+		glBufferData( GL_ARRAY_BUFFER, cube, GL_STATIC_DRAW );
+		glEnableVertexAttribArray( 0 );
+		glVertexAttribPointer( 0, 3, GL_FLOAT, false, 0, 0 );
+
+		for( int location = 1; location <= 4; ++location )
 		{
-			positions[i*3 + 0] = lines.get(i * 2 + 0).x;
-			positions[i*3 + 1] = lines.get(i * 2 + 0).y;
-			positions[i*3 + 2] = lines.get(i * 2 + 0).z;
-			
-			colors[i*3 + 0] = lines.get(i * 2 + 1).x;
-			colors[i*3 + 1] = lines.get(i * 2 + 1).y;
-			colors[i*3 + 2] = lines.get(i * 2 + 1).z;
-			
-			indices[i] = i;
+			glEnableVertexAttribArray( location );
+			glVertexAttribDivisor( location, 1 );
 		}
 
-		lineBatch.setAttribute( 0, positions, 3 );
-		lineBatch.setAttribute( 1, colors,    3 );
-		lineBatch.setIndices( indices );
-		
-		lines.clear();
-		lineBatch.draw( GL_LINES );
-	}
-	
-	
-	private static void drawPointBatch( Mat4 viewMatrix, Mat4 projMatrix )
-	{
-		float[] positions = new float[points.size() / 2 * 3];
-		float[] colors    = new float[points.size() / 2 * 3];
-		int[]   indices   = new int[points.size() / 2];
-		
-		for( int i = 0; i < points.size() / 2; ++i )
+		glBindVertexArray( 0 );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+
+		int vertexShader   = compileShader( BOX_VERTEX_SHADER,   GL_VERTEX_SHADER );
+		int fragmentShader = compileShader( BOX_FRAGMENT_SHADER, GL_FRAGMENT_SHADER );
+
+		boxProgram = glCreateProgram();
+		glAttachShader( boxProgram, vertexShader );
+		glAttachShader( boxProgram, fragmentShader );
+		glLinkProgram(  boxProgram );
+		glDeleteShader( vertexShader );
+		glDeleteShader( fragmentShader );
+
+		if( glGetProgrami(boxProgram, GL_LINK_STATUS) == GL_FALSE )
+			System.err.println( "*ERROR* Primitive: Can't link the box program:\n" + glGetProgramInfoLog(boxProgram) );
+
+		boxViewLocation       = glGetUniformLocation( boxProgram, "uView" );
+		boxProjectionLocation = glGetUniformLocation( boxProgram, "uProjection" );
+	}
+
+
+	private static int compileShader( String source, int type )
+	{
+		int shader = glCreateShader( type );
+
+		glShaderSource( shader, source );
+		glCompileShader( shader );
+
+		if( glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE )
+			System.err.println( "*ERROR* Primitive: Can't compile the box shader:\n" + glGetShaderInfoLog(shader) );
+
+		return shader;
+	}
+
+
+	/**
+	 * Position at location 0 and color at 1, the array buffer has to be bound
+	 */
+	private static void setVertexPointers( long offset )
+	{
+		glEnableVertexAttribArray( 0 );
+		glEnableVertexAttribArray( 1 );
+		glVertexAttribPointer( 0, 3, GL_FLOAT, false, FLOATS_PER_VERTEX * 4, offset );
+		glVertexAttribPointer( 1, 3, GL_FLOAT, false, FLOATS_PER_VERTEX * 4, offset + 12 );
+	}
+
+
+	/**
+	 * Builds the grid floor lines once into a GL_STATIC_DRAW buffer
+	 */
+	private static void createGrid()
+	{
+		int            resolution = 10;
+		FloatArrayList grid       = new FloatArrayList( 1024 * FLOATS_PER_VERTEX );
+
+		addGridLines( grid, resolution,      1.0f, new Vec3(0.8f) );
+		addGridLines( grid, resolution * 2,  0.5f, new Vec3(0.4f) );
+		addGridLines( grid, resolution * 10, 0.1f, new Vec3(0.2f) );
+
+		FloatBuffer data = BufferUtils.createFloatBuffer( grid.size() );
+		data.put( grid.toArray(), 0, grid.size() );
+		data.flip();
+
+		gridVertexCount = grid.size() / FLOATS_PER_VERTEX;
+		gridBuffer      = glGenBuffers();
+		gridVAO         = glGenVertexArrays();
+
+		glBindVertexArray( gridVAO );
+		glBindBuffer( GL_ARRAY_BUFFER, gridBuffer );
+		glBufferData( GL_ARRAY_BUFFER, data, GL_STATIC_DRAW );
+		setVertexPointers( 0 );
+
+		glBindVertexArray( 0 );
+		glBindBuffer( GL_ARRAY_BUFFER, 0 );
+	}
+
+
+	/**
+	 * Lines along x and along z at multiples of spacing, steps lines to each side of the origin, ending at +-10
+	 */
+	private static void addGridLines( FloatArrayList grid, int steps, float spacing, Vec3 color )
+	{
+		float extent = 10.0f;
+
+		for( int z = -steps; z <= steps; ++z )
 		{
-			positions[i*3 + 0] = points.get(i * 2 + 0).x;
-			positions[i*3 + 1] = points.get(i * 2 + 0).y;
-			positions[i*3 + 2] = points.get(i * 2 + 0).z;
-			
-			colors[i*3 + 0] = points.get(i * 2 + 1).x;
-			colors[i*3 + 1] = points.get(i * 2 + 1).y;
-			colors[i*3 + 2] = points.get(i * 2 + 1).z;
-			
-			indices[i] = i;
+			addVertex( grid, -extent, 0.0f, spacing * z, color );
+			addVertex( grid,  extent, 0.0f, spacing * z, color );
 		}
 
-		pointBatch.setAttribute( 0, positions, 3 );
-		pointBatch.setAttribute( 1, colors,    3 );
-		pointBatch.setIndices( indices );
-		
-		points.clear();
-		
-		pointBatch.draw( GL_POINTS );
+		for( int x = -steps; x <= steps; ++x )
+		{
+			addVertex( grid, spacing * x, 0.0f, -extent, color );
+			addVertex( grid, spacing * x, 0.0f,  extent, color );
+		}
 	}
-	
 }
@@ -0,0 +1,250 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.ARBGetProgramBinary.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+
+
+/**
+ * Disk cache for linked shader programs (OpenGL 4.1 or ARB_get_program_binary).<br>
+ * A program is stored under the SHA-256 of its shader sources and of the GL_VENDOR, GL_RENDERER and GL_VERSION
+ * strings, so a driver update or a changed source file never loads a stale binary. The driver may still reject a
+ * binary (e.g. after an update that keeps the version string), then load() returns 0, the file is deleted and the
+ * caller compiles from source.
+ *
+ * <pre>
+ * int magic, version, binary format, binary length
+ * byte[] binary
+ * </pre>
+ */
+public final class ProgramBinaryCache
+{
+	public static final String DEFAULT_DIRECTORY = OBJCache.DEFAULT_DIRECTORY + "/shaders";
+
+	private static final int MAGIC   = 0x4E494250; // "PBIN"
+	private static final int VERSION = 1;
+
+	private static Path    directory = Paths.get( DEFAULT_DIRECTORY );
+	private static String  driver;
+	private static Boolean supported;
+
+
+
+	/**
+	 * @return false if the context can't retrieve program binaries, load() and store() do nothing then
+	 */
+	public static boolean isSupported()
+	{
+		if( supported == null )
+		{
+			GLCapabilities caps = GL.getCapabilities();
+
+			supported = (caps.OpenGL41 || caps.GL_ARB_get_program_binary) && glGetInteger( GL_NUM_PROGRAM_BINARY_FORMATS ) > 0;
+		}
+
+		return supported;
+	}
+
+
+	public static void setDirectory( Path cacheDirectory )
+	{
+		directory = cacheDirectory;
+	}
+
+
+	/**
+	 * Key of a program built from sources, sources are hashed in order
+	 */
+	public static String key( String... sources )
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+
+			digest.update( driver().getBytes(StandardCharsets.UTF_8) );
+
+			for( String source : sources )
+			{
+				digest.update( (byte) 0 );
+				digest.update( source.getBytes(StandardCharsets.UTF_8) );
+			}
+
+			StringBuilder key = new StringBuilder( 64 );
+
+			for( byte b : digest.digest() )
+				key.append( Character.forDigit( (b >> 4) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+
+			return key.toString();
+		}
+		catch( NoSuchAlgorithmException e )
+		{
+			throw new IllegalStateException( e );
+		}
+	}
+
+
+	/**
+	 * Creates a program from the cached binary.
+	 * @return the linked program or 0 if there is no usable binary
+	 */
+	public static int load( String key )
+	{
+		if( !isSupported() )
+			return 0;
+
+		Path file = directory.resolve( key + ".bin" );
+
+		if( !Files.isReadable(file) )
+			return 0;
+
+		ByteBuffer binary;
+		int        format;
+
+		try
+		{
+			byte[]     bytes  = Files.readAllBytes( file );
+			ByteBuffer header = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+
+			if( bytes.length < 16 || header.getInt() != MAGIC || header.getInt() != VERSION )
+				return 0;
+
+			format = header.getInt();
+
+			int length = header.getInt();
+
+			if( length != bytes.length - 16 )
+				return 0;
+
+			binary = BufferUtils.createByteBuffer( length );
+			binary.put( bytes, 16, length ).flip();
+		}
+		catch( IOException e )
+		{
+			System.err.println( "*Error* Can't read program binary: " + file );
+			return 0;
+		}
+
+		int program = glCreateProgram();
+		glProgramBinary( program, format, binary );
+
+		if( glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE )
+		{
+			// rejected by the driver, rebuilt and rewritten by the caller
+			glDeleteProgram( program );
+			deleteFile( file );
+
+			return 0;
+		}
+
+		return program;
+	}
+
+
+	/**
+	 * Has to be called before a program is linked, so the driver keeps its binary retrievable
+	 */
+	public static void prepare( int program )
+	{
+		if( isSupported() )
+			glProgramParameteri( program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE );
+	}
+
+
+	/**
+	 * Writes the binary of a linked program, failures are reported but not fatal
+	 */
+	public static void store( String key, int program )
+	{
+		if( !isSupported() || glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE )
+			return;
+
+		int length = glGetProgrami( program, GL_PROGRAM_BINARY_LENGTH );
+
+		if( length <= 0 )
+			return;
+
+		ByteBuffer file   = BufferUtils.createByteBuffer( 16 + length ).order( ByteOrder.LITTLE_ENDIAN );
+		IntBuffer  format = BufferUtils.createIntBuffer( 1 );
+		IntBuffer  size   = BufferUtils.createIntBuffer( 1 );
+
+		file.position( 16 );
+		glGetProgramBinary( program, size, format, file.slice() );
+
+		file.position( 0 );
+		file.putInt( MAGIC );
+		file.putInt( VERSION );
+		file.putInt( format.get(0) );
+		file.putInt( size.get(0) );
+		file.limit( 16 + size.get(0) );
+		file.position( 0 );
+
+		Path cacheFile     = directory.resolve( key + ".bin" );
+		Path temporaryFile = null;
+
+		// a unique temporary file, other processes may store the same program at the same time
+		try
+		{
+			Path parent = cacheFile.toAbsolutePath().getParent();
+
+			Files.createDirectories( parent );
+
+			temporaryFile = Files.createTempFile( parent, cacheFile.getFileName().toString(), ".tmp" );
+
+			try( FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) )
+			{
+				while( file.hasRemaining() )
+					channel.write( file );
+			}
+
+			Files.move( temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING );
+		}
+		catch( IOException e )
+		{
+			System.err.println( "*Error* Can't write program binary: " + cacheFile );
+
+			if( temporaryFile != null )
+				deleteFile( temporaryFile );
+		}
+	}
+
+
+	private static String driver()
+	{
+		if( driver == null )
+			driver = glGetString( GL_VENDOR ) + "\n" + glGetString( GL_RENDERER ) + "\n" + glGetString( GL_VERSION );
+
+		return driver;
+	}
+
+
+	private static void deleteFile( Path file )
+	{
+		try
+		{
+			Files.deleteIfExists( file );
+		}
+		catch( IOException e )
+		{
+			System.err.println( "*Error* Can't delete program binary: " + file );
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import cgthk.math.Mat4;
+import cgthk.math.Vec3;
+
+
+
+/**
+ * Collects the draw calls of a frame, sorts them by a 64 bit key and submits them without redundant
+ * program, VAO and texture binds.<br>
+ * <br>
+ * Opaque items:      [63] 0 | [62..51] program | [50..39] textures | [38..24] VAO | [23..0] depth, front to back<br>
+ * Transparent items: [63] 1 | [62..39] depth, back to front | [38..27] program | [26..15] textures | [14..0] VAO<br>
+ * <br>
+ * So all opaque items are drawn first, grouped by state and nearest first within a state. Transparent items
+ * are drawn afterwards, farthest first, with blending enabled and depth writes disabled. The state fields only
+ * hold the low bits of the OpenGL names, a collision costs a bind but never a wrong one, because the actual
+ * names are compared during submission. Depth is the view space distance of the bounding box center.<br>
+ * <br>
+ * Uniforms that are the same for all objects (view, projection, lights) keep their values per program and are
+ * set once before flush(), per object uniforms are set by the ObjectSetup callback. Or, with setObjectBlock(), the
+ * per object values of all items are written as std140 blocks into one StreamBuffer range and every draw only binds
+ * its range to ShaderProgram.OBJECT_BLOCK_BINDING, so no glUniform call is made per object.
+ */
+public class RenderQueue
+{
+	/** called before each draw with the program already in use */
+	public interface ObjectSetup
+	{
+		void apply( ShaderProgram program, Mesh mesh );
+	}
+
+	/** writes the ShaderProgram.OBJECT_BLOCK values of a mesh */
+	public interface ObjectBlock
+	{
+		void write( Std140Writer writer, Mesh mesh );
+	}
+
+	private static final long TRANSPARENT_BIT = 1L << 63;
+	private static final int  MAX_TEXTURES    = 8;
+
+	private long[]          m_lKeys     = new long[64];
+	private Mesh[]          m_Meshes    = new Mesh[64];
+	private ShaderProgram[] m_Programs  = new ShaderProgram[64];
+	private int[]           m_iOrder    = new int[64];
+	private int[]           m_iTemp     = new int[64];
+	private int[]           m_iCounts   = new int[256];
+	private int[]           m_iTextures = new int[MAX_TEXTURES];
+	private int             m_iCount;
+
+	private ObjectBlock     m_ObjectBlock;
+	private int             m_iObjectBlockSize;
+	private Std140Writer    m_Writer    = new Std140Writer();
+	private Mat4            m_Model     = new Mat4();
+
+	// third row of the view matrix, gives the view space z
+	private float m_fViewZX, m_fViewZY, m_fViewZZ, m_fViewZW;
+
+
+
+	/**
+	 * Starts a new frame, all previously submitted items are discarded
+	 */
+	public void begin( Mat4 viewMatrix )
+	{
+		m_iCount  = 0;
+		m_fViewZX = viewMatrix.m20;
+		m_fViewZY = viewMatrix.m21;
+		m_fViewZZ = viewMatrix.m22;
+		m_fViewZW = viewMatrix.m23;
+	}
+
+
+	public void submit( ShaderProgram program, Mesh mesh )
+	{
+		this.add( program, mesh, false );
+	}
+
+
+	/**
+	 * Items from Scene.getTransparentMeshes(), sorted back to front after all opaque items
+	 */
+	public void submitTransparent( ShaderProgram program, Mesh mesh )
+	{
+		this.add( program, mesh, true );
+	}
+
+
+	/**
+	 * Uploads the per object uniforms of all items in flush() as uniform blocks.
+	 * @param size Bytes of the std140 block, at least what block writes
+	 * @param block null to switch back to ObjectSetup only
+	 */
+	public void setObjectBlock( ObjectBlock block, int size )
+	{
+		m_ObjectBlock      = block;
+		m_iObjectBlockSize = Std140Writer.align( size, 16 );
+	}
+
+
+	/**
+	 * Sorts and draws all submitted items, leaves the last program in use
+	 * @param setup Called before every draw, may be null if setObjectBlock() provides all per object values
+	 */
+	public void flush( ObjectSetup setup )
+	{
+		this.sort();
+
+		int  blockStride = 0;
+		int  blockBuffer = 0;
+		long blockOffset = 0;
+
+		if( m_ObjectBlock != null && m_iCount > 0 )
+		{
+			int          alignment = ShaderProgram.getUniformBufferOffsetAlignment();
+			StreamBuffer stream    = StreamBuffer.shared();
+
+			blockStride = Std140Writer.align( m_iObjectBlockSize, alignment );
+
+			// one range for all blocks in draw order, the item's block is bound right before its draw
+			ByteBuffer data = stream.map( m_iCount * blockStride, alignment );
+
+			for( int i = 0; i < m_iCount; ++i )
+				m_ObjectBlock.write( m_Writer.begin(data, i * blockStride), m_Meshes[m_iOrder[i]] );
+
+			blockOffset = stream.commit();
+			blockBuffer = stream.getBufferID();
+		}
+
+		boolean blend       = glIsEnabled( GL_BLEND );
+		boolean transparent = false;
+		int     program     = -1;
+		int     vao         = -1;
+
+		Arrays.fill( m_iTextures, -1 );
+
+		for( int i = 0; i < m_iCount; ++i )
+		{
+			int           item       = m_iOrder[i];
+			Mesh          mesh       = m_Meshes[item];
+			ShaderProgram shader     = m_Programs[item];
+			boolean       programSet = false;
+
+			if( !transparent && (m_lKeys[item] & TRANSPARENT_BIT) != 0 )
+			{
+				transparent = true;
+				glEnable( GL_BLEND );
+				glBlendFunc( GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA );
+				glDepthMask( false );
+			}
+
+			if( shader.getProgramID() != program )
+			{
+				program    = shader.getProgramID();
+				programSet = true;
+				shader.useProgram();
+			}
+
+			if( mesh.getVAO() != vao )
+			{
+				vao = mesh.getVAO();
+				glBindVertexArray( vao );
+			}
+
+			int textureCount = Math.min( mesh.getTextureCount(), MAX_TEXTURES );
+
+			for( int unit = 0; unit < textureCount; ++unit )
+			{
+				int texture = mesh.getTextureAt( unit ).getID();
+
+				if( m_iTextures[unit] != texture )
+				{
+					m_iTextures[unit] = texture;
+					glActiveTexture( GL_TEXTURE0 + unit );
+					glBindTexture( GL_TEXTURE_2D, texture );
+					programSet = true;
+				}
+
+				if( programSet )
+					shader.setUniform( mesh.getTextureName(unit), unit );
+			}
+
+			if( blockBuffer != 0 )
+				glBindBufferRange( GL_UNIFORM_BUFFER, ShaderProgram.OBJECT_BLOCK_BINDING, blockBuffer,
+								   blockOffset + (long) i * blockStride, m_iObjectBlockSize );
+
+			if( setup != null )
+				setup.apply( shader, mesh );
+
+			mesh.drawBound();
+		}
+
+		glBindVertexArray( 0 );
+		glActiveTexture( GL_TEXTURE0 );
+
+		if( transparent )
+		{
+			glDepthMask( true );
+
+			if( !blend )
+				glDisable( GL_BLEND );
+		}
+	}
+
+
+	/**
+	 * @return the number of items submitted since begin()
+	 */
+	public int size()
+	{
+		return m_iCount;
+	}
+
+
+	private void add( ShaderProgram program, Mesh mesh, boolean transparent )
+	{
+		if( m_iCount == m_lKeys.length )
+		{
+			int capacity = m_iCount * 2;
+
+			m_lKeys    = Arrays.copyOf( m_lKeys,    capacity );
+			m_Meshes   = Arrays.copyOf( m_Meshes,   capacity );
+			m_Programs = Arrays.copyOf( m_Programs, capacity );
+			m_iOrder   = new int[capacity];
+			m_iTemp    = new int[capacity];
+		}
+
+		long state = ((long) (program.getProgramID() & 0xFFF) << 27)
+				   | ((long) (textureKey(mesh)        & 0xFFF) << 15)
+				   |  (long) (mesh.getVAO()           & 0x7FFF);
+
+		long depth = depthKey( this.viewDepth(mesh) );
+
+		if( transparent )
+			m_lKeys[m_iCount] = TRANSPARENT_BIT | ((0xFFFFFFL - depth) << 39) | state;
+		else
+			m_lKeys[m_iCount] = (state << 24) | depth;
+
+		m_Meshes[m_iCount]   = mesh;
+		m_Programs[m_iCount] = program;
+		m_iCount++;
+	}
+
+
+	/**
+	 * View space distance of the world space bounding box center, 0 behind the camera.
+	 * Meshes without bounds use the model translation.
+	 */
+	private float viewDepth( Mesh mesh )
+	{
+		Mat4 model = mesh.getModelMatrix( m_Model );
+		Vec3 min   = mesh.getLocalMin();
+		Vec3 max   = mesh.getLocalMax();
+
+		float cx = 0.0f, cy = 0.0f, cz = 0.0f;
+
+		if( min != null && max != null )
+		{
+			cx = (min.x + max.x) * 0.5f;
+			cy = (min.y + max.y) * 0.5f;
+			cz = (min.z + max.z) * 0.5f;
+		}
+
+		float worldX = model.m00 * cx + model.m01 * cy + model.m02 * cz + model.m03;
+		float worldY = model.m10 * cx + model.m11 * cy + model.m12 * cz + model.m13;
+		float worldZ = model.m20 * cx + model.m21 * cy + model.m22 * cz + model.m23;
+
+		return -(m_fViewZX * worldX + m_fViewZY * worldY + m_fViewZZ * worldZ + m_fViewZW);
+	}
+
+
+	/**
+	 * The bits of a positive float sort like the float, the upper 24 of them are kept
+	 */
+	private static long depthKey( float depth )
+	{
+		if( !(depth > 0.0f) )
+			return 0;
+
+		return Float.floatToRawIntBits( depth ) >>> 7;
+	}
+
+
+	private static int textureKey( Mesh mesh )
+	{
+		int key = 0;
+
+		for( int i = 0; i < mesh.getTextureCount(); ++i )
+			key = key * 31 + mesh.getTextureAt( i ).getID();
+
+		return key;
+	}
+
+
+	/**
+	 * LSD radix sort of the item indices by key, 8 bits per pass, passes in which all keys share the
+	 * same byte are skipped
+	 */
+	private void sort()
+	{
+		int[] order = m_iOrder;
+		int[] temp  = m_iTemp;
+
+		for( int i = 0; i < m_iCount; ++i )
+			order[i] = i;
+
+		for( int shift = 0; shift < 64; shift += 8 )
+		{
+			Arrays.fill( m_iCounts, 0 );
+
+			for( int i = 0; i < m_iCount; ++i )
+				m_iCounts[(int) (m_lKeys[i] >>> shift) & 0xFF]++;
+
+			if( m_iCounts[(int) (m_lKeys[0] >>> shift) & 0xFF] == m_iCount )
+				continue;
+
+			int offset = 0;
+
+			for( int bucket = 0; bucket < 256; ++bucket )
+			{
+				int count = m_iCounts[bucket];
+				m_iCounts[bucket] = offset;
+				offset += count;
+			}
+
+			for( int i = 0; i < m_iCount; ++i )
+			{
+				int item = order[i];
+				temp[m_iCounts[(int) (m_lKeys[item] >>> shift) & 0xFF]++] = item;
+			}
+
+			int[] swap = order;
+			order      = temp;
+			temp       = swap;
+		}
+
+		m_iOrder = order;
+		m_iTemp  = temp;
+	}
+}
@@ -1,11 +1,12 @@
 package cgthk.util;
 
-import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
 
-import cgthk.BVH_simple.BVH;
 import cgthk.math.Mat4;
 import cgthk.math.Vec3;
 import cgthk.math.Vec4;
@@ -29,6 +30,13 @@ import static org.lwjgl.opengl.GL32.*;
 
 public class Scene 
 {
+	/** selectObject() casts a ray through the top level BVH on the CPU, the result is available immediately */
+	public static final int PICKING_RAY       = 0;
+	/** selectObject() renders object IDs on the GPU, the selection changes one or two frames later, see updatePicking() */
+	public static final int PICKING_ID_BUFFER = 1;
+	/** geometries shared by fewer meshes are not batched by groupInstances() */
+	public static final int MIN_INSTANCES     = 2;
+	
 	private HashMap<String, Integer> meshIDs;
 	private ArrayList<Mesh>          meshes;
 	private ArrayList<Mesh>			 transparentMeshes;
@@ -38,6 +46,15 @@ public class Scene
 	private int                      selectedTransparentMeshIndex;
 	private int                      selectedLightIndex;
 	private Camera                   camera;
+	private SceneBVH                 sceneBVH;
+	private IDBufferPicker           idBufferPicker;
+	private int                      pickingMode;
+	
+	private IdentityHashMap<Mesh, ArrayList<Mesh>> instanceGroups;
+	private IdentityHashMap<Mesh, Mesh>            instanceBatches;
+	private IdentityHashMap<Mesh, Boolean>         sceneGeometries;
+	private float[]                                instanceData;
+	private Mat4                                   instanceModel;
 	
 	
 	
@@ -51,6 +68,14 @@ public class Scene
 		selectedLightIndex = -1;
 		selectedTransparentMeshIndex = -1;
 		camera             = null;
+		sceneBVH           = new SceneBVH();
+		idBufferPicker     = new IDBufferPicker();
+		pickingMode        = PICKING_RAY;
+		instanceGroups     = new IdentityHashMap<Mesh, ArrayList<Mesh>>();
+		instanceBatches    = new IdentityHashMap<Mesh, Mesh>();
+		sceneGeometries    = new IdentityHashMap<Mesh, Boolean>();
+		instanceData       = new float[0];
+		instanceModel      = new Mat4();
 	}
 	
 	
@@ -78,91 +103,227 @@ public class Scene
 		transparentMeshes.add(mesh);
 	}
 	
+	/**
+	 * Selects the object under the given pixel, see pick(). The selection stays unchanged if nothing is hit.
+	 * In PICKING_ID_BUFFER mode the selection is applied by a later updatePicking() call.
+	 */
 	public void selectObject( int pixelCoordX, int pixelCoordY )
+	{
+		if( pickingMode == PICKING_ID_BUFFER )
+		{
+			idBufferPicker.request( camera.getViewMatrix(), camera.getProjectionMatrix(), camera.getWidth(), camera.getHeight(),
+									pixelCoordX, pixelCoordY, pixelCoordX, pixelCoordY, meshes, lights, transparentMeshes )
+						  .thenAccept( objects -> { if( objects.length > 0 ) this.selectIndex(objects[0]); } );
+			return;
+		}
+		
+		int object = this.pickObject( pixelCoordX, pixelCoordY );
+		
+		if( object >= 0 )
+			this.selectIndex( object );
+	}
+	
+	
+	/**
+	 * Finds all meshes, lights and transparent meshes that are visible inside the pixel rectangle spanned by the two
+	 * corners (origin bottom left, inclusive), e.g. for marquee selection. Uses the same GPU ID pass as PICKING_ID_BUFFER
+	 * independent of the picking mode, so only unoccluded objects are found.
+	 * @return future that completes inside updatePicking(), one or two frames later
+	 */
+	public CompletableFuture<ArrayList<Mesh>> pickRegion( int x0, int y0, int x1, int y1 )
+	{
+		ArrayList<Mesh> objects = new ArrayList<Mesh>( meshes.size() + lights.size() + transparentMeshes.size() );
+		objects.addAll( meshes );
+		objects.addAll( lights );
+		objects.addAll( transparentMeshes );
+		
+		return idBufferPicker.request( camera.getViewMatrix(), camera.getProjectionMatrix(), camera.getWidth(), camera.getHeight(),
+									   x0, y0, x1, y1, objects )
+							 .thenApply( indices ->
+							 {
+								 ArrayList<Mesh> result = new ArrayList<Mesh>( indices.length );
+								 
+								 for( int index : indices )
+									 result.add( objects.get(index) );
+								 
+								 return result;
+							 } );
+	}
+	
+	
+	/**
+	 * Completes finished GPU picking requests, has to be called once per frame on the OpenGL thread
+	 */
+	public void updatePicking()
+	{
+		idBufferPicker.update();
+	}
+	
+	
+	/**
+	 * @param mode PICKING_RAY (default) or PICKING_ID_BUFFER
+	 */
+	public void setPickingMode( int mode )
+	{
+		pickingMode = mode;
+	}
+	
+	
+	public int getPickingMode()
+	{
+		return pickingMode;
+	}
+	
+	
+	/**
+	 * @param object Index into meshes, then lights, then transparent meshes
+	 */
+	private void selectIndex( int object )
+	{
+		// objects may have been removed while an ID buffer request was in flight
+		if( object >= meshes.size() + lights.size() + transparentMeshes.size() )
+			return;
+		
+		this.clearSelectedObject();
+		
+		if( object < meshes.size() )
+			selectedMeshIndex = object;
+		else if( object < meshes.size() + lights.size() )
+			selectedLightIndex = object - meshes.size();
+		else
+			selectedTransparentMeshIndex = object - meshes.size() - lights.size();
+	}
+	
+	
+	/**
+	 * Finds the closest mesh, light or transparent mesh under the given pixel (origin bottom left, like glReadPixels).<br>
+	 * The picking ray goes from the camera through the pixel, nothing is read back from the GPU. All objects share
+	 * one top level BVH (see SceneBVH) that is refit when model matrices change, so only objects whose world space
+	 * bounds are hit by the ray are ray cast, nearest first, with a single BVH traversal each.
+	 * @return null if nothing is hit
+	 */
+	public PickResult pick( int pixelCoordX, int pixelCoordY )
+	{
+		int object = this.pickObject( pixelCoordX, pixelCoordY );
+		
+		if( object < 0 )
+			return null;
+		
+		return new PickResult( sceneBVH.getObject(object),
+							   sceneBVH.getPickDistance(),
+							   sceneBVH.getPickPosition(),
+							   sceneBVH.findPickTriangle(object),
+							   sceneBVH.getPickFace() );
+	}
+	
+	
+	/**
+	 * @return the SceneBVH object index (meshes, then lights, then transparent meshes) or -1
+	 */
+	private int pickObject( int pixelCoordX, int pixelCoordY )
 	{
 		Mat4 viewMatrix     = camera.getViewMatrix();
 		Mat4 projMatrix     = camera.getProjectionMatrix();
 		
 		Mat4 viewInverse    = Mat4.inverse( viewMatrix );
-		Vec3 pickedPosition = unprojectPosition( viewMatrix, projMatrix, pixelCoordX, pixelCoordY, 0.0f, 0.0f, 1.0f, 1.0f );
+		Vec3 farPosition    = unprojectRay( viewMatrix, projMatrix, pixelCoordX, pixelCoordY );
 		Vec3 cameraPosition = Vec3.transform( new Vec3(), 1.0f, viewInverse );
 		
-		float closestDistance = Float.MAX_VALUE;
+		sceneBVH.update( meshes, lights, transparentMeshes );
 		
-		for( int i = 0; i < meshes.size(); ++i )
+		return sceneBVH.pick( cameraPosition, farPosition );
+	}
+	
+	
+	/**
+	 * Splits meshes into meshes that are drawn one by one and one instanced batch per geometry that is shared by
+	 * at least MIN_INSTANCES of them (see Mesh( Mesh geometry )). The batch meshes are kept between calls and only
+	 * their instance buffers are updated, each batch is drawn with a single Mesh.drawInstanced() call. A batch whose
+	 * meshes are all culled is kept, it's only freed when no mesh of the scene uses its geometry anymore.
+	 * @param singles Cleared and filled with the meshes that aren't batched
+	 * @param batches Cleared and filled with the batch meshes
+	 */
+	public void groupInstances( ArrayList<Mesh> meshes, ArrayList<Mesh> singles, ArrayList<Mesh> batches )
+	{
+		singles.clear();
+		batches.clear();
+		
+		for( ArrayList<Mesh> group : instanceGroups.values() )
+			group.clear();
+		
+		for( Mesh mesh : meshes )
+			instanceGroups.computeIfAbsent( mesh.getGeometry(), geometry -> new ArrayList<Mesh>() ).add( mesh );
+		
+		Iterator<Mesh> geometries = instanceGroups.keySet().iterator();
+		boolean        collected  = false;
+		
+		while( geometries.hasNext() )
 		{
-			Mesh mesh             = meshes.get( i );
-			Mat4 transform        = mesh.getModelMatrix();
-			Mat4 inverseTransform = Mat4.inverse( transform );
-			Vec3 rayStart         = Vec3.transform( cameraPosition, 1.0f, inverseTransform );
-			Vec3 rayEnd           = Vec3.transform( pickedPosition, 1.0f, inverseTransform );
-			Vec3 rayDirection     = Vec3.sub( rayEnd, rayStart );
-			BVH  bvh              = mesh.m_bvh;
-			Vec3 nearestPosition  = bvh.findFirstHitPosition( rayStart, rayDirection );
+			Mesh            geometry = geometries.next();
+			ArrayList<Mesh> group    = instanceGroups.get( geometry );
 			
-			if( bvh.findFirstHitPosition( rayStart, rayDirection ) != null )
+			if( group.size() < MIN_INSTANCES )
 			{
-				float distance = Vec3.length( nearestPosition.sub(rayStart).transform(0.0f, transform) );
+				singles.addAll( group );
 				
-				if( distance < closestDistance )
+				// geometries that are gone from the scene (not only culled) release their batch
+				if( group.isEmpty() )
 				{
-					closestDistance    = distance;
-					selectedMeshIndex  = i;
-					selectedLightIndex = -1; 
-					selectedTransparentMeshIndex = -1;
+					if( !collected )
+					{
+						this.collectGeometries();
+						collected = true;
+					}
+					
+					if( !sceneGeometries.containsKey(geometry) )
+					{
+						Mesh batch = instanceBatches.remove( geometry );
+						
+						if( batch != null )
+							batch.freeGLResources();
+						
+						geometries.remove();
+					}
 				}
+				
+				continue;
 			}
-		}
-		
-		for( int i = 0; i < lights.size(); ++i )
-		{
-			Mesh mesh             = lights.get( i );
-			Mat4 transform        = mesh.getModelMatrix();
-			Mat4 inverseTransform = Mat4.inverse( transform );
-			Vec3 rayStart         = Vec3.transform( cameraPosition, 1.0f, inverseTransform );
-			Vec3 rayEnd           = Vec3.transform( pickedPosition, 1.0f, inverseTransform );
-			Vec3 rayDirection     = Vec3.sub( rayEnd, rayStart );
-			BVH  bvh              = mesh.m_bvh;
-			Vec3 nearestPosition  = bvh.findFirstHitPosition( rayStart, rayDirection );
 			
-			if( nearestPosition != null )
+			Mesh batch = instanceBatches.get( geometry );
+			
+			if( batch == null )
 			{
-				float distance = Vec3.length( nearestPosition.sub(rayStart).transform(0.0f, transform) );
-				
-				if( distance < closestDistance )
-				{
-					closestDistance   = distance;
-					selectedMeshIndex  = -1;
-					selectedTransparentMeshIndex = -1;
-					selectedLightIndex = i; 
-				}
+				batch = new Mesh( geometry );
+				instanceBatches.put( geometry, batch );
 			}
+			
+			if( instanceData.length < group.size() * Mesh.INSTANCE_FLOATS )
+				instanceData = new float[group.size() * Mesh.INSTANCE_FLOATS];
+			
+			for( int i = 0; i < group.size(); ++i )
+				Mesh.putInstance( instanceData, i, group.get(i).getModelMatrix(instanceModel), group.get(i).getDiffuseColorRGBA() );
+			
+			batch.setInstanceData( instanceData, group.size() );
+			batches.add( batch );
 		}
+	}
+	
+	
+	/**
+	 * Fills sceneGeometries with the geometries of all meshes, lights and transparent meshes
+	 */
+	private void collectGeometries()
+	{
+		sceneGeometries.clear();
+		
+		for( int i = 0; i < meshes.size(); ++i )
+			sceneGeometries.put( meshes.get(i).getGeometry(), Boolean.TRUE );
+		
+		for( int i = 0; i < lights.size(); ++i )
+			sceneGeometries.put( lights.get(i).getGeometry(), Boolean.TRUE );
 		
 		for( int i = 0; i < transparentMeshes.size(); ++i )
-		{
-			Mesh mesh             = transparentMeshes.get( i );
-			Mat4 transform        = mesh.getModelMatrix();
-			Mat4 inverseTransform = Mat4.inverse( transform );
-			Vec3 rayStart         = Vec3.transform( cameraPosition, 1.0f, inverseTransform );
-			Vec3 rayEnd           = Vec3.transform( pickedPosition, 1.0f, inverseTransform );
-			Vec3 rayDirection     = Vec3.sub( rayEnd, rayStart );
-			BVH  bvh              = mesh.m_bvh;
-			Vec3 nearestPosition  = bvh.findFirstHitPosition( rayStart, rayDirection );
-			
-			if( bvh.findFirstHitPosition( rayStart, rayDirection ) != null )
-			{
-				float distance = Vec3.length( nearestPosition.sub(rayStart).transform(0.0f, transform) );
-				
-				if( distance < closestDistance )
-				{
-					closestDistance    = distance;
-					selectedTransparentMeshIndex  = i;
-					selectedLightIndex = -1; 
-					selectedMeshIndex = -1;
-				}
-			}
-		}
+			sceneGeometries.put( transparentMeshes.get(i).getGeometry(), Boolean.TRUE );
 	}
 	
 	
@@ -220,36 +381,20 @@ public class Scene
 	}
 	
 	
-	private Vec3 unprojectPosition( Mat4 viewMatrix, Mat4 projMatrix, int coordX, int coordY, float viewportX, float viewportY, float viewportWidth, float viewportHeight )
+	/**
+	 * @return the world space position on the far plane under the given pixel
+	 */
+	private Vec3 unprojectRay( Mat4 viewMatrix, Mat4 projMatrix, int coordX, int coordY )
 	{
-		viewMatrix = new Mat4( viewMatrix );
-		projMatrix = new Mat4( projMatrix );
-		
-		IntBuffer   viewport = BufferUtils.createIntBuffer(16);
-		FloatBuffer depth    = BufferUtils.createFloatBuffer(1);
-//		FloatBuffer position = BufferUtils.createFloatBuffer(3);
-		
-		int width  = camera.getWidth();
-		int height = camera.getHeight();
+		IntBuffer viewport = BufferUtils.createIntBuffer( 4 );
 		
-		viewport.put( (int) (viewportX * width) );
-		viewport.put( (int) (viewportY * height) );
-		viewport.put( (int) (viewportWidth  * width) );
-		viewport.put( (int) (viewportHeight * height) );
+		viewport.put( 0 );
+		viewport.put( 0 );
+		viewport.put( camera.getWidth() );
+		viewport.put( camera.getHeight() );
 		viewport.flip();
 		
-		glBindFramebuffer( GL_DRAW_FRAMEBUFFER, 0 );
-		glBlitFramebuffer( 0, 0, (int) (viewportX * width), (int) (viewportX * height), 
-						   0, 0, (int) (viewportX * width), (int) (viewportX * height), 
-						   GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT, GL_NEAREST );
-
-		glBindFramebuffer( GL_READ_FRAMEBUFFER, 0 );
-		glReadPixels( coordX, coordY, 1, 1, GL_DEPTH_COMPONENT, GL_FLOAT, depth );
-		//gluUnProject( coordX, coordY, depth.get(0), viewMatrix.toFloatBuffer(), projMatrix.toFloatBuffer(), viewport, position );
-		Vec3 position = unprojectErsatz( coordX, coordY, depth.get(0), viewMatrix, projMatrix, viewport );
-		
-		return position;
-		//return new Vec3( position.get(0), position.get(1), position.get(2) );
+		return unprojectErsatz( coordX, coordY, 1.0f, viewMatrix, projMatrix, viewport );
 	}
 	
 	// Replaces the gluUnProject function
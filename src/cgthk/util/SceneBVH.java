@@ -0,0 +1,655 @@
+package cgthk.util;
+
+import java.util.ArrayList;
+
+import cgthk.BVH_simple.BVH;
+import cgthk.BVH_simple.Collision;
+import cgthk.math.Mat4;
+import cgthk.math.Vec3;
+
+
+
+/**
+ * Top level bounding volume hierarchy over the world space bounds of all scene objects, used by Scene for picking.<br>
+ * update() compares the objects and their transform versions with the last call: a changed object list rebuilds the tree
+ * (median split), moved objects only refit the node bounds. pick() visits the nodes nearest first and stops as soon as
+ * the next node starts behind the closest hit, so only meshes whose bounds are hit by the ray get the exact BVH test.
+ */
+final class SceneBVH
+{
+	/** exact intersection of the ray with one object */
+	interface ObjectTest
+	{
+		/**
+		 * @return the world space distance of the hit or Float.POSITIVE_INFINITY
+		 */
+		float intersect( int object );
+	}
+
+
+	private static final int LEAF_SIZE = 4;
+
+	// objects
+	private Mesh[]  m_Objects           = new Mesh[0];
+	private int[]   m_iVersions         = new int[0];
+	private Mat4[]  m_Transforms        = new Mat4[0];
+	private Mat4[]  m_InverseTransforms = new Mat4[0];
+	private float[] m_fObjectBounds     = new float[0];
+	private int     m_iObjectCount;
+
+	// nodes, inner nodes store their two children at first and first + 1, leaves a range of m_iOrder
+	private int[]   m_iOrder            = new int[0];
+	private float[] m_fNodeBounds       = new float[0];
+	private int[]   m_iNodeFirst        = new int[0];
+	private int[]   m_iNodeCount        = new int[0];
+	private int     m_iNodeTotal;
+
+	// traversal heap, reused between picks
+	private float[] m_fHeapKeys         = new float[0];
+	private int[]   m_iHeapNodes        = new int[0];
+
+	private float   m_fPickDistance;
+	private Vec3    m_PickPosition      = new Vec3();
+	private int[]   m_iPickFace         = new int[3];
+	
+	// hit of the last intersectObject() call
+	private Vec3    m_HitPosition       = new Vec3();
+	private int[]   m_iHitFace          = new int[3];
+
+
+
+	/**
+	 * Synchronizes the tree with the given object lists, objects are numbered in list order.
+	 * @return true if the tree has been rebuilt or refit
+	 */
+	@SafeVarargs
+	final boolean update( ArrayList<Mesh>... lists )
+	{
+		int count = 0;
+
+		for( ArrayList<Mesh> list : lists )
+			count += list.size();
+
+		boolean rebuild = count != m_iObjectCount;
+		boolean refit   = false;
+
+		if( rebuild )
+			this.resize( count );
+
+		int object = 0;
+
+		for( ArrayList<Mesh> list : lists )
+		{
+			for( int i = 0; i < list.size(); ++i, ++object )
+			{
+				Mesh mesh = list.get( i );
+
+				if( m_Objects[object] == mesh && m_iVersions[object] == mesh.getTransformVersion() )
+					continue;
+
+				rebuild |= m_Objects[object] != mesh;
+				refit    = true;
+
+				Mat4 transform = mesh.getModelMatrix();
+
+				m_Objects[object]           = mesh;
+				m_iVersions[object]         = mesh.getTransformVersion();
+				m_Transforms[object]        = transform;
+				m_InverseTransforms[object] = Mat4.inverse( transform );
+
+				this.setObjectBounds( object, mesh.getLocalMin(), mesh.getLocalMax(), transform );
+			}
+		}
+
+		if( rebuild )
+			this.build();
+		else if( refit )
+			this.refit();
+
+		return rebuild || refit;
+	}
+
+
+	/**
+	 * Casts a ray from origin through target (both world space) and runs the exact mesh BVH test on
+	 * the objects whose bounds are hit, nearest first.
+	 * @return the closest hit object or -1
+	 */
+	int pick( Vec3 origin, Vec3 target )
+	{
+		return this.traverse( origin, Vec3.sub(target, origin), object ->
+		{
+			float distance = this.intersectObject( object, origin, target );
+			
+			// traverse() accepts the hit under the same condition
+			if( distance < m_fPickDistance )
+			{
+				m_PickPosition = m_HitPosition;
+				System.arraycopy( m_iHitFace, 0, m_iPickFace, 0, 3 );
+			}
+			
+			return distance;
+		} );
+	}
+
+
+	/**
+	 * World space distance from the ray origin to the hit of the last pick()
+	 */
+	float getPickDistance()
+	{
+		return m_fPickDistance;
+	}
+
+
+	/**
+	 * World space position of the hit of the last pick()
+	 */
+	Vec3 getPickPosition()
+	{
+		return new Vec3( m_PickPosition );
+	}
+
+
+	/**
+	 * Vertex indices of the triangle hit by the last pick()
+	 */
+	int[] getPickFace()
+	{
+		return m_iPickFace.clone();
+	}
+
+
+	/**
+	 * Looks up the triangle hit by the last pick() in the face list of the objects BVH. Faces added with
+	 * addFaces( indices, 0, count ) to a new BVH have the same order as the index array.
+	 * @return the triangle index or -1
+	 */
+	int findPickTriangle( int object )
+	{
+		BVH bvh = m_Objects[object].getBVH();
+		
+		if( bvh == null )
+			return -1;
+		
+		int[] indices = bvh.getIndices();
+		
+		for( int i = 0; i + 2 < indices.length; i += 3 )
+		{
+			if( indices[i] == m_iPickFace[0] && indices[i + 1] == m_iPickFace[1] && indices[i + 2] == m_iPickFace[2] )
+				return i / 3;
+		}
+		
+		return -1;
+	}
+
+
+	Mesh getObject( int object )
+	{
+		return m_Objects[object];
+	}
+
+
+	int getObjectCount()
+	{
+		return m_iObjectCount;
+	}
+
+
+	/**
+	 * Best first traversal of the tree.
+	 * @param direction Doesn't have to be normalized, distances are measured in world units
+	 * @return the object with the smallest test distance or -1
+	 */
+	int traverse( Vec3 origin, Vec3 direction, ObjectTest test )
+	{
+		m_fPickDistance = Float.POSITIVE_INFINITY;
+
+		if( m_iNodeTotal == 0 )
+			return -1;
+
+		float length = Vec3.length( direction );
+
+		if( length == 0.0f )
+			return -1;
+
+		float invX = length / direction.x;
+		float invY = length / direction.y;
+		float invZ = length / direction.z;
+
+		int closestObject = -1;
+		int heapSize      = 0;
+
+		float entry = this.intersectBox( m_fNodeBounds, 0, origin, invX, invY, invZ );
+
+		if( entry < Float.POSITIVE_INFINITY )
+			heapSize = this.push( heapSize, entry, 0 );
+
+		while( heapSize > 0 )
+		{
+			int node = m_iHeapNodes[0];
+
+			// everything left in the heap starts behind the closest hit
+			if( m_fHeapKeys[0] >= m_fPickDistance )
+				break;
+
+			heapSize = this.pop( heapSize );
+
+			int first = m_iNodeFirst[node];
+			int count = m_iNodeCount[node];
+
+			if( count == 0 )
+			{
+				for( int child = first; child <= first + 1; ++child )
+				{
+					entry = this.intersectBox( m_fNodeBounds, child, origin, invX, invY, invZ );
+
+					if( entry < m_fPickDistance )
+						heapSize = this.push( heapSize, entry, child );
+				}
+
+				continue;
+			}
+
+			for( int i = first; i < first + count; ++i )
+			{
+				int object = m_iOrder[i];
+
+				if( this.intersectBox(m_fObjectBounds, object, origin, invX, invY, invZ) >= m_fPickDistance )
+					continue;
+
+				float distance = test.intersect( object );
+
+				if( distance < m_fPickDistance )
+				{
+					m_fPickDistance = distance;
+					closestObject   = object;
+				}
+			}
+		}
+
+		return closestObject;
+	}
+
+
+	void resize( int count )
+	{
+		m_Objects           = new Mesh[count];
+		m_iVersions         = new int[count];
+		m_Transforms        = new Mat4[count];
+		m_InverseTransforms = new Mat4[count];
+		m_fObjectBounds     = new float[count * 6];
+		m_iOrder            = new int[count];
+		m_iObjectCount      = count;
+
+		int maxNodes = Math.max( 1, 2 * count - 1 );
+
+		m_fNodeBounds = new float[maxNodes * 6];
+		m_iNodeFirst  = new int[maxNodes];
+		m_iNodeCount  = new int[maxNodes];
+		m_fHeapKeys   = new float[maxNodes];
+		m_iHeapNodes  = new int[maxNodes];
+		m_iNodeTotal  = 0;
+	}
+
+
+	/**
+	 * World space bounds of the local box min/max under transform (center/extent form, see Arvo 1990).
+	 * Without bounds the object has no BVH to intersect and becomes a point at its translation.
+	 */
+	void setObjectBounds( int object, Vec3 min, Vec3 max, Mat4 transform )
+	{
+		float cx = 0.0f, ex = 0.0f;
+		float cy = 0.0f, ey = 0.0f;
+		float cz = 0.0f, ez = 0.0f;
+
+		if( min != null && max != null )
+		{
+			cx = (min.x + max.x) * 0.5f; ex = (max.x - min.x) * 0.5f;
+			cy = (min.y + max.y) * 0.5f; ey = (max.y - min.y) * 0.5f;
+			cz = (min.z + max.z) * 0.5f; ez = (max.z - min.z) * 0.5f;
+		}
+
+		float worldX = transform.m00 * cx + transform.m01 * cy + transform.m02 * cz + transform.m03;
+		float worldY = transform.m10 * cx + transform.m11 * cy + transform.m12 * cz + transform.m13;
+		float worldZ = transform.m20 * cx + transform.m21 * cy + transform.m22 * cz + transform.m23;
+
+		float extentX = Math.abs( transform.m00 ) * ex + Math.abs( transform.m01 ) * ey + Math.abs( transform.m02 ) * ez;
+		float extentY = Math.abs( transform.m10 ) * ex + Math.abs( transform.m11 ) * ey + Math.abs( transform.m12 ) * ez;
+		float extentZ = Math.abs( transform.m20 ) * ex + Math.abs( transform.m21 ) * ey + Math.abs( transform.m22 ) * ez;
+
+		int offset = object * 6;
+
+		m_fObjectBounds[offset]     = worldX - extentX;
+		m_fObjectBounds[offset + 1] = worldY - extentY;
+		m_fObjectBounds[offset + 2] = worldZ - extentZ;
+		m_fObjectBounds[offset + 3] = worldX + extentX;
+		m_fObjectBounds[offset + 4] = worldY + extentY;
+		m_fObjectBounds[offset + 5] = worldZ + extentZ;
+	}
+
+
+	void build()
+	{
+		for( int i = 0; i < m_iObjectCount; ++i )
+			m_iOrder[i] = i;
+
+		m_iNodeTotal = 0;
+
+		if( m_iObjectCount == 0 )
+			return;
+
+		m_iNodeTotal = 1;
+		this.build( 0, 0, m_iObjectCount );
+	}
+
+
+	/**
+	 * Recomputes the node bounds from the object bounds, children are always stored after their parent
+	 */
+	void refit()
+	{
+		for( int node = m_iNodeTotal - 1; node >= 0; --node )
+		{
+			int first = m_iNodeFirst[node];
+			int count = m_iNodeCount[node];
+
+			if( count == 0 )
+			{
+				this.setEmpty( node );
+				this.grow( node, m_fNodeBounds, first );
+				this.grow( node, m_fNodeBounds, first + 1 );
+			}
+			else
+			{
+				this.computeLeafBounds( node, first, count );
+			}
+		}
+	}
+
+
+	private void build( int node, int start, int end )
+	{
+		int count = end - start;
+
+		if( count <= LEAF_SIZE )
+		{
+			m_iNodeFirst[node] = start;
+			m_iNodeCount[node] = count;
+			this.computeLeafBounds( node, start, count );
+			return;
+		}
+
+		// split at the median centroid along the longest axis of the centroid bounds
+		float[] centroidMin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] centroidMax = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+
+		for( int i = start; i < end; ++i )
+		{
+			for( int axis = 0; axis < 3; ++axis )
+			{
+				float centroid = this.centroid( m_iOrder[i], axis );
+
+				centroidMin[axis] = Math.min( centroidMin[axis], centroid );
+				centroidMax[axis] = Math.max( centroidMax[axis], centroid );
+			}
+		}
+
+		int axis = 0;
+
+		if( centroidMax[1] - centroidMin[1] > centroidMax[axis] - centroidMin[axis] )
+			axis = 1;
+
+		if( centroidMax[2] - centroidMin[2] > centroidMax[axis] - centroidMin[axis] )
+			axis = 2;
+
+		int middle = start + count / 2;
+
+		this.select( start, end - 1, middle, axis );
+
+		int left = m_iNodeTotal;
+		m_iNodeTotal += 2;
+
+		m_iNodeFirst[node] = left;
+		m_iNodeCount[node] = 0;
+
+		this.build( left,     start,  middle );
+		this.build( left + 1, middle, end );
+
+		this.setEmpty( node );
+		this.grow( node, m_fNodeBounds, left );
+		this.grow( node, m_fNodeBounds, left + 1 );
+	}
+
+
+	/**
+	 * Quickselect, afterwards m_iOrder[k] holds the object with the k-th smallest centroid on axis
+	 * and everything before/after it is smaller/larger or equal
+	 */
+	private void select( int left, int right, int k, int axis )
+	{
+		while( right > left )
+		{
+			float pivot = this.centroid( m_iOrder[(left + right) >>> 1], axis );
+			int   i     = left;
+			int   j     = right;
+
+			while( i <= j )
+			{
+				while( this.centroid(m_iOrder[i], axis) < pivot )
+					i++;
+
+				while( this.centroid(m_iOrder[j], axis) > pivot )
+					j--;
+
+				if( i <= j )
+				{
+					int swap = m_iOrder[i];
+					m_iOrder[i] = m_iOrder[j];
+					m_iOrder[j] = swap;
+					i++;
+					j--;
+				}
+			}
+
+			if( k <= j )
+				right = j;
+			else if( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+
+	private float centroid( int object, int axis )
+	{
+		return (m_fObjectBounds[object * 6 + axis] + m_fObjectBounds[object * 6 + 3 + axis]) * 0.5f;
+	}
+
+
+	private void computeLeafBounds( int node, int first, int count )
+	{
+		this.setEmpty( node );
+
+		for( int i = first; i < first + count; ++i )
+			this.grow( node, m_fObjectBounds, m_iOrder[i] );
+	}
+
+
+	private void setEmpty( int node )
+	{
+		for( int axis = 0; axis < 3; ++axis )
+		{
+			m_fNodeBounds[node * 6 + axis]     = Float.MAX_VALUE;
+			m_fNodeBounds[node * 6 + 3 + axis] = -Float.MAX_VALUE;
+		}
+	}
+
+
+	private void grow( int node, float[] bounds, int box )
+	{
+		for( int axis = 0; axis < 3; ++axis )
+		{
+			m_fNodeBounds[node * 6 + axis]     = Math.min( m_fNodeBounds[node * 6 + axis],     bounds[box * 6 + axis] );
+			m_fNodeBounds[node * 6 + 3 + axis] = Math.max( m_fNodeBounds[node * 6 + 3 + axis], bounds[box * 6 + 3 + axis] );
+		}
+	}
+
+
+	/**
+	 * Slab test against box of bounds
+	 * @return the distance at which the ray enters the box (0 if it starts inside) or Float.POSITIVE_INFINITY on a miss
+	 */
+	private float intersectBox( float[] bounds, int box, Vec3 origin, float invX, float invY, float invZ )
+	{
+		int offset = box * 6;
+
+		float tx0 = (bounds[offset]     - origin.x) * invX;
+		float tx1 = (bounds[offset + 3] - origin.x) * invX;
+		float ty0 = (bounds[offset + 1] - origin.y) * invY;
+		float ty1 = (bounds[offset + 4] - origin.y) * invY;
+		float tz0 = (bounds[offset + 2] - origin.z) * invZ;
+		float tz1 = (bounds[offset + 5] - origin.z) * invZ;
+
+		// NaN (origin on a slab plane of a parallel axis) must not shrink the interval, hence no Math.min/max
+		float near = 0.0f;
+		float far  = Float.POSITIVE_INFINITY;
+
+		float min = tx0 < tx1 ? tx0 : tx1, max = tx0 < tx1 ? tx1 : tx0;
+		near = min > near ? min : near;
+		far  = max < far  ? max : far;
+
+		min = ty0 < ty1 ? ty0 : ty1; max = ty0 < ty1 ? ty1 : ty0;
+		near = min > near ? min : near;
+		far  = max < far  ? max : far;
+
+		min = tz0 < tz1 ? tz0 : tz1; max = tz0 < tz1 ? tz1 : tz0;
+		near = min > near ? min : near;
+		far  = max < far  ? max : far;
+
+		return near <= far ? near : Float.POSITIVE_INFINITY;
+	}
+
+
+	/**
+	 * Ray cast against the mesh BVH in object space. Does the same as BVH.findFirstHitPosition(),
+	 * but keeps the hit face, so position and triangle come from a single BVH traversal.
+	 * The hit is stored in m_HitPosition (world space) and m_iHitFace.
+	 * @return the world space distance of the hit or Float.POSITIVE_INFINITY
+	 */
+	private float intersectObject( int object, Vec3 origin, Vec3 target )
+	{
+		BVH bvh = m_Objects[object].getBVH();
+
+		if( bvh == null )
+			return Float.POSITIVE_INFINITY;
+
+		Mat4    inverseTransform = m_InverseTransforms[object];
+		Vec3    rayStart         = Vec3.transform( origin, 1.0f, inverseTransform );
+		Vec3    rayEnd           = Vec3.transform( target, 1.0f, inverseTransform );
+		Vec3    rayDirection     = Vec3.sub( rayEnd, rayStart );
+		int[]   faces            = bvh.intersectRay( rayStart, rayDirection );
+		float[] positions        = bvh.getPositions3D();
+
+		float closestDistance = Float.MAX_VALUE;
+		Vec3  closestPosition = null;
+
+		for( int i = 0; i + 2 < faces.length; i += 3 )
+		{
+			int index0 = faces[i];
+			int index1 = faces[i + 1];
+			int index2 = faces[i + 2];
+
+			if( index0 == -1 )
+				continue;
+
+			Vec3 vertex0 = new Vec3( positions[index0 * 3], positions[index0 * 3 + 1], positions[index0 * 3 + 2] );
+			Vec3 vertex1 = new Vec3( positions[index1 * 3], positions[index1 * 3 + 1], positions[index1 * 3 + 2] );
+			Vec3 vertex2 = new Vec3( positions[index2 * 3], positions[index2 * 3 + 1], positions[index2 * 3 + 2] );
+
+			float t = Collision.intersect_ray_triangle( rayStart, rayDirection, vertex0, vertex1, vertex2, true );
+
+			if( t < 0.0f )
+				continue;
+
+			Vec3  position = Vec3.add( rayStart, Vec3.mul(rayDirection, t) );
+			float distance = Vec3.length( Vec3.sub(position, rayStart) );
+
+			if( distance < closestDistance )
+			{
+				closestDistance = distance;
+				closestPosition = position;
+				m_iHitFace[0]   = index0;
+				m_iHitFace[1]   = index1;
+				m_iHitFace[2]   = index2;
+			}
+		}
+
+		if( closestPosition == null )
+			return Float.POSITIVE_INFINITY;
+
+		m_HitPosition = Vec3.transform( closestPosition, 1.0f, m_Transforms[object] );
+
+		return Vec3.length( closestPosition.sub(rayStart).transform(0.0f, m_Transforms[object]) );
+	}
+
+
+	private int push( int heapSize, float key, int node )
+	{
+		int i = heapSize;
+
+		while( i > 0 )
+		{
+			int parent = (i - 1) >>> 1;
+
+			if( m_fHeapKeys[parent] <= key )
+				break;
+
+			m_fHeapKeys[i]  = m_fHeapKeys[parent];
+			m_iHeapNodes[i] = m_iHeapNodes[parent];
+			i = parent;
+		}
+
+		m_fHeapKeys[i]  = key;
+		m_iHeapNodes[i] = node;
+
+		return heapSize + 1;
+	}
+
+
+	private int pop( int heapSize )
+	{
+		heapSize--;
+
+		float key  = m_fHeapKeys[heapSize];
+		int   node = m_iHeapNodes[heapSize];
+		int   i    = 0;
+
+		while( true )
+		{
+			int child = 2 * i + 1;
+
+			if( child >= heapSize )
+				break;
+
+			if( child + 1 < heapSize && m_fHeapKeys[child + 1] < m_fHeapKeys[child] )
+				child++;
+
+			if( m_fHeapKeys[child] >= key )
+				break;
+
+			m_fHeapKeys[i]  = m_fHeapKeys[child];
+			m_iHeapNodes[i] = m_iHeapNodes[child];
+			i = child;
+		}
+
+		if( heapSize > 0 )
+		{
+			m_fHeapKeys[i]  = key;
+			m_iHeapNodes[i] = node;
+		}
+
+		return heapSize;
+	}
+}
@@ -3,16 +3,15 @@ package cgthk.util;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.KHRParallelShaderCompile.GL_COMPLETION_STATUS_KHR;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
-import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 
-import org.lwjgl.BufferUtils;
-
 import cgthk.math.Mat3;
 import cgthk.math.Mat4;
 import cgthk.math.Vec2;
@@ -22,180 +21,458 @@ import cgthk.math.Vec4;
 
 public class ShaderProgram {
 	
+	/** uniform block with the values that are the same for all draws of a frame (camera, lights) */
+	public static final String FRAME_BLOCK          = "FrameData";
+	public static final int    FRAME_BLOCK_BINDING  = 0;
+	/** uniform block with the values of a single draw (model matrix, color), see RenderQueue.setObjectBlock() */
+	public static final String OBJECT_BLOCK         = "ObjectData";
+	public static final int    OBJECT_BLOCK_BINDING = 1;
+	
+	private static int uniformBufferOffsetAlignment;
+	
 	private final  int maxActiveTextures  = 8; // Only for set Uniform with Texture
 	private static int activeTexture      = 0; // Only for set Uniform with Texture
 	
+	/** a program whose compile and link commands are issued but whose results aren't checked yet */
+	private static final class PendingLink
+	{
+		int    program;
+		int    vertexShader;
+		int    fragmentShader;
+		String cacheKey;
+		long   start;
+	}
+	
 	private int m_Program;
-	private HashMap<String, Integer> m_UniformLocations;
+	private HashMap<String, UniformHandle> m_Uniforms;
+	
+	private Path        m_VertexPath;
+	private Path        m_FragmentPath;
+	private String      m_Defines;
+	private PendingLink m_Pending;
+	private long        m_CompileNanos;
 	
 	public ShaderProgram( String vertexShaderPath, String fragmentShaderPath ){
-		m_UniformLocations = new HashMap<String, Integer>();
-		m_Program = this.createProgram( vertexShaderPath, fragmentShaderPath );
+		this( vertexShaderPath, fragmentShaderPath, "", true );
 	}
 	
-	private int createProgram( String vertexShaderPath, String fragmentShaderPath ){
-		int program = glCreateProgram();
+	/**
+	 * Loads the program from the ProgramBinaryCache if the sources and the driver are unchanged, otherwise compiles
+	 * and links the sources and stores the binary.
+	 * @param defines Lines inserted after #version, see ShaderVariants
+	 * @param finish false only issues the compile and link commands, then isReady() polls them and finishLink()
+	 * has to be called before the program is used
+	 */
+	ShaderProgram( String vertexShaderPath, String fragmentShaderPath, String defines, boolean finish ){
+		m_Uniforms     = new HashMap<String, UniformHandle>();
+		m_VertexPath   = Paths.get( vertexShaderPath ).toAbsolutePath().normalize();
+		m_FragmentPath = Paths.get( fragmentShaderPath ).toAbsolutePath().normalize();
+		m_Defines      = defines;
+		m_Pending      = this.startLink();
 		
-		int vertexShader   = this.createShader( vertexShaderPath, GL_VERTEX_SHADER );
-		int fragmentShader = this.createShader( fragmentShaderPath, GL_FRAGMENT_SHADER );
-
-		glAttachShader( program, vertexShader );
-		glAttachShader( program, fragmentShader );
-		glLinkProgram(  program );
+		if( m_Pending != null )
+			m_Program = m_Pending.program;
+		
+		if( finish )
+			this.finishLink();
+	}
+	
+	/**
+	 * Recompiles the program from its (changed) files, the current program stays in use until finishLink()
+	 * replaces it, or stays for good if the new sources don't compile. A reload that is still running is discarded
+	 * once the new one has started.
+	 * @return false if the files couldn't be read, the running compilation and the program are kept then
+	 */
+	public boolean reload()
+	{
+		PendingLink link = this.startLink();
+		
+		if( link == null )
+			return false;
+		
+		// the initial link has no working program to fall back to, the new one takes its place
+		if( m_Pending != null && m_Pending.program == m_Program )
+			m_Program = 0;
+		
+		if( m_Pending != null )
+			deletePending( m_Pending );
 		
-		if( glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE )
-			printLog( "Shaderprogram " + vertexShaderPath + " " + fragmentShaderPath, program );
+		if( m_Program == 0 )
+			m_Program = link.program;
 		
-		glValidateProgram( program );
+		m_Pending = link;
+		
+		return true;
+	}
+	
+	Path getVertexPath()
+	{
+		return m_VertexPath;
+	}
+	
+	Path getFragmentPath()
+	{
+		return m_FragmentPath;
+	}
+	
+	/**
+	 * @return true if the vertex or fragment shader of the program is the file
+	 */
+	public boolean usesFile( Path file )
+	{
+		Path path = file.toAbsolutePath().normalize();
 		
-		if( glGetProgrami(program, GL_VALIDATE_STATUS) == GL_FALSE )
-			printLog( "Shaderprogram " + vertexShaderPath + " " + fragmentShaderPath, program );
+		return path.equals( m_VertexPath ) || path.equals( m_FragmentPath );
+	}
+	
+	/**
+	 * @return true if finishLink() won't wait for the driver, always true without KHR_parallel_shader_compile
+	 */
+	boolean isReady()
+	{
+		if( m_Pending == null || m_Pending.vertexShader == 0 || !ShaderVariants.isParallelCompileSupported() )
+			return true;
 		
-		return program;
+		return glGetProgrami( m_Pending.program, GL_COMPLETION_STATUS_KHR ) == GL_TRUE;
+	}
+	
+	/**
+	 * @return true while a compilation started by the constructor or reload() hasn't been finished
+	 */
+	public boolean isPending()
+	{
+		return m_Pending != null;
 	}
 	
-	private int createShader( String shaderPath, int shaderType ){
+	/**
+	 * Checks the compile and link results of the pending link. On success the new program replaces the current one,
+	 * the uniform blocks are bound, the binary is stored and the locations of all UniformHandles are resolved again.
+	 * On failure the log is printed and the current program is kept.
+	 * @return false if the pending link failed
+	 */
+	boolean finishLink()
+	{
+		PendingLink link = m_Pending;
 		
-		String shaderSource = readShaderFile( shaderPath );
+		if( link == null )
+			return true;
 		
-		int shader = glCreateShader( shaderType );
+		m_Pending = null;
 		
-		glShaderSource( shader, shaderSource );
-		glCompileShader( shader );
+		boolean linked = link.vertexShader == 0 || checkLink( link, this.getName() );
 		
-		if( glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE )
+		if( !linked && link.program != m_Program )
 		{
-			printLog( shaderPath, shader );
+			// a failed reload, the working program stays
+			deletePending( link );
 			
-			return -1;
+			return false;
+		}
+		
+		if( link.vertexShader != 0 )
+		{
+			glDeleteShader( link.vertexShader );
+			glDeleteShader( link.fragmentShader );
+		}
+		
+		if( link.program != m_Program )
+		{
+			glDeleteProgram( m_Program );
+			m_Program = link.program;
+		}
+		
+		bindUniformBlock( m_Program, FRAME_BLOCK,  FRAME_BLOCK_BINDING );
+		bindUniformBlock( m_Program, OBJECT_BLOCK, OBJECT_BLOCK_BINDING );
+		
+		if( linked && link.vertexShader != 0 )
+			ProgramBinaryCache.store( link.cacheKey, m_Program );
+		
+		for( UniformHandle uniform : m_Uniforms.values() )
+			uniform.setLocation( glGetUniformLocation(m_Program, uniform.getName()) );
+		
+		m_CompileNanos = System.nanoTime() - link.start;
+		
+		return linked;
+	}
+	
+	/**
+	 * Nanoseconds from the start of the last compilation (or binary load) until finishLink()
+	 */
+	long getCompileNanos()
+	{
+		return m_CompileNanos;
+	}
+	
+	public void freeGLResources()
+	{
+		if( m_Pending != null && m_Pending.program != m_Program )
+			deletePending( m_Pending );
+		else if( m_Pending != null && m_Pending.vertexShader != 0 )
+		{
+			glDeleteShader( m_Pending.vertexShader );
+			glDeleteShader( m_Pending.fragmentShader );
+		}
+		
+		glDeleteProgram( m_Program );
+		
+		m_Program = 0;
+		m_Pending = null;
+		m_Uniforms.clear();
+	}
+	
+	/**
+	 * Reads the files and loads the binary or issues the compile and link commands
+	 * @return null if a file couldn't be read
+	 */
+	private PendingLink startLink()
+	{
+		String vertexSource   = readSource( m_VertexPath );
+		String fragmentSource = readSource( m_FragmentPath );
+		
+		if( vertexSource == null || fragmentSource == null )
+			return null;
+		
+		vertexSource   = insertDefines( vertexSource,   m_Defines );
+		fragmentSource = insertDefines( fragmentSource, m_Defines );
+		
+		PendingLink link = new PendingLink();
+		link.start    = System.nanoTime();
+		link.cacheKey = ProgramBinaryCache.key( vertexSource, fragmentSource );
+		link.program  = ProgramBinaryCache.load( link.cacheKey );
+		
+		if( link.program != 0 )
+			return link;
+		
+		link.program        = glCreateProgram();
+		link.vertexShader   = createShader( vertexSource,   GL_VERTEX_SHADER );
+		link.fragmentShader = createShader( fragmentSource, GL_FRAGMENT_SHADER );
+		
+		glAttachShader( link.program, link.vertexShader );
+		glAttachShader( link.program, link.fragmentShader );
+		ProgramBinaryCache.prepare( link.program );
+		glLinkProgram(  link.program );
+		
+		return link;
+	}
+	
+	/**
+	 * Prints the logs of the failed stages
+	 * @return true if both shaders compiled and the program linked
+	 */
+	private static boolean checkLink( PendingLink link, String name )
+	{
+		boolean success = true;
+		
+		if( glGetShaderi(link.vertexShader, GL_COMPILE_STATUS) == GL_FALSE )
+		{
+			printLog( name + " (vertex shader)", glGetShaderInfoLog(link.vertexShader) );
+			success = false;
+		}
+		
+		if( glGetShaderi(link.fragmentShader, GL_COMPILE_STATUS) == GL_FALSE )
+		{
+			printLog( name + " (fragment shader)", glGetShaderInfoLog(link.fragmentShader) );
+			success = false;
+		}
+		
+		if( success && glGetProgrami(link.program, GL_LINK_STATUS) == GL_FALSE )
+		{
+			printLog( name, glGetProgramInfoLog(link.program) );
+			success = false;
 		}
 		
+		return success;
+	}
+	
+	private static void deletePending( PendingLink link )
+	{
+		if( link.vertexShader != 0 )
+		{
+			glDeleteShader( link.vertexShader );
+			glDeleteShader( link.fragmentShader );
+		}
+		
+		glDeleteProgram( link.program );
+	}
+	
+	private static int createShader( String shaderSource, int shaderType ){
+		
+		int shader = glCreateShader( shaderType );
+		
+		glShaderSource( shader, shaderSource );
+		glCompileShader( shader );
+		
 		return shader;
 	}
 	
+	/**
+	 * Inserts lines after the #version directive, which has to stay the first one
+	 */
+	static String insertDefines( String source, String defines )
+	{
+		if( defines.isEmpty() )
+			return source;
+		
+		int version = source.indexOf( "#version" );
+		
+		if( version < 0 )
+			return defines + source;
+		
+		int lineEnd = source.indexOf( '\n', version );
+		
+		if( lineEnd < 0 )
+			return source + "\n" + defines;
+		
+		return source.substring( 0, lineEnd + 1 ) + defines + source.substring( lineEnd + 1 );
+	}
+	
+	private String getName()
+	{
+		String name = "Shaderprogram " + m_VertexPath.getFileName() + " " + m_FragmentPath.getFileName();
+		
+		if( m_Defines.isEmpty() )
+			return name;
+		
+		return name + " [" + m_Defines.trim().replace( "#define ", "" ).replace( '\n', ' ' ) + "]";
+	}
+	
 	public void useProgram()
 	{
 		glUseProgram( m_Program );
 	}
 	
-	private int getUniformLocation( String uniformName )
+	int getProgramID()
+	{
+		return m_Program;
+	}
+	
+	/**
+	 * Assigns a uniform block of the program to a binding point, blocks named FRAME_BLOCK and OBJECT_BLOCK
+	 * are bound to FRAME_BLOCK_BINDING and OBJECT_BLOCK_BINDING when the program is linked.
+	 * The data is attached to the binding point with glBindBufferRange( GL_UNIFORM_BUFFER, binding, ... ).
+	 * @return false if the program has no active block with that name
+	 */
+	public boolean bindUniformBlock( String blockName, int binding )
+	{
+		return bindUniformBlock( m_Program, blockName, binding );
+	}
+	
+	/**
+	 * Offsets passed to glBindBufferRange( GL_UNIFORM_BUFFER, ... ) have to be multiples of this
+	 */
+	public static int getUniformBufferOffsetAlignment()
+	{
+		if( uniformBufferOffsetAlignment == 0 )
+			uniformBufferOffsetAlignment = Math.max( 16, glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT) );
+		
+		return uniformBufferOffsetAlignment;
+	}
+	
+	private static boolean bindUniformBlock( int program, String blockName, int binding )
+	{
+		int blockIndex = glGetUniformBlockIndex( program, blockName );
+		
+		if( blockIndex == GL_INVALID_INDEX )
+			return false;
+		
+		glUniformBlockBinding( program, blockIndex, binding );
+		
+		return true;
+	}
+	
+	/**
+	 * Resolves the location once, hot paths should keep the handle instead of passing the name every frame
+	 */
+	public UniformHandle getUniform( String uniformName )
 	{
-		Integer cachedLocation = m_UniformLocations.get( uniformName );
+		UniformHandle uniform = m_Uniforms.get( uniformName );
 		
-		if( cachedLocation == null )
+		if( uniform == null )
 		{
-			int location = glGetUniformLocation( m_Program, uniformName );
-			m_UniformLocations.put( uniformName, location );
-			
-			return location;
+			uniform = new UniformHandle( uniformName, glGetUniformLocation(m_Program, uniformName) );
+			m_Uniforms.put( uniformName, uniform );
 		}
 		
-		return cachedLocation;
+		return uniform;
+	}
+	
+	private int getUniformLocation( String uniformName )
+	{
+		return this.getUniform( uniformName ).getLocation();
 	}
 	
 	public void setUniform( String uniformName, int value )
 	{
-		glUniform1i( this.getUniformLocation(uniformName), value );
+		this.getUniform( uniformName ).set( value );
 	}
 	
 	
 	public void setUniform( String uniformName, float value )
 	{
-		glUniform1f( this.getUniformLocation(uniformName), value );
+		this.getUniform( uniformName ).set( value );
 	}
 	
 	
 	public void setUniform( String uniformName, float[] values )
 	{
-		FloatBuffer buffer = BufferUtils.createFloatBuffer( values.length );
-		buffer.put( values );
-		buffer.flip();
-			
-		glUniform1fv( this.getUniformLocation(uniformName), buffer ); // Not sure if +fv is the right call 
+		this.getUniform( uniformName ).set( values, 1 );
+	}
+	
+	
+	/**
+	 * vec2, vec3 or vec4 array from packed floats, components floats per element
+	 */
+	public void setUniform( String uniformName, float[] values, int components )
+	{
+		this.getUniform( uniformName ).set( values, components );
 	}
 	
 	
 	public void setUniform( String uniformName, Vec2 vec )
 	{
-		glUniform2f( this.getUniformLocation(uniformName), vec.x, vec.y );
+		this.getUniform( uniformName ).set( vec );
 	}
 	
 	
 	public void setUniform( String uniformName, Vec2[] vecs )
 	{
-		FloatBuffer buffer = BufferUtils.createFloatBuffer( 2 * vecs.length );
-		float[] floats = new  float[2 * vecs.length];
-		
-		for( int i = 0; i < vecs.length; ++i )
-		{
-			floats[ 2 * i + 0 ] = vecs[i].x; 
-		    floats[ 2 * i + 1 ] = vecs[i].y; 
-		}
-		buffer.put( floats );
-		buffer.flip();
-			
-		glUniform2fv( this.getUniformLocation(uniformName), buffer ); // Not sure if +fv is the right call 
+		this.getUniform( uniformName ).set( vecs );
 	}
 	
 	
 	public void setUniform( String uniformName, Vec3 vec )
 	{
-		glUniform3f( this.getUniformLocation(uniformName), vec.x, vec.y, vec.z );
+		this.getUniform( uniformName ).set( vec );
 	}
 	
 	
 	public void setUniform( String uniformName, Vec3[] vecs )
 	{
-		FloatBuffer buffer = BufferUtils.createFloatBuffer( 3 * vecs.length );
-		float[] floats = new  float[3 * vecs.length];
-		
-		for( int i = 0; i < vecs.length; ++i )
-		{
-			floats[ 3 * i + 0 ] = vecs[i].x; 
-		    floats[ 3 * i + 1 ] = vecs[i].y; 
-			floats[ 3 * i + 2 ] = vecs[i].z; 
-		}
-		buffer.put( floats );
-		buffer.flip();
-			
-		glUniform3fv( this.getUniformLocation(uniformName), buffer ); // Not sure if +fv is the right call 
+		this.getUniform( uniformName ).set( vecs );
 	}
 	
 	
 	public void setUniform( String uniformName, Vec4 vec )
 	{
-		glUniform4f( this.getUniformLocation(uniformName), vec.x, vec.y, vec.z, vec.w );
+		this.getUniform( uniformName ).set( vec );
 	}
 	
 	
 	public void setUniform( String uniformName, Vec4[] vecs )
 	{
-		FloatBuffer buffer = BufferUtils.createFloatBuffer( 4 * vecs.length );
-		float[] floats = new  float[4 * vecs.length];
-		
-		for( int i = 0; i < vecs.length; ++i )
-		{
-			floats[ 4 * i + 0 ] = vecs[i].x; 
-		    floats[ 4 * i + 1 ] = vecs[i].y; 
-			floats[ 4 * i + 2 ] = vecs[i].z; 
-			floats[ 4 * i + 2 ] = vecs[i].w; 
-		}
-		buffer.put( floats );
-		buffer.flip();
-			
-		glUniform4fv( this.getUniformLocation(uniformName), buffer ); // Not sure if +fv is the right call 
+		this.getUniform( uniformName ).set( vecs );
 	}
 	
 	
 	public void setUniform( String uniformName, Mat3 mat )
 	{
-		glUniformMatrix3fv( this.getUniformLocation(uniformName), false, mat.toFloatBuffer() ); // Not sure if +fv is the right call 
+		this.getUniform( uniformName ).set( mat );
 	}
 	
 	
 	public void setUniform( String uniformName, Mat4 mat )
 	{
-		glUniformMatrix4fv( this.getUniformLocation(uniformName), false, mat.toFloatBuffer() ); // Not sure if +fv is the right call 
+		this.getUniform( uniformName ).set( mat );
 	}
 	
 	/*
@@ -220,49 +497,39 @@ public class ShaderProgram {
 	 * -----------------------------------------------------------
 	 */
 	
-	private static void printLog( String shaderFile, int obj )
+	private static void printLog( String shaderFile, String log )
 	{
-		IntBuffer iVal = BufferUtils.createIntBuffer( 1 );
-		glGetShaderiv( obj, GL_INFO_LOG_LENGTH, iVal );
-
-		int length = iVal.get();
-		
-		if (length > 1) 
-		{
-			ByteBuffer infoLog = BufferUtils.createByteBuffer( length );
-			iVal.flip();
-			
-			glGetShaderInfoLog( obj, iVal, infoLog );
-			
-			byte[] infoBytes = new byte[length];
-			infoLog.get( infoBytes );
-			
-			String out = new String( infoBytes );
-			System.err.println( "Error in " + shaderFile + " :\n" + out );
-			System.exit(0);
-		}
+		System.err.println( "Error in " + shaderFile + " :\n" + log );
 	}
 	
-	public static String readShaderFile(String shaderPath ){
-		String text = "";
-		String line;
+	/**
+	 * @return the file content with \n line endings or null if it can't be read
+	 */
+	private static String readSource( Path shaderPath )
+	{
+		StringBuilder text = new StringBuilder( 4096 );
+		String        line;
 		
-		try
+		try( BufferedReader reader = Files.newBufferedReader(shaderPath) )
 		{
-			BufferedReader reader = new BufferedReader( new FileReader(shaderPath) );
 			while( (line = reader.readLine()) != null )
-			{
-				text += line + "\n";
-			}
-			reader.close();
+				text.append( line ).append( '\n' );
 		}
-		catch ( Exception e )
+		catch( Exception e )
 		{
 			System.err.println( "*ERROR*: Unable to read file: " + shaderPath );
-			System.exit(0);
-			return "";
+			return null;
 		}
 		
-		return text;
+		return text.toString();
+	}
+	
+	/**
+	 * @return the file content with \n line endings or "" if it can't be read
+	 */
+	public static String readShaderFile(String shaderPath ){
+		String text = readSource( Paths.get(shaderPath) );
+		
+		return text == null ? "" : text;
 	}
 }
@@ -0,0 +1,180 @@
+package cgthk.util;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+
+
+/**
+ * Recompiles ShaderPrograms and ShaderVariants when their shader files change, without restarting.<br>
+ * The directories of the watched shaders are registered with a WatchService, update() polls it once per frame
+ * without blocking, starts ShaderProgram.reload() of the affected programs and swaps the programs whose compilation
+ * finished (in the background with KHR_parallel_shader_compile, see ShaderVariants). So the swap always happens
+ * between frames, and the ShaderProgram objects and their UniformHandles stay valid. A shader that doesn't compile
+ * only prints its log, the last working program is kept.
+ */
+public class ShaderReloader
+{
+	private WatchService              m_WatchService;
+	private HashSet<Path>             m_Directories = new HashSet<Path>();
+	private ArrayList<ShaderProgram>  m_Programs    = new ArrayList<ShaderProgram>();
+	private ArrayList<ShaderVariants> m_Variants    = new ArrayList<ShaderVariants>();
+	private ArrayList<ShaderProgram>  m_Reloading   = new ArrayList<ShaderProgram>();
+	private HashSet<Path>             m_Changed     = new HashSet<Path>();
+
+
+
+	public ShaderReloader()
+	{
+		try
+		{
+			m_WatchService = FileSystems.getDefault().newWatchService();
+		}
+		catch( IOException e )
+		{
+			System.err.println( "*Error* ShaderReloader: Can't watch files, shaders won't be reloaded" );
+		}
+	}
+
+
+	public void watch( ShaderProgram program )
+	{
+		m_Programs.add( program );
+
+		this.register( program.getVertexPath() );
+		this.register( program.getFragmentPath() );
+	}
+
+
+	public void watch( ShaderVariants variants )
+	{
+		m_Variants.add( variants );
+
+		this.register( variants.getVertexPath() );
+		this.register( variants.getFragmentPath() );
+	}
+
+
+	/**
+	 * Starts the reloads of changed shaders and finishes the completed ones, called once per frame before drawing
+	 */
+	public void update()
+	{
+		if( m_WatchService == null )
+			return;
+
+		this.pollChanges();
+
+		if( !m_Changed.isEmpty() )
+		{
+			for( Path file : m_Changed )
+			{
+				boolean used = false;
+
+				for( ShaderProgram program : m_Programs )
+				{
+					if( !program.usesFile(file) )
+						continue;
+
+					used = true;
+
+					if( program.reload() && !m_Reloading.contains(program) )
+						m_Reloading.add( program );
+				}
+
+				for( ShaderVariants variants : m_Variants )
+				{
+					if( !variants.usesFile(file) )
+						continue;
+
+					used = true;
+					variants.reload( m_Reloading );
+				}
+
+				// other files in the shader directories are ignored
+				if( used )
+					System.out.println( "Reloading shaders of " + file.getFileName() );
+			}
+
+			m_Changed.clear();
+		}
+
+		for( int i = m_Reloading.size() - 1; i >= 0; --i )
+		{
+			ShaderProgram program = m_Reloading.get( i );
+
+			if( program.isReady() )
+			{
+				program.finishLink();
+				m_Reloading.remove( i );
+			}
+		}
+	}
+
+
+	public void close()
+	{
+		if( m_WatchService == null )
+			return;
+
+		try
+		{
+			m_WatchService.close();
+		}
+		catch( IOException e )
+		{
+			System.err.println( "*Error* ShaderReloader: Can't close the watch service" );
+		}
+
+		m_WatchService = null;
+	}
+
+
+	/**
+	 * Collects the changed files of all directories, an editor often writes a file more than once per save
+	 */
+	private void pollChanges()
+	{
+		WatchKey key;
+
+		while( (key = m_WatchService.poll()) != null )
+		{
+			Path directory = (Path) key.watchable();
+
+			for( WatchEvent<?> event : key.pollEvents() )
+			{
+				if( event.kind() != OVERFLOW )
+					m_Changed.add( directory.resolve((Path) event.context()) );
+			}
+
+			key.reset();
+		}
+	}
+
+
+	private void register( Path shaderPath )
+	{
+		Path directory = shaderPath.toAbsolutePath().normalize().getParent();
+
+		if( m_WatchService == null || directory == null || !m_Directories.add(directory) )
+			return;
+
+		try
+		{
+			// editors that save through a new file and a rename produce ENTRY_CREATE
+			directory.register( m_WatchService, ENTRY_MODIFY, ENTRY_CREATE );
+		}
+		catch( IOException e )
+		{
+			System.err.println( "*Error* ShaderReloader: Can't watch directory: " + directory );
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.KHRParallelShaderCompile.glMaxShaderCompilerThreadsKHR;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.lwjgl.opengl.ARBParallelShaderCompile;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+
+
+/**
+ * Variants of one uber shader pair, selected by a feature bitmask: bit i set adds "#define FEATURES[i]" right after
+ * the #version line of both shaders. Variants are compiled on first use and kept in an LRU cache, the least recently
+ * used variant is deleted when the cache is full (so callers shouldn't keep variants across frames).<br>
+ * get() compiles synchronously, request() only starts the compilation and returns null until the variant is ready,
+ * so the caller can keep drawing with another variant. With KHR_parallel_shader_compile the driver compiles on its
+ * own threads and update() polls the completion status without blocking, otherwise request() behaves like get().
+ * Variants come from the ProgramBinaryCache whenever possible. The hit rate only counts the first lookup of a variant
+ * that wasn't used in the previous frame, so variants requested every frame don't push it towards 100%.
+ */
+public class ShaderVariants
+{
+	private static Boolean s_ParallelCompile;
+
+	private Path     m_VertexPath;
+	private Path     m_FragmentPath;
+	private String[] m_Features;
+	private int      m_iCapacity;
+
+	// access ordered, the first entry is the least recently used one
+	private LinkedHashMap<Integer, ShaderProgram> m_Programs = new LinkedHashMap<Integer, ShaderProgram>( 16, 0.75f, true );
+	private HashMap<Integer, ShaderProgram>       m_Pending  = new HashMap<Integer, ShaderProgram>();
+
+	// feature masks looked up in this and the previous frame, see count()
+	private HashSet<Integer> m_Used     = new HashSet<Integer>();
+	private HashSet<Integer> m_LastUsed = new HashSet<Integer>();
+
+	private long m_lHits;
+	private long m_lMisses;
+	private long m_lCompileNanos;
+	private int  m_iCompiled;
+
+
+
+	/**
+	 * @param capacity Maximum number of linked variants
+	 * @param features #define names, FEATURES[i] is enabled by bit i of the feature mask
+	 */
+	public ShaderVariants( String vertexShaderPath, String fragmentShaderPath, int capacity, String... features )
+	{
+		m_VertexPath   = Paths.get( vertexShaderPath ).toAbsolutePath().normalize();
+		m_FragmentPath = Paths.get( fragmentShaderPath ).toAbsolutePath().normalize();
+		m_Features     = features;
+		m_iCapacity    = Math.max( 1, capacity );
+	}
+
+
+	/**
+	 * @return true if the driver compiles shaders in the background (KHR or ARB_parallel_shader_compile)
+	 */
+	public static boolean isParallelCompileSupported()
+	{
+		if( s_ParallelCompile == null )
+		{
+			GLCapabilities caps = GL.getCapabilities();
+
+			if( caps.GL_KHR_parallel_shader_compile )
+				glMaxShaderCompilerThreadsKHR( 0xFFFFFFFF );
+			else if( caps.GL_ARB_parallel_shader_compile )
+				ARBParallelShaderCompile.glMaxShaderCompilerThreadsARB( 0xFFFFFFFF );
+
+			s_ParallelCompile = caps.GL_KHR_parallel_shader_compile || caps.GL_ARB_parallel_shader_compile;
+		}
+
+		return s_ParallelCompile;
+	}
+
+
+	/**
+	 * The variant with the features, compiled now if it's not cached
+	 */
+	public ShaderProgram get( int features )
+	{
+		ShaderProgram program = m_Programs.get( features );
+
+		if( program != null )
+		{
+			this.count( features, true );
+			return program;
+		}
+
+		this.count( features, false );
+
+		program = m_Pending.remove( features );
+
+		if( program == null )
+			program = this.create( features );
+
+		program.finishLink();
+
+		return this.add( features, program );
+	}
+
+
+	/**
+	 * The variant with the features if it's linked, otherwise its compilation is started (once) and null returned
+	 */
+	public ShaderProgram request( int features )
+	{
+		ShaderProgram program = m_Programs.get( features );
+
+		if( program != null )
+		{
+			this.count( features, true );
+			return program;
+		}
+
+		this.count( features, false );
+
+		if( !m_Pending.containsKey(features) )
+		{
+			program = this.create( features );
+
+			if( !program.isReady() )
+			{
+				m_Pending.put( features, program );
+				return null;
+			}
+
+			program.finishLink();
+
+			return this.add( features, program );
+		}
+
+		return null;
+	}
+
+
+	/**
+	 * Moves the variants whose background compilation completed into the cache, called once per frame
+	 */
+	public void update()
+	{
+		HashSet<Integer> used = m_LastUsed;
+
+		m_LastUsed = m_Used;
+		m_Used     = used;
+		m_Used.clear();
+
+		if( m_Pending.isEmpty() )
+			return;
+
+		Iterator<Map.Entry<Integer, ShaderProgram>> pending = m_Pending.entrySet().iterator();
+
+		while( pending.hasNext() )
+		{
+			Map.Entry<Integer, ShaderProgram> entry = pending.next();
+
+			if( entry.getValue().isReady() )
+			{
+				pending.remove();
+				entry.getValue().finishLink();
+				this.add( entry.getKey(), entry.getValue() );
+			}
+		}
+	}
+
+
+	/**
+	 * @return hits / (hits + misses) of get() and request(), see count()
+	 */
+	public float getHitRate()
+	{
+		long lookups = m_lHits + m_lMisses;
+
+		return lookups == 0 ? 0.0f : (float) m_lHits / lookups;
+	}
+
+
+	/**
+	 * @return summed milliseconds from starting to finishing the compilation of all variants, binary loads included
+	 */
+	public double getCompileMillis()
+	{
+		return m_lCompileNanos / 1.0e6;
+	}
+
+
+	public int getCompiledCount()
+	{
+		return m_iCompiled;
+	}
+
+
+	public String getStatistics()
+	{
+		return String.format( "Variants: %d, compiled %d in %.1f ms, hit rate %.1f%%",
+							  m_Programs.size(), m_iCompiled, this.getCompileMillis(), 100.0f * this.getHitRate() );
+	}
+
+
+	Path getVertexPath()
+	{
+		return m_VertexPath;
+	}
+
+
+	Path getFragmentPath()
+	{
+		return m_FragmentPath;
+	}
+
+
+	/**
+	 * @return true if the variants are compiled from the file
+	 */
+	public boolean usesFile( Path file )
+	{
+		Path path = file.toAbsolutePath().normalize();
+
+		return path.equals( m_VertexPath ) || path.equals( m_FragmentPath );
+	}
+
+
+	/**
+	 * Recompiles all linked and pending variants from the changed files, new variants use the new files anyway.
+	 * @param started Receives the variants whose reload started, they have to be finished like in ShaderReloader
+	 */
+	void reload( ArrayList<ShaderProgram> started )
+	{
+		for( ShaderProgram program : m_Programs.values() )
+		{
+			if( program.reload() && !started.contains(program) )
+				started.add( program );
+		}
+
+		for( ShaderProgram program : m_Pending.values() )
+			program.reload();
+	}
+
+
+	public void freeGLResources()
+	{
+		for( ShaderProgram program : m_Programs.values() )
+			program.freeGLResources();
+
+		for( ShaderProgram program : m_Pending.values() )
+			program.freeGLResources();
+
+		m_Programs.clear();
+		m_Pending.clear();
+	}
+
+
+	/**
+	 * Starts compiling both shaders with the defines of the features
+	 */
+	private ShaderProgram create( int features )
+	{
+		return new ShaderProgram( m_VertexPath.toString(), m_FragmentPath.toString(), this.defines( features ), false );
+	}
+
+
+	/**
+	 * Counts a lookup only if it's the first one of the variant in this frame and the variant wasn't used
+	 * in the previous frame, repeated lookups of the variants in use say nothing about the cache
+	 */
+	private void count( int features, boolean hit )
+	{
+		if( !m_Used.add(features) || m_LastUsed.contains(features) )
+			return;
+
+		if( hit )
+			m_lHits++;
+		else
+			m_lMisses++;
+	}
+
+
+	private ShaderProgram add( int features, ShaderProgram program )
+	{
+		m_lCompileNanos += program.getCompileNanos();
+		m_iCompiled++;
+
+		m_Programs.put( features, program );
+
+		if( m_Programs.size() > m_iCapacity )
+		{
+			Iterator<ShaderProgram> eldest = m_Programs.values().iterator();
+			eldest.next().freeGLResources();
+			eldest.remove();
+		}
+
+		return program;
+	}
+
+
+	private String defines( int features )
+	{
+		StringBuilder header = new StringBuilder();
+
+		for( int i = 0; i < m_Features.length; ++i )
+		{
+			if( (features & (1 << i)) != 0 )
+				header.append( "#define " ).append( m_Features[i] ).append( '\n' );
+		}
+
+		return header.toString();
+	}
+}
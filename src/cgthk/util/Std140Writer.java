@@ -0,0 +1,157 @@
+package cgthk.util;
+
+import java.nio.ByteBuffer;
+
+import cgthk.math.Mat4;
+import cgthk.math.Vec3;
+
+
+
+/**
+ * Writes uniform block members into a ByteBuffer following the std140 layout rules: scalars are 4 byte aligned,
+ * vec2 8 byte, vec3/vec4 and matrix columns 16 byte, every array element takes 16 bytes. The members have to be
+ * written in the order of their declaration in the layout(std140) block. Writes are absolute, the position of the
+ * buffer isn't changed, so one writer can fill many blocks of a mapped StreamBuffer range.
+ */
+public class Std140Writer
+{
+	private ByteBuffer buffer;
+	private int        base;
+	private int        offset;
+
+
+
+	/**
+	 * Starts a block at byte base of buffer, the buffer has to be in native order
+	 */
+	public Std140Writer begin( ByteBuffer buffer, int base )
+	{
+		this.buffer = buffer;
+		this.base   = base;
+		this.offset = 0;
+
+		return this;
+	}
+
+
+	/**
+	 * @return bytes written since begin(), rounded up to the 16 byte base alignment of a block
+	 */
+	public int size()
+	{
+		return align( offset, 16 );
+	}
+
+
+	public Std140Writer putFloat( float value )
+	{
+		offset = align( offset, 4 );
+		buffer.putFloat( base + offset, value );
+		offset += 4;
+
+		return this;
+	}
+
+
+	public Std140Writer putInt( int value )
+	{
+		offset = align( offset, 4 );
+		buffer.putInt( base + offset, value );
+		offset += 4;
+
+		return this;
+	}
+
+
+	public Std140Writer putVec2( float x, float y )
+	{
+		offset = align( offset, 8 );
+		this.put( x );
+		this.put( y );
+
+		return this;
+	}
+
+
+	/**
+	 * A vec3 is aligned like a vec4 but only takes 12 bytes, a following float fills the gap
+	 */
+	public Std140Writer putVec3( Vec3 vec )
+	{
+		offset = align( offset, 16 );
+		this.put( vec.x );
+		this.put( vec.y );
+		this.put( vec.z );
+
+		return this;
+	}
+
+
+	public Std140Writer putVec4( float x, float y, float z, float w )
+	{
+		offset = align( offset, 16 );
+		this.put( x );
+		this.put( y );
+		this.put( z );
+		this.put( w );
+
+		return this;
+	}
+
+
+	public Std140Writer putVec4( Vec3 vec, float w )
+	{
+		return this.putVec4( vec.x, vec.y, vec.z, w );
+	}
+
+
+	/**
+	 * Four column vectors, OpenGL's default column major order
+	 */
+	public Std140Writer putMat4( Mat4 mat )
+	{
+		offset = align( offset, 16 );
+		this.put( mat.m00 );
+		this.put( mat.m10 );
+		this.put( mat.m20 );
+		this.put( mat.m30 );
+		this.put( mat.m01 );
+		this.put( mat.m11 );
+		this.put( mat.m21 );
+		this.put( mat.m31 );
+		this.put( mat.m02 );
+		this.put( mat.m12 );
+		this.put( mat.m22 );
+		this.put( mat.m32 );
+		this.put( mat.m03 );
+		this.put( mat.m13 );
+		this.put( mat.m23 );
+		this.put( mat.m33 );
+
+		return this;
+	}
+
+
+	/**
+	 * Skips array elements (16 bytes each), e.g. the unused rest of a fixed size array
+	 */
+	public Std140Writer skipElements( int count )
+	{
+		offset = align( offset, 16 ) + 16 * count;
+
+		return this;
+	}
+
+
+	public static int align( int value, int alignment )
+	{
+		return (value + alignment - 1) / alignment * alignment;
+	}
+
+
+	private void put( float value )
+	{
+		buffer.putFloat( base + offset, value );
+		offset += 4;
+	}
+}
@@ -0,0 +1,293 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_COPY_WRITE_BUFFER;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.GL_MAP_COHERENT_BIT;
+import static org.lwjgl.opengl.GL44.GL_MAP_PERSISTENT_BIT;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.opengl.ARBBufferStorage;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL44;
+
+
+
+/**
+ * Ring buffer for geometry that is written once per frame (debug lines, GUI vertices, dynamic meshes).<br>
+ * The buffer is split into FRAMES regions, each frame writes into its own region and fences it in endFrame(), so the
+ * CPU only waits when it is FRAMES frames ahead of the GPU and never overwrites data that is still read. With
+ * OpenGL 4.4 or ARB_buffer_storage the whole buffer stays persistently and coherently mapped, otherwise every map()
+ * maps its range with GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT, which is safe because of the fences.<br>
+ * <br>
+ * Usage: map() the needed bytes, write them, commit() and use the returned offset for the draw call, before the next
+ * map(). A map() that doesn't fit into the region replaces the buffer by a larger one, so getBufferID() has to be
+ * bound after every commit(). The replaced buffer is only deleted in endFrame(), deleting it earlier would unbind
+ * the ranges that were bound from it in the same frame (e.g. a uniform block). All producers of the framework
+ * share the instance returned by shared(), Main calls endSharedFrame() once per frame.
+ */
+public class StreamBuffer
+{
+	/** regions in flight: one written by the CPU, up to two read by the GPU */
+	public static final int FRAMES              = 3;
+	/** bytes per frame of the shared buffer, grows if a frame needs more */
+	public static final int DEFAULT_REGION_SIZE = 2 * 1024 * 1024;
+
+	private static final long FENCE_TIMEOUT_NANOS = 1000000000L;
+
+	private static StreamBuffer s_Shared;
+
+	private int        m_iBufferID;
+	private int        m_iRegionSize;
+	private int        m_iFrame;
+	private int        m_iOffset;
+	private long[]     m_lFences;
+	private boolean    m_bWaited;
+	private boolean    m_bPersistent;
+	private ByteBuffer m_Mapping;
+	private boolean    m_bMapped;
+	private long       m_lMapOffset;
+
+	private IntArrayList m_RetiredBuffers = new IntArrayList( 2 );
+
+
+
+	public StreamBuffer( int regionSize )
+	{
+		m_lFences     = new long[FRAMES];
+		m_bPersistent = GL.getCapabilities().OpenGL44 || GL.getCapabilities().GL_ARB_buffer_storage;
+
+		this.allocate( regionSize );
+	}
+
+
+	/**
+	 * The buffer shared by Primitive, NuklearHelper and other per frame producers, created on first use
+	 */
+	public static StreamBuffer shared()
+	{
+		if( s_Shared == null )
+			s_Shared = new StreamBuffer( DEFAULT_REGION_SIZE );
+
+		return s_Shared;
+	}
+
+
+	/**
+	 * Fences the frame of the shared buffer, called by Main before the buffers are swapped
+	 */
+	public static void endSharedFrame()
+	{
+		if( s_Shared != null )
+			s_Shared.endFrame();
+	}
+
+
+	/**
+	 * Reserves bytes in the region of the current frame, waits if the GPU still reads the region.
+	 * @param alignment Alignment of the returned data inside the buffer in bytes, e.g. 4 for floats
+	 * @return writable native order view of the reserved bytes, valid until commit()
+	 */
+	public ByteBuffer map( int bytes, int alignment )
+	{
+		if( m_bMapped )
+			this.commit();
+
+		int offset = (m_iOffset + alignment - 1) / alignment * alignment;
+
+		if( offset + bytes > m_iRegionSize )
+		{
+			this.allocate( Math.max(2 * m_iRegionSize, bytes + alignment) );
+			offset = 0;
+		}
+
+		if( !m_bWaited )
+		{
+			this.waitForRegion( m_iFrame );
+			m_bWaited = true;
+		}
+
+		m_iOffset    = offset + bytes;
+		m_lMapOffset = (long) m_iFrame * m_iRegionSize + offset;
+		m_bMapped    = true;
+
+		if( m_bPersistent )
+			return m_Mapping.slice( (int) m_lMapOffset, bytes ).order( ByteOrder.nativeOrder() );
+
+		glBindBuffer( GL_COPY_WRITE_BUFFER, m_iBufferID );
+		ByteBuffer data = glMapBufferRange( GL_COPY_WRITE_BUFFER, m_lMapOffset, bytes,
+											GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT );
+		glBindBuffer( GL_COPY_WRITE_BUFFER, 0 );
+
+		return data.order( ByteOrder.nativeOrder() );
+	}
+
+
+	/**
+	 * Finishes the writes of the last map()
+	 * @return byte offset of the written data in getBufferID()
+	 */
+	public long commit()
+	{
+		if( m_bMapped && !m_bPersistent )
+		{
+			glBindBuffer( GL_COPY_WRITE_BUFFER, m_iBufferID );
+			glUnmapBuffer( GL_COPY_WRITE_BUFFER );
+			glBindBuffer( GL_COPY_WRITE_BUFFER, 0 );
+		}
+
+		m_bMapped = false;
+
+		return m_lMapOffset;
+	}
+
+
+	/**
+	 * Fences the commands that read the current region and moves on to the next one
+	 */
+	public void endFrame()
+	{
+		if( m_bMapped )
+			this.commit();
+
+		if( m_lFences[m_iFrame] != 0 )
+			glDeleteSync( m_lFences[m_iFrame] );
+
+		m_lFences[m_iFrame] = glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+
+		m_iFrame  = (m_iFrame + 1) % FRAMES;
+		m_iOffset = 0;
+		m_bWaited = false;
+
+		this.deleteRetiredBuffers();
+	}
+
+
+	public int getBufferID()
+	{
+		return m_iBufferID;
+	}
+
+
+	/**
+	 * @return true if the buffer is persistently mapped
+	 */
+	public boolean isPersistent()
+	{
+		return m_bPersistent;
+	}
+
+
+	public void freeGLResources()
+	{
+		this.deleteFences();
+		this.deleteRetiredBuffers();
+
+		if( m_iBufferID != 0 )
+			this.deleteBuffer( m_iBufferID );
+
+		m_iBufferID = 0;
+		m_Mapping   = null;
+		m_bMapped   = false;
+	}
+
+
+	private void deleteFences()
+	{
+		for( int i = 0; i < FRAMES; ++i )
+		{
+			if( m_lFences[i] != 0 )
+				glDeleteSync( m_lFences[i] );
+
+			m_lFences[i] = 0;
+		}
+	}
+
+
+	private void deleteRetiredBuffers()
+	{
+		for( int i = 0; i < m_RetiredBuffers.size(); ++i )
+			this.deleteBuffer( m_RetiredBuffers.get(i) );
+
+		m_RetiredBuffers.clear();
+	}
+
+
+	private void deleteBuffer( int bufferID )
+	{
+		if( m_bPersistent )
+		{
+			glBindBuffer( GL_COPY_WRITE_BUFFER, bufferID );
+			glUnmapBuffer( GL_COPY_WRITE_BUFFER );
+			glBindBuffer( GL_COPY_WRITE_BUFFER, 0 );
+		}
+
+		glDeleteBuffers( bufferID );
+	}
+
+
+	private void waitForRegion( int frame )
+	{
+		long fence = m_lFences[frame];
+
+		if( fence == 0 )
+			return;
+
+		int status;
+
+		do
+		{
+			status = glClientWaitSync( fence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS );
+		}
+		while( status == GL_TIMEOUT_EXPIRED );
+
+		if( status == GL_WAIT_FAILED )
+			System.err.println( "*Error* StreamBuffer: Waiting for the GPU failed" );
+
+		glDeleteSync( fence );
+		m_lFences[frame] = 0;
+	}
+
+
+	/**
+	 * (Re)creates the buffer with FRAMES regions. The old buffer is never written again, so its fences are dropped,
+	 * it stays bound where the current frame bound it and is deleted in endFrame() (OpenGL keeps it alive while
+	 * queued commands still use it).
+	 */
+	private void allocate( int regionSize )
+	{
+		this.deleteFences();
+
+		if( m_iBufferID != 0 )
+			m_RetiredBuffers.add( m_iBufferID );
+
+		m_iRegionSize = regionSize;
+		m_iBufferID   = glGenBuffers();
+		m_iFrame      = 0;
+		m_iOffset     = 0;
+		m_bWaited     = true;
+
+		long size = (long) FRAMES * regionSize;
+
+		glBindBuffer( GL_COPY_WRITE_BUFFER, m_iBufferID );
+
+		if( m_bPersistent )
+		{
+			int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+			if( GL.getCapabilities().OpenGL44 )
+				GL44.glBufferStorage( GL_COPY_WRITE_BUFFER, size, flags );
+			else
+				ARBBufferStorage.glBufferStorage( GL_COPY_WRITE_BUFFER, size, flags );
+
+			m_Mapping = glMapBufferRange( GL_COPY_WRITE_BUFFER, 0, size, flags );
+		}
+		else
+			glBufferData( GL_COPY_WRITE_BUFFER, size, GL_STREAM_DRAW );
+
+		glBindBuffer( GL_COPY_WRITE_BUFFER, 0 );
+	}
+}
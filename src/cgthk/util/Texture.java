@@ -16,6 +16,9 @@ import static org.lwjgl.opengl.GL12.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL30.glGenerateMipmap;
 import static org.lwjgl.opengl.GL30.GL_R8;
+import static org.lwjgl.opengl.GL30.GL_RG;
+import static org.lwjgl.opengl.GL30.GL_RG8;
+import static org.lwjgl.stb.STBImage.*;
 
 import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
@@ -29,9 +32,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import javax.imageio.ImageIO;
+import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.EXTABGR;
+import org.lwjgl.system.MemoryStack;
 
 import cgthk.math.Vec2;
 
@@ -40,6 +46,7 @@ import cgthk.math.Vec2;
 public class Texture
 {
 	private static HashMap<String,Integer> TextureIDs = new HashMap<String,Integer>();
+	private static int                     PlaceholderID;
 	
 	private int textureID;
 	
@@ -48,7 +55,7 @@ public class Texture
 	public Texture( String filename )
 	{
 		if( !TextureIDs.containsKey(filename) )
-			loadTexture( filename );
+			uploadImage( filename, decodeImage(filename) );
 		
 		this.textureID = TextureIDs.get( filename );
 		this.m_textureScale = new Vec2(1f);
@@ -68,7 +75,142 @@ public class Texture
 	}
 	
 	
-	private static void loadTexture( String filename )
+	/**
+	 * @return false while the texture still shows the placeholder, see AssetLoader.requestTexture()
+	 */
+	public boolean isResident()
+	{
+		return this.textureID != PlaceholderID || PlaceholderID == 0;
+	}
+	
+	
+	/**
+	 * Swaps in the real texture once it's uploaded, the Texture objects handed out before stay valid
+	 */
+	void setID( int textureID )
+	{
+		this.textureID = textureID;
+	}
+	
+	
+	/**
+	 * A 1x1 mid grey texture shown until a requested texture is resident, created on first use.
+	 * Has to be called on the thread that owns the OpenGL context.
+	 */
+	static int getPlaceholderID()
+	{
+		if( PlaceholderID == 0 )
+		{
+			ByteBuffer pixel = BufferUtils.createByteBuffer( 4 ).put( 0, (byte) 128 ).put( 1, (byte) 128 ).put( 2, (byte) 128 ).put( 3, (byte) 255 );
+			
+			PlaceholderID = glGenTextures();
+			
+			glActiveTexture( GL_TEXTURE0 );
+			glBindTexture( GL_TEXTURE_2D, PlaceholderID );
+			glTexImage2D( GL_TEXTURE_2D, 0, GL_RGBA8, 1, 1, 0, GL_RGBA, GL_UNSIGNED_BYTE, pixel );
+			glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST );
+			glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST );
+			glBindTexture( GL_TEXTURE_2D, 0 );
+		}
+		
+		return PlaceholderID;
+	}
+	
+	
+	/**
+	 * Decoded pixel data of an image file, ready for glTexImage2D(), rows are tightly packed
+	 */
+	static final class Image
+	{
+		final int        width;
+		final int        height;
+		final int        internalFormat;
+		final int        format;
+		final ByteBuffer pixels;
+		final boolean    stbPixels;
+		
+		
+		Image( int width, int height, int internalFormat, int format, ByteBuffer pixels, boolean stbPixels )
+		{
+			this.width          = width;
+			this.height         = height;
+			this.internalFormat = internalFormat;
+			this.format         = format;
+			this.pixels         = pixels;
+			this.stbPixels      = stbPixels;
+		}
+		
+		
+		/**
+		 * Releases the pixels allocated by stb_image, the image can't be used afterwards
+		 */
+		void free()
+		{
+			if( stbPixels )
+				stbi_image_free( pixels );
+		}
+	}
+	
+	
+	/**
+	 * @return true if the texture has already been uploaded by a previous Texture( filename )
+	 */
+	static boolean isLoaded( String filename )
+	{
+		return TextureIDs.containsKey( filename );
+	}
+	
+	
+	/**
+	 * Decodes and flips the image file with stb_image straight into an off-heap buffer, without touching OpenGL,
+	 * so it may be called from any thread. Files stb_image can't decode are read by decodeImageLegacy().
+	 * The pixels have to be released with Image.free(), uploadImage() does that.
+	 * @return null if the image can't be read or has an unsupported data type
+	 */
+	static Image decodeImage( String filename )
+	{
+		String path = IOUtils.pathOf( filename );
+		
+		try( MemoryStack stack = MemoryStack.stackPush() )
+		{
+			IntBuffer width    = stack.mallocInt( 1 );
+			IntBuffer height   = stack.mallocInt( 1 );
+			IntBuffer channels = stack.mallocInt( 1 );
+			
+			// the flag is thread local, decoding threads don't affect each other
+			stbi_set_flip_vertically_on_load_thread( 1 );
+			
+			ByteBuffer pixels = stbi_load( path, width, height, channels, 0 );
+			
+			if( pixels == null )
+			{
+				System.err.println( "*Error* stb_image can't decode " + path + " (" + stbi_failure_reason() + "), using ImageIO" );
+				return decodeImageLegacy( filename );
+			}
+			
+			int internalFormat;
+			int format;
+			
+			// same internal formats as the ImageIO path, stb_image always delivers R, RG, RGB or RGBA order
+			switch( channels.get(0) )
+			{
+				case 1:  internalFormat = GL_R8;    format = GL_RED;  break;
+				case 2:  internalFormat = GL_RG8;   format = GL_RG;   break;
+				case 3:  internalFormat = GL_RGB8;  format = GL_RGB;  break;
+				default: internalFormat = GL_RGBA8; format = GL_RGBA; break;
+			}
+			
+			return new Image( width.get(0), height.get(0), internalFormat, format, pixels, true );
+		}
+	}
+	
+	
+	/**
+	 * The previous decoder: ImageIO (or loadTGA()), flipped by drawing into a second BufferedImage and copied into
+	 * a direct buffer. Kept for files stb_image doesn't support and for TextureBenchmark.
+	 * @return null if the image can't be read or has an unsupported data type
+	 */
+	static Image decodeImageLegacy( String filename )
 	{
 		try
 		{
@@ -122,8 +264,7 @@ public class Texture
 			else
 			{
 				System.err.println( "TexturePool : image datatype not supported!" );
-				TextureIDs.put( filename, 0 );
-				return;
+				return null;
 			}
 			
 			
@@ -133,9 +274,6 @@ public class Texture
 		    imageBuffer.put( data, 0, data.length );
 		    imageBuffer.flip();
 		    
-		    int textureID = glGenTextures();
-		    TextureIDs.put( filename, textureID );
-		    
 		    int internalFormat = GL_RGB;
 		    int format         = GL_RGB;
 		    
@@ -185,25 +323,49 @@ public class Texture
 		    	}
 		    }
 		    
-		    glActiveTexture( GL_TEXTURE0 );
-		    glBindTexture( GL_TEXTURE_2D, textureID );
-		    
-		    glTexImage2D( GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_UNSIGNED_BYTE, imageBuffer );
-		    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT );
-		    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT );
-		    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR );
-		    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR );
-			glTexParameterf( GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, 8f );
-		    glGenerateMipmap( GL_TEXTURE_2D );
-		    glBindTexture( GL_TEXTURE_2D, 0 );
+		    return new Image( width, height, internalFormat, format, imageBuffer, false );
 		}
 		catch( IOException e )
 		{
-		    TextureIDs.put( filename, 0 );
 			e.printStackTrace();
+			return null;
 		}
 	}
 	
+	
+	/**
+	 * Creates the OpenGL texture for a decoded image and registers it under filename,
+	 * a null image registers texture 0. Has to be called on the thread that owns the OpenGL context.
+	 */
+	static void uploadImage( String filename, Image image )
+	{
+		if( image == null )
+		{
+			TextureIDs.put( filename, 0 );
+			return;
+		}
+		
+	    int textureID = glGenTextures();
+	    TextureIDs.put( filename, textureID );
+	    
+	    glActiveTexture( GL_TEXTURE0 );
+	    glBindTexture( GL_TEXTURE_2D, textureID );
+	    
+	    // rows of 1, 2 and 3 channel images aren't 4 byte aligned
+	    glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+	    glTexImage2D( GL_TEXTURE_2D, 0, image.internalFormat, image.width, image.height, 0, image.format, GL_UNSIGNED_BYTE, image.pixels );
+	    glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+	    image.free();
+	    
+	    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT );
+	    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT );
+	    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR );
+	    glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR );
+		glTexParameterf( GL_TEXTURE_2D, GL_TEXTURE_MAX_ANISOTROPY_EXT, 8f );
+	    glGenerateMipmap( GL_TEXTURE_2D );
+	    glBindTexture( GL_TEXTURE_2D, 0 );
+	}
+	
 	private static int offset;
 
     private static int btoi(byte b) {
@@ -215,7 +377,10 @@ public class Texture
         return btoi(buf[offset++]);
     }
 
-    public static BufferedImage loadTGA( File file ) throws IOException
+    /**
+     * Synchronized, the parser keeps its read offset in a static field
+     */
+    public static synchronized BufferedImage loadTGA( File file ) throws IOException
     {
         byte[] buf  = new byte[(int)file.length()];
         
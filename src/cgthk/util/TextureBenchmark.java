@@ -0,0 +1,179 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_BGR;
+import static org.lwjgl.opengl.GL30.GL_RG;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import org.lwjgl.opengl.EXTABGR;
+
+
+
+/**
+ * Compares the stb_image decoder of Texture.decodeImage() with the old ImageIO/Graphics2D decoder
+ * (Texture.decodeImageLegacy()) on all images in resources/Textures.
+ * The KB columns are the Java heap allocated per decode, the pixels column is the off-heap pixel buffer both
+ * decoders return. The diff column is the largest difference of a color channel, lossless files have to be 0,
+ * JPEG decoders round differently.<br>
+ * Does not need an OpenGL context, run it from the project root: java cgthk.util.TextureBenchmark [iterations]
+ */
+public class TextureBenchmark
+{
+	private static final int WARMUP_ITERATIONS  = 5;
+	private static final int DEFAULT_ITERATIONS = 10;
+
+
+	public static void main( String[] args )
+	{
+		int iterations = args.length > 0 ? Integer.parseInt( args[0] ) : DEFAULT_ITERATIONS;
+
+		File[] files = new File( IOUtils.pathOf("Textures") ).listFiles( (dir, name) -> name.matches("(?i).*\\.(png|jpg|jpeg|tga|bmp)") );
+
+		if( files == null || files.length == 0 )
+		{
+			System.err.println( "*ERROR* TextureBenchmark: No images found in " + IOUtils.pathOf("Textures") );
+			return;
+		}
+
+		Arrays.sort( files );
+
+		System.out.println( "Texture decode benchmark, " + iterations + " iterations per file (times in ms, allocations in KB per decode)" );
+		System.out.println();
+		System.out.println( String.format("%-22s %11s %10s %10s %12s %10s %10s %8s  %s", "file", "size", "legacy", "stb", "legacy KB", "stb KB", "pixels KB", "speedup", "diff") );
+
+		long legacyTotal = 0;
+		long stbTotal    = 0;
+
+		for( File file : files )
+		{
+			String filename = "Textures/" + file.getName();
+
+			Texture.Image reference = Texture.decodeImageLegacy( filename );
+			Texture.Image image     = Texture.decodeImage( filename );
+
+			if( reference == null || image == null )
+			{
+				System.err.println( "*ERROR* TextureBenchmark: Can't decode " + filename );
+				continue;
+			}
+
+			int  difference = difference( reference, image );
+			long pixelBytes = image.pixels.capacity();
+
+			image.free();
+
+			for( int i = 0; i < WARMUP_ITERATIONS; ++i )
+			{
+				Texture.decodeImageLegacy( filename );
+				Texture.decodeImage( filename ).free();
+			}
+
+			long legacyAllocated = allocatedBytes();
+			long legacyTime      = System.nanoTime();
+
+			for( int i = 0; i < iterations; ++i )
+				Texture.decodeImageLegacy( filename );
+
+			legacyTime      = System.nanoTime() - legacyTime;
+			legacyAllocated = allocatedBytes() - legacyAllocated;
+
+			long stbAllocated = allocatedBytes();
+			long stbTime      = System.nanoTime();
+
+			for( int i = 0; i < iterations; ++i )
+				Texture.decodeImage( filename ).free();
+
+			stbTime      = System.nanoTime() - stbTime;
+			stbAllocated = allocatedBytes() - stbAllocated;
+
+			legacyTotal += legacyTime;
+			stbTotal    += stbTime;
+
+			System.out.println( String.format("%-22s %11s %10.2f %10.2f %12d %10d %10d %7.2fx  %s",
+											  file.getName(),
+											  image.width + "x" + image.height + "x" + components( image.format ),
+											  legacyTime * 1e-6 / iterations,
+											  stbTime    * 1e-6 / iterations,
+											  legacyAllocated / 1024 / iterations,
+											  stbAllocated    / 1024 / iterations,
+											  pixelBytes / 1024,
+											  (double) legacyTime / stbTime,
+											  difference < 0 ? "FORMAT" : String.valueOf(difference)) );
+		}
+
+		System.out.println();
+		System.out.println( String.format("total: legacy %.2f ms, stb %.2f ms per pass", legacyTotal * 1e-6 / iterations, stbTotal * 1e-6 / iterations) );
+	}
+
+
+	/**
+	 * Largest difference of a channel between both decoders, -1 if the size or the channel count differs
+	 */
+	private static int difference( Texture.Image expected, Texture.Image actual )
+	{
+		int components = components( expected.format );
+
+		if( expected.width != actual.width || expected.height != actual.height || components != components(actual.format) )
+			return -1;
+
+		int max = 0;
+
+		for( int pixel = 0; pixel < expected.width * expected.height; ++pixel )
+		{
+			for( int channel = 0; channel < components; ++channel )
+			{
+				int left  = expected.pixels.get( pixel * components + offset(expected.format, channel) ) & 0xFF;
+				int right = actual.pixels.get( pixel * components + offset(actual.format, channel) ) & 0xFF;
+
+				max = Math.max( max, Math.abs(left - right) );
+			}
+		}
+
+		return max;
+	}
+
+
+	private static int components( int format )
+	{
+		switch( format )
+		{
+			case GL_RED:  return 1;
+			case GL_RG:   return 2;
+			case GL_RGB:
+			case GL_BGR:  return 3;
+			default:      return 4;
+		}
+	}
+
+
+	/**
+	 * Byte offset of the R, G, B or A channel (0 to 3) within a pixel
+	 */
+	private static int offset( int format, int channel )
+	{
+		switch( format )
+		{
+			case GL_BGR:                return 2 - channel;
+			case EXTABGR.GL_ABGR_EXT:   return 3 - channel;
+			default:                    return channel;
+		}
+	}
+
+
+	/**
+	 * Bytes allocated by the current thread so far, or 0 if the JVM can't measure it
+	 */
+	private static long allocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if( bean instanceof com.sun.management.ThreadMXBean )
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes( Thread.currentThread().getId() );
+
+		return 0;
+	}
+}
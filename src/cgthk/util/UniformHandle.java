@@ -0,0 +1,235 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.system.MemoryUtil.memPutFloat;
+
+import org.lwjgl.system.MemoryStack;
+
+import cgthk.math.Mat3;
+import cgthk.math.Mat4;
+import cgthk.math.Vec2;
+import cgthk.math.Vec3;
+import cgthk.math.Vec4;
+
+
+
+/**
+ * A uniform of a ShaderProgram with its location resolved once (and again after a reload), see ShaderProgram.getUniform().<br>
+ * The set methods never allocate: vectors and matrices are written to the thread local MemoryStack and passed to
+ * OpenGL by address, float arrays are passed directly. Like glUniform* they change the program in use, so the
+ * handle's program has to be in use. Setting a uniform that isn't active in the program (location -1) does nothing.
+ */
+public final class UniformHandle
+{
+	private final String name;
+	private int          location;
+
+
+
+	UniformHandle( String name, int location )
+	{
+		this.name     = name;
+		this.location = location;
+	}
+
+
+	public String getName()
+	{
+		return name;
+	}
+
+
+	public int getLocation()
+	{
+		return location;
+	}
+
+
+	/**
+	 * Called when the program was relinked, see ShaderProgram.reload()
+	 */
+	void setLocation( int location )
+	{
+		this.location = location;
+	}
+
+
+	/**
+	 * @return false if the program has no active uniform with this name
+	 */
+	public boolean isActive()
+	{
+		return location != -1;
+	}
+
+
+	public void set( int value )
+	{
+		glUniform1i( location, value );
+	}
+
+
+	public void set( float value )
+	{
+		glUniform1f( location, value );
+	}
+
+
+	public void set( float x, float y )
+	{
+		glUniform2f( location, x, y );
+	}
+
+
+	public void set( float x, float y, float z )
+	{
+		glUniform3f( location, x, y, z );
+	}
+
+
+	public void set( float x, float y, float z, float w )
+	{
+		glUniform4f( location, x, y, z, w );
+	}
+
+
+	public void set( Vec2 vec )
+	{
+		glUniform2f( location, vec.x, vec.y );
+	}
+
+
+	public void set( Vec3 vec )
+	{
+		glUniform3f( location, vec.x, vec.y, vec.z );
+	}
+
+
+	public void set( Vec4 vec )
+	{
+		glUniform4f( location, vec.x, vec.y, vec.z, vec.w );
+	}
+
+
+	public void set( Mat3 mat )
+	{
+		try( MemoryStack stack = MemoryStack.stackPush() )
+		{
+			long address = stack.nmalloc( 4, 9 * 4 );
+
+			put( address,      mat.m00, mat.m10, mat.m20 );
+			put( address + 12, mat.m01, mat.m11, mat.m21 );
+			put( address + 24, mat.m02, mat.m12, mat.m22 );
+
+			nglUniformMatrix3fv( location, 1, false, address );
+		}
+	}
+
+
+	public void set( Mat4 mat )
+	{
+		try( MemoryStack stack = MemoryStack.stackPush() )
+		{
+			long address = stack.nmalloc( 4, 16 * 4 );
+
+			put( address,      mat.m00, mat.m10, mat.m20, mat.m30 );
+			put( address + 16, mat.m01, mat.m11, mat.m21, mat.m31 );
+			put( address + 32, mat.m02, mat.m12, mat.m22, mat.m32 );
+			put( address + 48, mat.m03, mat.m13, mat.m23, mat.m33 );
+
+			nglUniformMatrix4fv( location, 1, false, address );
+		}
+	}
+
+
+	public void set( Vec2[] vecs )
+	{
+		try( MemoryStack stack = MemoryStack.stackPush() )
+		{
+			long address = stack.nmalloc( 4, vecs.length * 2 * 4 );
+
+			for( int i = 0; i < vecs.length; ++i )
+				put( address + i * 8, vecs[i].x, vecs[i].y );
+
+			nglUniform2fv( location, vecs.length, address );
+		}
+	}
+
+
+	public void set( Vec3[] vecs )
+	{
+		try( MemoryStack stack = MemoryStack.stackPush() )
+		{
+			long address = stack.nmalloc( 4, vecs.length * 3 * 4 );
+
+			for( int i = 0; i < vecs.length; ++i )
+				put( address + i * 12, vecs[i].x, vecs[i].y, vecs[i].z );
+
+			nglUniform3fv( location, vecs.length, address );
+		}
+	}
+
+
+	public void set( Vec4[] vecs )
+	{
+		try( MemoryStack stack = MemoryStack.stackPush() )
+		{
+			long address = stack.nmalloc( 4, vecs.length * 4 * 4 );
+
+			for( int i = 0; i < vecs.length; ++i )
+				put( address + i * 16, vecs[i].x, vecs[i].y, vecs[i].z, vecs[i].w );
+
+			nglUniform4fv( location, vecs.length, address );
+		}
+	}
+
+
+	/**
+	 * Uploads a float, vec2, vec3 or vec4 array from packed floats.
+	 * @param components Floats per element, 1 to 4
+	 */
+	public void set( float[] values, int components )
+	{
+		switch( components )
+		{
+			case 1: glUniform1fv( location, values ); break;
+			case 2: glUniform2fv( location, values ); break;
+			case 3: glUniform3fv( location, values ); break;
+			case 4: glUniform4fv( location, values ); break;
+			default: throw new IllegalArgumentException( "Uniform arrays have 1 to 4 components, not " + components );
+		}
+	}
+
+
+	/**
+	 * Uploads one or more mat4 from 16 column major floats each
+	 */
+	public void setMatrix4( float[] values )
+	{
+		glUniformMatrix4fv( location, false, values );
+	}
+
+
+	private static void put( long address, float x, float y )
+	{
+		memPutFloat( address,     x );
+		memPutFloat( address + 4, y );
+	}
+
+
+	private static void put( long address, float x, float y, float z )
+	{
+		memPutFloat( address,     x );
+		memPutFloat( address + 4, y );
+		memPutFloat( address + 8, z );
+	}
+
+
+	private static void put( long address, float x, float y, float z, float w )
+	{
+		memPutFloat( address,      x );
+		memPutFloat( address + 4,  y );
+		memPutFloat( address + 8,  z );
+		memPutFloat( address + 12, w );
+	}
+}
@@ -0,0 +1,286 @@
+package cgthk.util;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.GL_HALF_FLOAT;
+import static org.lwjgl.opengl.GL33.GL_INT_2_10_10_10_REV;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.BufferUtils;
+
+
+
+/**
+ * Describes an interleaved vertex layout: the attributes of one vertex are stored next to each other in a
+ * single buffer, see Mesh.setVertices(). Every attribute is stored as GL_FLOAT, GL_HALF_FLOAT or
+ * GL_INT_2_10_10_10_REV (three signed normalized 10 bit components, meant for normals), offsets are 4 byte aligned.<br>
+ * <br>
+ * packed(): float positions, 2_10_10_10 normals and half float texture coordinates take 20 instead of 32 bytes per vertex.
+ */
+public class VertexFormat
+{
+	/** one attribute of the layout */
+	public static class Element
+	{
+		public final int     location;
+		public final int     components;
+		public final int     type;
+		public final boolean normalized;
+		public final int     offset;
+
+
+		Element( int location, int components, int type, boolean normalized, int offset )
+		{
+			this.location   = location;
+			this.components = components;
+			this.type       = type;
+			this.normalized = normalized;
+			this.offset     = offset;
+		}
+
+
+		/**
+		 * Components as passed to glVertexAttribPointer, 2_10_10_10 always has four
+		 */
+		public int getPointerComponents()
+		{
+			return type == GL_INT_2_10_10_10_REV ? 4 : components;
+		}
+	}
+
+	private ArrayList<Element> elements;
+	private int                stride;
+
+
+
+	public VertexFormat()
+	{
+		this.elements = new ArrayList<Element>();
+		this.stride   = 0;
+	}
+
+
+	/**
+	 * Positions at location 0, normals at 1 and (if texCoords) texture coordinates at 2, all as floats
+	 */
+	public static VertexFormat interleaved( boolean texCoords )
+	{
+		VertexFormat format = new VertexFormat().add( 0, 3, GL_FLOAT ).add( 1, 3, GL_FLOAT );
+
+		return texCoords ? format.add( 2, 2, GL_FLOAT ) : format;
+	}
+
+
+	/**
+	 * Like interleaved(), but normals as GL_INT_2_10_10_10_REV and texture coordinates as half floats
+	 */
+	public static VertexFormat packed( boolean texCoords )
+	{
+		VertexFormat format = new VertexFormat().add( 0, 3, GL_FLOAT ).add( 1, 3, GL_INT_2_10_10_10_REV );
+
+		return texCoords ? format.add( 2, 2, GL_HALF_FLOAT ) : format;
+	}
+
+
+	/**
+	 * Appends an attribute.
+	 * @param components Components in the source data, 1 to 4 (3 for GL_INT_2_10_10_10_REV)
+	 * @param type GL_FLOAT, GL_HALF_FLOAT or GL_INT_2_10_10_10_REV
+	 */
+	public VertexFormat add( int location, int components, int type )
+	{
+		int size;
+
+		if( type == GL_FLOAT )
+			size = 4 * components;
+		else if( type == GL_HALF_FLOAT )
+			size = 2 * components;
+		else if( type == GL_INT_2_10_10_10_REV && components == 3 )
+			size = 4;
+		else
+			throw new IllegalArgumentException( "Unsupported vertex attribute type " + type + " with " + components + " components" );
+
+		elements.add( new Element(location, components, type, type == GL_INT_2_10_10_10_REV, stride) );
+		stride += (size + 3) & ~3;
+
+		return this;
+	}
+
+
+	public ArrayList<Element> getElements()
+	{
+		return elements;
+	}
+
+
+	/**
+	 * Bytes per vertex
+	 */
+	public int getStride()
+	{
+		return stride;
+	}
+
+
+	/**
+	 * true if both formats have the same elements at the same offsets, so a VAO of one fits the other
+	 */
+	public boolean hasSameLayout( VertexFormat other )
+	{
+		if( other == this )
+			return true;
+
+		if( other == null || other.stride != stride || other.elements.size() != elements.size() )
+			return false;
+
+		for( int i = 0; i < elements.size(); ++i )
+		{
+			Element left  = elements.get( i );
+			Element right = other.elements.get( i );
+
+			if( left.location   != right.location   || left.components != right.components || left.type != right.type ||
+				left.normalized != right.normalized || left.offset     != right.offset )
+				return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * @return bytes pack() needs for the attribute arrays
+	 */
+	public int getPackedSize( float[]... attributes )
+	{
+		if( attributes.length != elements.size() )
+			throw new IllegalArgumentException( "Expected " + elements.size() + " attribute arrays but got " + attributes.length );
+
+		int vertexCount = attributes.length == 0 ? 0 : attributes[0].length / elements.get( 0 ).components;
+
+		return vertexCount * stride;
+	}
+
+
+	/**
+	 * Interleaves and converts the attribute arrays.
+	 * @param attributes One float array per element, in the order of the elements, components floats per vertex
+	 * @return direct buffer ready for glBufferData
+	 */
+	public ByteBuffer pack( float[]... attributes )
+	{
+		return this.pack( BufferUtils.createByteBuffer(this.getPackedSize(attributes)), attributes );
+	}
+
+
+	/**
+	 * Interleaves and converts the attribute arrays into buffer, starting at index 0 (e.g. a reused staging buffer).
+	 * @param buffer Native order, at least getPackedSize() bytes, its limit is set to the packed size
+	 * @return buffer
+	 */
+	public ByteBuffer pack( ByteBuffer buffer, float[]... attributes )
+	{
+		int size        = this.getPackedSize( attributes );
+		int vertexCount = stride == 0 ? 0 : size / stride;
+
+		buffer.clear().limit( size );
+
+		for( int e = 0; e < elements.size(); ++e )
+		{
+			Element element = elements.get( e );
+			float[] values  = attributes[e];
+
+			if( values.length < vertexCount * element.components )
+				throw new IllegalArgumentException( "Attribute " + element.location + " has data for less than " + vertexCount + " vertices" );
+
+			for( int vertex = 0; vertex < vertexCount; ++vertex )
+			{
+				int position = vertex * stride + element.offset;
+				int source   = vertex * element.components;
+
+				if( element.type == GL_FLOAT )
+				{
+					for( int c = 0; c < element.components; ++c )
+						buffer.putFloat( position + 4 * c, values[source + c] );
+				}
+				else if( element.type == GL_HALF_FLOAT )
+				{
+					for( int c = 0; c < element.components; ++c )
+						buffer.putShort( position + 2 * c, toHalf(values[source + c]) );
+				}
+				else
+				{
+					buffer.putInt( position, pack2101010(values[source], values[source + 1], values[source + 2]) );
+				}
+			}
+		}
+
+		return buffer;
+	}
+
+
+	/**
+	 * Signed normalized 10 bit x, y, z in the low 30 bits, w = 0
+	 */
+	public static int pack2101010( float x, float y, float z )
+	{
+		return  (snorm10( x )      )
+			  | (snorm10( y ) << 10)
+			  | (snorm10( z ) << 20);
+	}
+
+
+	private static int snorm10( float value )
+	{
+		return Math.round( Math.max(-1.0f, Math.min(1.0f, value)) * 511.0f ) & 0x3FF;
+	}
+
+
+	/**
+	 * IEEE 754 half precision bits of value, rounded to nearest even, overflow becomes infinity
+	 */
+	public static short toHalf( float value )
+	{
+		int bits     = Float.floatToRawIntBits( value );
+		int sign     = (bits >>> 16) & 0x8000;
+		int exponent = (bits >>> 23) & 0xFF;
+		int mantissa = bits & 0x7FFFFF;
+
+		// NaN and infinity
+		if( exponent == 0xFF )
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+
+		int halfExponent = exponent - 127 + 15;
+
+		if( halfExponent >= 0x1F )
+			return (short) (sign | 0x7C00);
+
+		if( halfExponent <= 0 )
+		{
+			// subnormal or zero
+			if( halfExponent < -10 )
+				return (short) sign;
+
+			mantissa |= 0x800000;
+
+			int shift = 14 - halfExponent;
+			int half  = mantissa >> shift;
+			int rest  = mantissa & ((1 << shift) - 1);
+			int mid   = 1 << (shift - 1);
+
+			if( rest > mid || (rest == mid && (half & 1) != 0) )
+				half++;
+
+			return (short) (sign | half);
+		}
+
+		int half = (halfExponent << 10) | (mantissa >> 13);
+		int rest = mantissa & 0x1FFF;
+
+		// a carry into the exponent is the correctly rounded result
+		if( rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0) )
+			half++;
+
+		return (short) (sign | half);
+	}
+}
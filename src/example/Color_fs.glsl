@@ -11,15 +11,40 @@
 
 #version 330
 
+// Uber shader, see Color_vs.glsl for the defines
+
 out     vec4 FragColor;
 
 in      vec3 vPosition;
 in      vec3 vNormal;
+in      vec4 vColor;
 
-uniform vec3 uColor;
+#ifdef LIGHTING
+layout(std140) uniform FrameData
+{
+	mat4 uView;
+	mat4 uProjection;
+	vec4 uLightPositions[8];
+	vec4 uLightColors[8];
+	int  uLightCount;
+};
+#endif
 
 
 void main(void)
 {
-    FragColor = vec4( uColor.rgb, 1.0 );
+#ifdef LIGHTING
+	vec3 normal = normalize( vNormal );
+	vec3 light  = vec3( 0.15 );
+
+	for( int i = 0; i < uLightCount; ++i )
+	{
+		vec3 toLight = normalize( uLightPositions[i].xyz - vPosition );
+		light += uLightColors[i].rgb * max( dot(normal, toLight), 0.0 );
+	}
+
+	FragColor = vec4( vColor.rgb * light, vColor.a );
+#else
+    FragColor = vColor;
+#endif
 }
\ No newline at end of file
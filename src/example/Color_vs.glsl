@@ -12,22 +12,53 @@
 #version 330
 #extension GL_ARB_explicit_attrib_location : enable
 
+// Uber shader, compiled through ShaderVariants with these optional defines:
+// INSTANCED  model matrix and color per instance, see Mesh.setInstanceData()
+// LIGHTING   diffuse lighting by the FrameData lights
+
 
 layout(location=0) in vec3 aPosition;
 layout(location=1) in vec3 aNormal;
 
+#ifdef INSTANCED
+layout(location=3) in mat4 aModel;
+layout(location=7) in vec4 aColor;
+#endif
+
 out vec3 vPosition;
 out vec3 vNormal;
+out vec4 vColor;
+
+// per frame, see Sandbox.writeFrameBlock()
+layout(std140) uniform FrameData
+{
+	mat4 uView;
+	mat4 uProjection;
+	vec4 uLightPositions[8];
+	vec4 uLightColors[8];
+	int  uLightCount;
+};
 
-uniform mat4 uModel;
-uniform mat4 uView;
-uniform mat4 uProjection;
+// per draw, see Sandbox.writeObjectBlock()
+layout(std140) uniform ObjectData
+{
+	mat4 uModel;
+	vec4 uColor;
+};
 
 
 void main(void) 
 {
-	vPosition = vec3( uModel * vec4(aPosition, 1.0) );
-	vNormal   = vec3( uModel * vec4(aNormal,   0.0) );
+#ifdef INSTANCED
+	mat4 model = aModel;
+	vColor     = aColor;
+#else
+	mat4 model = uModel;
+	vColor     = uColor;
+#endif
+
+	vPosition = vec3( model * vec4(aPosition, 1.0) );
+	vNormal   = vec3( model * vec4(aNormal,   0.0) );
 
-	gl_Position = uProjection * uView * uModel * vec4(aPosition, 1.0);
+	gl_Position = uProjection * uView * model * vec4(aPosition, 1.0);
 }
\ No newline at end of file
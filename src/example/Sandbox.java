@@ -14,6 +14,8 @@ import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.nuklear.Nuklear.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferRange;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
@@ -24,6 +26,7 @@ import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 import javax.imageio.ImageIO;
 
@@ -53,8 +56,28 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 	private PerspectiveFirstPersonCamera m_firstPersonCamera; // Classic first person view camera
 	private TurnTableCamera m_turnTableCamera; // Turn table camera, always looking at the coordinate origin
 
+	private ShaderVariants m_colorShaders; // Variants of Color_vs/Color_fs, selected by the feature bits below
+	private ShaderReloader m_shaderReloader = new ShaderReloader(); // Recompiles shaders when their files are saved
+	private static final int INSTANCED = 1;
+	private static final int LIGHTING = 2;
 	private ShaderProgram m_standardShader; // Standard shader for rendering/lighting objects
 	private ShaderProgram m_debugProgram; // Shader responsible for drawing additions, e.g.the grid floor
+	private UniformHandle m_debugView, m_debugProjection, m_debugModel, m_debugColor; // Resolved once
+	private Mat4 m_identity = new Mat4();
+	private Mat4 m_modelScratch = new Mat4(); // Reused for model matrices in per draw code
+	private ShaderProgram m_instancedShader; // Standard shader with per instance model matrix and color
+
+	private FrustumCuller m_frustumCuller = new FrustumCuller(); // Skips meshes outside of the view frustum
+	private ArrayList<Mesh> m_visibleMeshes = new ArrayList<Mesh>(); // Meshes that passed the culling, reused every frame
+	private RenderQueue m_renderQueue = new RenderQueue(); // Sorts the draw calls by state and depth
+	private ArrayList<Mesh> m_singleMeshes = new ArrayList<Mesh>(); // Visible meshes without shared geometry
+	private ArrayList<Mesh> m_instanceBatches = new ArrayList<Mesh>(); // One instanced batch per shared geometry
+
+	// Uniform blocks, see the FrameData and ObjectData blocks in Color_vs.glsl
+	private static final int MAX_LIGHTS = 8;
+	private static final int FRAME_BLOCK_SIZE = 2 * 64 + 2 * 16 * MAX_LIGHTS + 16;
+	private static final int OBJECT_BLOCK_SIZE = 64 + 16;
+	private Std140Writer m_frameWriter = new Std140Writer();
 
 	// Mouse Input - two buffers for getting GLFWs current mouse position. Vec2 to
 	// save the old position
@@ -121,10 +144,19 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 		m_turnTableCamera.setAspect(windowProperties.getWindowWidth(), windowProperties.getWindowHeight());
 		m_scene.setCamera(m_firstPersonCamera);
 
-		m_standardShader = new ShaderProgram(getPathForPackage() + "Color_vs.glsl",
-				getPathForPackage() + "Color_fs.glsl");
+		m_colorShaders = new ShaderVariants(getPathForPackage() + "Color_vs.glsl",
+				getPathForPackage() + "Color_fs.glsl", 8, "INSTANCED", "LIGHTING");
+		m_standardShader = m_colorShaders.get(0);
+		m_instancedShader = m_colorShaders.get(INSTANCED);
 		m_debugProgram = new ShaderProgram(getPathForPackage() + "Debug_vs.glsl",
 				getPathForPackage() + "Debug_fs.glsl");
+		m_debugView = m_debugProgram.getUniform("uView");
+		m_debugProjection = m_debugProgram.getUniform("uProjection");
+		m_debugModel = m_debugProgram.getUniform("uModel");
+		m_debugColor = m_debugProgram.getUniform("uColor");
+		m_shaderReloader.watch(m_colorShaders);
+		m_shaderReloader.watch(m_debugProgram);
+		m_renderQueue.setObjectBlock(this::writeObjectBlock, OBJECT_BLOCK_SIZE);
 
 		// String gpu_vendor = glGetString(GL_VENDOR);
 		// System.out.println("GPU vendor: " + gpu_vendor);
@@ -147,7 +179,20 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 		// Show FPS
 		m_gui.fpsString = "FPS: " + (int) (1 / deltaTime);
 
+		// Switch the shader variants, the previous ones are used until the new ones are compiled
+		m_shaderReloader.update();
+		m_colorShaders.update();
+		int features = m_gui.lighting.get(0) == 1 ? LIGHTING : 0;
+		ShaderProgram standard = m_colorShaders.request(features);
+		ShaderProgram instanced = m_colorShaders.request(features | INSTANCED);
+		if (standard != null)
+			m_standardShader = standard;
+		if (instanced != null)
+			m_instancedShader = instanced;
+		m_gui.shaderString = m_colorShaders.getStatistics();
+
 		handleConstantInput(deltaTime);
+		m_scene.updatePicking();
 
 		Mesh selectedMesh = m_scene.getSelectedObject();
 		if (selectedMesh != null)
@@ -170,10 +215,13 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 		glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
 		Mesh selectedMesh = m_scene.getSelectedObject();
-		if (selectedMesh != null)
+		if (selectedMesh != null && selectedMesh.getMin() != null)
 			Primitive.drawBox(selectedMesh.getMin(), selectedMesh.getMax(), Color.green(),
 					selectedMesh.getModelMatrix());
 
+		if (selectedMesh != null && m_gui.bvh.get(0) == 1)
+			Primitive.drawBVH(selectedMesh.getBVH(), selectedMesh.getModelMatrix(), Color.yellow(), Integer.MAX_VALUE);
+
 		Camera camera = m_scene.getCamera();
 		if (camera != null) {
 			this.drawMeshes(camera.getViewMatrix(), camera.getProjectionMatrix());
@@ -189,38 +237,70 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 	 */
 	private void drawMeshes(Mat4 viewMatrix, Mat4 projMatrix) {
 
-		ArrayList<Mesh> lights = m_scene.getLights();
-		Vec3 lightpositions[] = new Vec3[lights.size()];
-		Vec3 lightcolors[] = new Vec3[lights.size()];
-		int lightcount = lights.size();
+		// camera and lights for all programs with a FrameData block
+		StreamBuffer stream = StreamBuffer.shared();
+		this.writeFrameBlock(stream.map(FRAME_BLOCK_SIZE, ShaderProgram.getUniformBufferOffsetAlignment()), viewMatrix,
+				projMatrix);
+		long frameOffset = stream.commit();
+		glBindBufferRange(GL_UNIFORM_BUFFER, ShaderProgram.FRAME_BLOCK_BINDING, stream.getBufferID(), frameOffset,
+				FRAME_BLOCK_SIZE);
 
-		for (int i = 0; i < lights.size(); ++i) {
-			Mat4 modelMatrix = lights.get(i).getModelMatrix();
+		m_renderQueue.begin(viewMatrix);
+		m_frustumCuller.setFrustum(viewMatrix, projMatrix);
 
-			Vec3 position = new Vec3();
-			position.x = modelMatrix.m03;
-			position.y = modelMatrix.m13;
-			position.z = modelMatrix.m23;
+		int culled = m_frustumCuller.cull(m_scene.getMeshes(), m_visibleMeshes);
+		m_scene.groupInstances(m_visibleMeshes, m_singleMeshes, m_instanceBatches);
+		for (Mesh mesh : m_singleMeshes)
+			m_renderQueue.submit(m_standardShader, mesh);
+
+		culled += m_frustumCuller.cull(m_scene.getTransparentMeshes(), m_visibleMeshes);
+		for (Mesh mesh : m_visibleMeshes)
+			m_renderQueue.submitTransparent(m_standardShader, mesh);
 
-			lightpositions[i] = position;
-			lightcolors[i] = lights.get(i).getDiffuseColor();
+		m_gui.cullingString = "Culled: " + culled + " / "
+				+ (m_scene.getMeshes().size() + m_scene.getTransparentMeshes().size());
+
+		if (!m_instanceBatches.isEmpty()) {
+			m_instancedShader.useProgram();
+
+			for (Mesh batch : m_instanceBatches)
+				batch.drawInstanced();
 		}
 
-		m_standardShader.useProgram();
-		m_standardShader.setUniform("uView", viewMatrix);
-		m_standardShader.setUniform("uProjection", projMatrix);
-		m_standardShader.setUniform("uLightpositions", lightpositions);
-		m_standardShader.setUniform("uLightcolors", lightcolors);
-		m_standardShader.setUniform("uLightCount", lightcount);
+		// transparent meshes in the queue are drawn last, model and color come from the ObjectData blocks
+		m_renderQueue.flush(null);
+	}
 
-		ArrayList<Mesh> meshes = m_scene.getMeshes();
+	/**
+	 * Writes the FrameData block: view, projection and up to MAX_LIGHTS light positions and colors
+	 */
+	private void writeFrameBlock(ByteBuffer data, Mat4 viewMatrix, Mat4 projMatrix) {
+		ArrayList<Mesh> lights = m_scene.getLights();
+		int lightCount = Math.min(lights.size(), MAX_LIGHTS);
 
-		for (Mesh mesh : meshes) {
-			m_standardShader.setUniform("uModel", mesh.getModelMatrix());
-			m_standardShader.setUniform("uColor", mesh.getDiffuseColor());
+		m_frameWriter.begin(data, 0).putMat4(viewMatrix).putMat4(projMatrix);
 
-			mesh.draw();
+		for (int i = 0; i < lightCount; ++i) {
+			Mat4 modelMatrix = lights.get(i).getModelMatrix(m_modelScratch);
+			m_frameWriter.putVec4(modelMatrix.m03, modelMatrix.m13, modelMatrix.m23, 1.0f);
+		}
+		m_frameWriter.skipElements(MAX_LIGHTS - lightCount);
+
+		for (int i = 0; i < lightCount; ++i) {
+			Vec4 color = lights.get(i).getDiffuseColorRGBA();
+			m_frameWriter.putVec4(color.x, color.y, color.z, 1.0f);
 		}
+		m_frameWriter.skipElements(MAX_LIGHTS - lightCount);
+
+		m_frameWriter.putInt(lightCount);
+	}
+
+	/**
+	 * Writes the ObjectData block of a mesh, called by the render queue for every visible mesh
+	 */
+	private void writeObjectBlock(Std140Writer writer, Mesh mesh) {
+		Vec4 color = mesh.getDiffuseColorRGBA();
+		writer.putMat4(mesh.getModelMatrix(m_modelScratch)).putVec4(color.x, color.y, color.z, color.w);
 	}
 
 	/**
@@ -233,17 +313,18 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 		ArrayList<Mesh> lights = m_scene.getLights();
 
 		m_debugProgram.useProgram();
-		m_debugProgram.setUniform("uView", viewMatrix);
-		m_debugProgram.setUniform("uProjection", projMatrix);
+		m_debugView.set(viewMatrix);
+		m_debugProjection.set(projMatrix);
 
 		for (Mesh mesh : lights) {
-			m_debugProgram.setUniform("uModel", mesh.getModelMatrix());
-			m_debugProgram.setUniform("uColor", mesh.getDiffuseColor());
+			Vec4 color = mesh.getDiffuseColorRGBA();
+			m_debugModel.set(mesh.getModelMatrix(m_modelScratch));
+			m_debugColor.set(color.x, color.y, color.z);
 			mesh.draw();
 		}
 
-		m_debugProgram.setUniform("uColor", new Vec3());
-		m_debugProgram.setUniform("uModel", new Mat4());
+		m_debugColor.set(0.0f, 0.0f, 0.0f);
+		m_debugModel.set(m_identity);
 		Primitive.drawBatches(viewMatrix, projMatrix);
 	}
 
@@ -362,7 +443,7 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 			return null;
 		}
 
-		OBJContainer objContainer = OBJContainer.loadFile(filename);
+		OBJContainer objContainer = OBJCache.loadFile(filename);
 		ArrayList<OBJGroup> objGroups = objContainer.getGroups();
 
 		OBJGroup group = objGroups.get(0);
@@ -384,6 +465,33 @@ public class Sandbox implements SandboxTemplate, NuklearCallback {
 		return mesh;
 	}
 
+	/**
+	 * Loads a specific obj. file in the background. Parsing and BVH construction
+	 * run on a loader thread, the mesh is created on the render thread between
+	 * two frames. The future completes on the render thread, so it is safe to add
+	 * the mesh to the scene directly, e.g.
+	 * loadObjAsync("Meshes/monkey.obj").thenAccept(m_scene::addMesh);
+	 * 
+	 * @param filename path to obj-file
+	 * @return future of the mesh of the first group
+	 */
+	private CompletableFuture<Mesh> loadObjAsync(String filename) {
+		return AssetLoader.loadMeshes(filename).thenApply(meshes -> meshes.get(0));
+	}
+
+	/**
+	 * Requests the terrain texture set. The images are decoded in parallel on all
+	 * cores and uploaded between frames within the frame budget. Until then each
+	 * texture shows a grey placeholder, so they can be bound right away, e.g.
+	 * mesh.setTexture("uGrass", loadTerrainTextures()[2]);
+	 * 
+	 * @return height map, normal map, grass, rock and snow texture
+	 */
+	private Texture[] loadTerrainTextures() {
+		return AssetLoader.requestTextures("Textures/terrain_height.jpg", "Textures/terrain_normals.png",
+				"Textures/grass.png", "Textures/rock.png", "Textures/snow.png");
+	}
+
 	/**
 	 * Define your own GUI Elements by using the Nuklear Immediate Mode GUI
 	 * functions. A few Examples are included.